@@ -0,0 +1,297 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/** An Ajax4JSF (RichFaces) form submission, as found in the JavaScript event
+ * handlers of a JSF page, e.g.
+ * <pre>
+ * A4J.AJAX.Submit('form', event, {'similarityGroupingId':'form:button',
+ *     'parameters':{'form:button':'form:button'}, 'actionUrl':'/page.jsf'})
+ * </pre>
+ * Only the literal parts of the call are understood. Values in the options
+ * that are JavaScript expressions rather than literals are kept as their
+ * source text.
+ * @author gaprice@lbl.gov
+ *
+ */
+class A4JSubmission {
+
+	private static final String SUBMIT = "A4J.AJAX.Submit(";
+
+	private final String formId;
+	private final String containerId;
+	private final Map<String, Object> options;
+
+	/* A JavaScript expression that isn't a literal. */
+	static class Expression {
+
+		private final String source;
+
+		private Expression(String source) {
+			this.source = source;
+		}
+
+		/** Returns the source text of the expression.
+		 * @return the source text.
+		 */
+		String getSource() {
+			return source;
+		}
+
+		@Override
+		public String toString() {
+			return source;
+		}
+	}
+
+	private A4JSubmission(String formId, String containerId,
+			Map<String, Object> options) {
+		this.formId = formId;
+		this.containerId = containerId;
+		this.options = options;
+	}
+
+	/** Find and parse the first A4J submission in some JavaScript.
+	 * @param js the JavaScript.
+	 * @return the submission, or null if the JavaScript contains no
+	 * submission or the submission can't be parsed.
+	 */
+	static A4JSubmission find(String js) {
+		if (js == null) {
+			return null;
+		}
+		final int start = js.indexOf(SUBMIT);
+		if (start < 0) {
+			return null;
+		}
+		final Parser p = new Parser(js, start + SUBMIT.length());
+		final List<Object> args = new LinkedList<Object>();
+		try {
+			p.skipSpace();
+			while (p.peek() != ')') {
+				final int argStart = p.pos;
+				args.add(p.value());
+				p.skipSpace();
+				if (p.peek() == ',') {
+					p.pos++;
+					p.skipSpace();
+				}
+				p.checkProgress(argStart);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		} catch (IllegalStateException e) {
+			return null;
+		}
+		/* RichFaces 3.3 calls Submit(formId, event, options), earlier
+		 * versions Submit(containerId, formId, event, options).
+		 */
+		final List<String> strings = new LinkedList<String>();
+		Map<String, Object> options = new LinkedHashMap<String, Object>();
+		for (Object o: args) {
+			if (o instanceof String) {
+				strings.add((String) o);
+			} else if (o instanceof Map) {
+				@SuppressWarnings("unchecked")
+				final Map<String, Object> m = (Map<String, Object>) o;
+				options = m;
+			}
+		}
+		if (strings.isEmpty()) {
+			return null;
+		}
+		if (strings.size() == 1) {
+			return new A4JSubmission(strings.get(0), null, options);
+		}
+		return new A4JSubmission(strings.get(1), strings.get(0), options);
+	}
+
+	/** Returns the id of the form to submit.
+	 * @return the form id.
+	 */
+	String getFormId() {
+		return formId;
+	}
+
+	/** Returns the value for the AJAXREQUEST parameter, which identifies the
+	 * region of the page to re-render.
+	 * @return the AJAX container id.
+	 */
+	String getContainerId() {
+		final Object c = options.get("containerId");
+		if (c instanceof String) {
+			return (String) c;
+		}
+		return containerId == null ? "_viewRoot" : containerId;
+	}
+
+	/** Returns the URL to submit to, if the call overrides the form action.
+	 * @return the action URL, or null to use the form action.
+	 */
+	String getActionUrl() {
+		final Object url = options.get("actionUrl");
+		return url instanceof String ? (String) url : null;
+	}
+
+	/** Returns the extra request parameters sent with the form. Values that
+	 * are expressions are returned as {@link Expression}s.
+	 * @return the parameters.
+	 */
+	Map<String, Object> getParameters() {
+		final Object p = options.get("parameters");
+		if (p instanceof Map) {
+			@SuppressWarnings("unchecked")
+			final Map<String, Object> m = (Map<String, Object>) p;
+			return m;
+		}
+		return new LinkedHashMap<String, Object>();
+	}
+
+	/** Returns the options passed to the submission.
+	 * @return the options.
+	 */
+	Map<String, Object> getOptions() {
+		return options;
+	}
+
+	@Override
+	public String toString() {
+		return "A4JSubmission [formId=" + formId + ", containerId=" +
+				getContainerId() + ", options=" + options + "]";
+	}
+
+	/* Parses JavaScript literals. Anything else is captured as an
+	 * Expression up to the next comma or closing bracket at the same
+	 * nesting level.
+	 */
+	private static class Parser {
+
+		private final String js;
+		private int pos;
+
+		private Parser(String js, int pos) {
+			this.js = js;
+			this.pos = pos;
+		}
+
+		private char peek() {
+			return js.charAt(pos);
+		}
+
+		/* Fails the parse on input none of the rules consume, e.g. an
+		 * unbalanced closing bracket, rather than looping forever.
+		 */
+		private void checkProgress(int start) {
+			if (pos == start) {
+				throw new IllegalStateException(String.format(
+						"Unexpected character '%s' at %s", peek(), pos));
+			}
+		}
+
+		private void skipSpace() {
+			while (Character.isWhitespace(peek())) {
+				pos++;
+			}
+		}
+
+		private Object value() {
+			skipSpace();
+			final char c = peek();
+			if (c == '\'' || c == '"') {
+				return string();
+			}
+			if (c == '{') {
+				return object();
+			}
+			final String e = expression();
+			if (e.equals("null")) {
+				return null;
+			}
+			if (e.equals("true") || e.equals("false")) {
+				return Boolean.valueOf(e);
+			}
+			try {
+				return Double.valueOf(e);
+			} catch (NumberFormatException nfe) {
+				return new Expression(e);
+			}
+		}
+
+		private String string() {
+			final char quote = js.charAt(pos++);
+			final StringBuilder sb = new StringBuilder();
+			char c;
+			while ((c = js.charAt(pos++)) != quote) {
+				if (c == '\\') {
+					c = js.charAt(pos++);
+					if (c == 'n') {
+						c = '\n';
+					} else if (c == 't') {
+						c = '\t';
+					} else if (c == 'u') {
+						c = (char) Integer.parseInt(
+								js.substring(pos, pos + 4), 16);
+						pos += 4;
+					}
+				}
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+
+		private Map<String, Object> object() {
+			final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+			pos++; // {
+			skipSpace();
+			while (peek() != '}') {
+				final int itemStart = pos;
+				final String key;
+				if (peek() == '\'' || peek() == '"') {
+					key = string();
+				} else {
+					final int start = pos;
+					while (peek() != ':' && !Character.isWhitespace(peek())) {
+						pos++;
+					}
+					key = js.substring(start, pos);
+				}
+				skipSpace();
+				pos++; // :
+				ret.put(key, value());
+				skipSpace();
+				if (peek() == ',') {
+					pos++;
+					skipSpace();
+				}
+				checkProgress(itemStart);
+			}
+			pos++; // }
+			return ret;
+		}
+
+		private String expression() {
+			final int start = pos;
+			int depth = 0;
+			while (true) {
+				final char c = peek();
+				if (depth == 0 && (c == ',' || c == '}' || c == ')')) {
+					break;
+				}
+				if (c == '\'' || c == '"') {
+					string();
+					continue;
+				}
+				if (c == '(' || c == '{' || c == '[') {
+					depth++;
+				} else if (c == ')' || c == '}' || c == ']') {
+					depth--;
+				}
+				pos++;
+			}
+			return js.substring(start, pos).trim();
+		}
+	}
+}
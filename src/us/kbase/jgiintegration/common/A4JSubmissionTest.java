@@ -0,0 +1,94 @@
+package us.kbase.jgiintegration.common;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/** Tests parsing A4J submissions. A4JSubmission is package private, so
+ * unlike the other tests this one is in the common package.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class A4JSubmissionTest {
+	
+	@Test
+	public void richFaces33() throws Exception {
+		final A4JSubmission s = A4JSubmission.find(
+				"if (x) {A4J.AJAX.Submit('form', event, " +
+				"{'similarityGroupingId':'form:button', " +
+				"'parameters':{'form:button':'form:button'}, " +
+				"'actionUrl':'/page.jsf'}); return false;}");
+		assertThat("form", s.getFormId(), is("form"));
+		assertThat("container", s.getContainerId(), is("_viewRoot"));
+		assertThat("action", s.getActionUrl(), is("/page.jsf"));
+		final Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("form:button", "form:button");
+		assertThat("params", s.getParameters(), is(params));
+		assertThat("grouping", s.getOptions().get("similarityGroupingId"),
+				is((Object) "form:button"));
+	}
+	
+	@Test
+	public void containerArgument() throws Exception {
+		final A4JSubmission s = A4JSubmission.find(
+				"A4J.AJAX.Submit(\"region\", \"form\", event, {})");
+		assertThat("form", s.getFormId(), is("form"));
+		assertThat("container", s.getContainerId(), is("region"));
+		assertThat("action", s.getActionUrl(), nullValue());
+		assertThat("params", s.getParameters().isEmpty(), is(true));
+	}
+	
+	@Test
+	public void containerOption() throws Exception {
+		final A4JSubmission s = A4JSubmission.find(
+				"A4J.AJAX.Submit('form',event,{'containerId':'region'})");
+		assertThat("container", s.getContainerId(), is("region"));
+	}
+	
+	@Test
+	public void literalsAndExpressions() throws Exception {
+		final A4JSubmission s = A4JSubmission.find(
+				"A4J.AJAX.Submit('form', event, {parameters: {" +
+				"'x': this.value, 'f': f(1, {a: 'b,)'}), 'n': 3, " +
+				"'b': true, 'z': null, 's': 'it\\'s\\n\\u0041',}})");
+		final Map<String, Object> p = s.getParameters();
+		assertThat("expression class", p.get("x").getClass().getName(),
+				is(A4JSubmission.Expression.class.getName()));
+		assertThat("expression", ((A4JSubmission.Expression) p.get("x"))
+				.getSource(), is("this.value"));
+		assertThat("call", p.get("f").toString(), is("f(1, {a: 'b,)'})"));
+		assertThat("number", p.get("n"), is((Object) 3.0));
+		assertThat("boolean", p.get("b"), is((Object) Boolean.TRUE));
+		assertThat("null", p.containsKey("z") && p.get("z") == null,
+				is(true));
+		assertThat("string", p.get("s"), is((Object) "it's\nA"));
+	}
+	
+	@Test
+	public void noSubmission() throws Exception {
+		assertThat("null", A4JSubmission.find(null), nullValue());
+		assertThat("none", A4JSubmission.find("A4J.AJAX.Poll('form')"),
+				nullValue());
+		assertThat("no form", A4JSubmission.find("A4J.AJAX.Submit(event)"),
+				nullValue());
+	}
+	
+	@Test(timeout = 5000)
+	public void unparseable() throws Exception {
+		// a stray closing bracket used to loop forever
+		assertThat("stray }", A4JSubmission.find(
+				"A4J.AJAX.Submit('form', event, })"), nullValue());
+		assertThat("stray } in call", A4JSubmission.find(
+				"A4J.AJAX.Submit('form', event, {'a': 'b'}, })"),
+				nullValue());
+		assertThat("unbalanced", A4JSubmission.find(
+				"A4J.AJAX.Submit('form', event, {'a': 1 ]})"), nullValue());
+		assertThat("truncated", A4JSubmission.find(
+				"A4J.AJAX.Submit('form', event, {'a': 'b"), nullValue());
+	}
+}
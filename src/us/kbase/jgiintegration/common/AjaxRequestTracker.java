@@ -0,0 +1,298 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+import com.gargoylesoftware.htmlunit.AjaxController;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebWindow;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/** Tracks the HTTP requests a WebClient has in flight so that callers can
+ * wait until the client is quiescent - e.g. all requests triggered by a click
+ * have returned and the JavaScript that handles the responses has run -
+ * rather than sleeping for a fixed amount of time.
+ *
+ * HtmlUnit's NicelyResynchronizingAjaxController turns asynchronous requests
+ * into synchronous ones, which makes calls on the JGI pages hang. This class
+ * leaves the requests asynchronous and just counts them.
+ *
+ * Requests are also counted per window, so that pages in different windows
+ * of the same client can wait for their own requests only. XMLHttpRequests
+ * are attributed to the window of the page that sent them, and other
+ * requests to the window set for the current thread with
+ * {@link #setCurrentWindow(WebWindow)}.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class AjaxRequestTracker extends WebConnectionWrapper {
+
+	/* How long the client must be idle before it's considered quiescent. */
+	private static final long SETTLE_MS = 100;
+
+	/* JSF / RichFaces AJAX requests are marked with one of these. */
+	private static final String RICHFACES_AJAX_PARAM = "AJAXREQUEST";
+	private static final String JSF_AJAX_HEADER = "Faces-Request";
+
+	private final WebClient client;
+	private final Object lock = new Object();
+	private final Activity all = new Activity();
+	private final Map<WebWindow, Activity> windows =
+			new WeakHashMap<WebWindow, Activity>();
+	/* The windows of XMLHttpRequests that haven't been sent yet. */
+	private final Map<WebRequest, WebWindow> xhrWindows =
+			new WeakHashMap<WebRequest, WebWindow>();
+	private final ThreadLocal<WebWindow> currentWindow =
+			new ThreadLocal<WebWindow>();
+
+	private static class Activity {
+		private int inFlight = 0;
+		private long requestCount = 0;
+		private long ajaxRequestCount = 0;
+		private long lastActivityNanos = System.nanoTime();
+	}
+
+	/* Records the window of each XMLHttpRequest before it's sent. */
+	@SuppressWarnings("serial")
+	private class WindowRecordingAjaxController extends AjaxController {
+
+		private final AjaxController wrapped;
+
+		private WindowRecordingAjaxController(AjaxController wrapped) {
+			this.wrapped = wrapped;
+		}
+
+		@Override
+		public boolean processSynchron(HtmlPage page, WebRequest request,
+				boolean async) {
+			synchronized (lock) {
+				xhrWindows.put(request, page.getEnclosingWindow());
+			}
+			return wrapped.processSynchron(page, request, async);
+		}
+	}
+
+	private AjaxRequestTracker(WebClient client) {
+		super(client);
+		this.client = client;
+		client.setAjaxController(
+				new WindowRecordingAjaxController(client.getAjaxController()));
+	}
+
+	/** Install a request tracker on a web client, or get the tracker
+	 * already installed on the client.
+	 * @param client the client to track.
+	 * @return the request tracker for the client.
+	 */
+	public static AjaxRequestTracker install(WebClient client) {
+		synchronized (client) {
+			AjaxRequestTracker t = JGIUtils.getWebConnectionWrapper(
+					client, AjaxRequestTracker.class);
+			if (t == null) {
+				t = new AjaxRequestTracker(client);
+			}
+			return t;
+		}
+	}
+
+	/** Attribute requests made by the current thread, other than
+	 * XMLHttpRequests, to a window.
+	 * @param window the window, or null to only count the requests for the
+	 * client as a whole.
+	 * @return the window previously set for the current thread, so it can be
+	 * restored.
+	 */
+	public WebWindow setCurrentWindow(WebWindow window) {
+		final WebWindow prev = currentWindow.get();
+		currentWindow.set(window);
+		return prev;
+	}
+
+	@Override
+	public WebResponse getResponse(WebRequest request) throws IOException {
+		final boolean ajax = isAjax(request);
+		final Activity win;
+		synchronized (lock) {
+			WebWindow w = xhrWindows.remove(request);
+			if (w == null) {
+				w = currentWindow.get();
+			}
+			win = w == null ? null : getActivity(w);
+			start(all, ajax);
+			if (win != null) {
+				start(win, ajax);
+			}
+		}
+		try {
+			return super.getResponse(request);
+		} finally {
+			synchronized (lock) {
+				finish(all);
+				if (win != null) {
+					finish(win);
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private static void start(Activity a, boolean ajax) {
+		a.inFlight++;
+		a.requestCount++;
+		if (ajax) {
+			a.ajaxRequestCount++;
+		}
+		a.lastActivityNanos = System.nanoTime();
+	}
+
+	private static void finish(Activity a) {
+		a.inFlight--;
+		a.lastActivityNanos = System.nanoTime();
+	}
+
+	/* Call while holding the lock. */
+	private Activity getActivity(WebWindow window) {
+		if (window == null) {
+			return all;
+		}
+		Activity a = windows.get(window);
+		if (a == null) {
+			a = new Activity();
+			windows.put(window, a);
+		}
+		return a;
+	}
+
+	private boolean isAjax(WebRequest request) {
+		if (request.isAdditionalHeader(JSF_AJAX_HEADER)) {
+			return true;
+		}
+		final String body = request.getRequestBody();
+		if (body != null && body.contains(RICHFACES_AJAX_PARAM)) {
+			return true;
+		}
+		for (NameValuePair p: request.getRequestParameters()) {
+			if (RICHFACES_AJAX_PARAM.equals(p.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the number of requests currently in flight.
+	 * @return the number of requests in flight.
+	 */
+	public int getInFlight() {
+		synchronized (lock) {
+			return all.inFlight;
+		}
+	}
+
+	/** Returns the total number of requests made through this tracker.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount() {
+		synchronized (lock) {
+			return all.requestCount;
+		}
+	}
+
+	/** Returns the total number of JSF / RichFaces AJAX requests made
+	 * through this tracker.
+	 * @return the number of AJAX requests.
+	 */
+	public long getAjaxRequestCount() {
+		return getAjaxRequestCount(null);
+	}
+
+	/** Returns the number of JSF / RichFaces AJAX requests made for a window.
+	 * @param window the window, or null for the whole client.
+	 * @return the number of AJAX requests.
+	 */
+	public long getAjaxRequestCount(WebWindow window) {
+		synchronized (lock) {
+			return getActivity(window).ajaxRequestCount;
+		}
+	}
+
+	/** Wait until no requests are in flight, the client has been idle for a
+	 * short settle period, and any JavaScript jobs due to run in that period
+	 * (e.g. the handlers for AJAX responses) have completed. If those jobs
+	 * trigger more requests, waits for those as well.
+	 * @param timeoutMillis the maximum time to wait.
+	 * @return the time waited in nanoseconds.
+	 * @throws InterruptedException if the wait is interrupted.
+	 * @throws TimeoutException if the client isn't quiescent before the
+	 * timeout.
+	 */
+	public long awaitQuiescence(long timeoutMillis)
+			throws InterruptedException, TimeoutException {
+		return awaitQuiescence(null, timeoutMillis);
+	}
+
+	/** Wait until a window is quiescent, as
+	 * {@link #awaitQuiescence(long)}, ignoring requests and JavaScript for
+	 * other windows.
+	 * @param window the window, or null to wait for the whole client.
+	 * @param timeoutMillis the maximum time to wait.
+	 * @return the time waited in nanoseconds.
+	 * @throws InterruptedException if the wait is interrupted.
+	 * @throws TimeoutException if the window isn't quiescent before the
+	 * timeout.
+	 */
+	public long awaitQuiescence(WebWindow window, long timeoutMillis)
+			throws InterruptedException, TimeoutException {
+		final long startNanos = System.nanoTime();
+		final long deadline = startNanos + timeoutMillis * 1000000L;
+		while (true) {
+			final Activity a;
+			final long count;
+			synchronized (lock) {
+				a = getActivity(window);
+				while (true) {
+					final long now = System.nanoTime();
+					final long idleMs = (now - a.lastActivityNanos) / 1000000;
+					if (a.inFlight == 0 && idleMs >= SETTLE_MS) {
+						break;
+					}
+					checkDeadline(a, deadline, timeoutMillis);
+					// requests in flight notify when they complete
+					final long waitMs = a.inFlight > 0 ?
+							(deadline - now) / 1000000 : SETTLE_MS - idleMs;
+					lock.wait(Math.max(1, Math.min(waitMs,
+							(deadline - now) / 1000000)));
+				}
+				count = a.requestCount;
+			}
+			if (window == null) {
+				client.waitForBackgroundJavaScriptStartingBefore(SETTLE_MS);
+			} else {
+				window.getJobManager().waitForJobsStartingBefore(SETTLE_MS);
+			}
+			synchronized (lock) {
+				if (a.inFlight == 0 && count == a.requestCount) {
+					return System.nanoTime() - startNanos;
+				}
+				checkDeadline(a, deadline, timeoutMillis);
+			}
+		}
+	}
+
+	private void checkDeadline(Activity a, long deadline, long timeoutMillis)
+			throws TimeoutException {
+		if (System.nanoTime() > deadline) {
+			final String msg = String.format(
+					"Timed out waiting for %s in flight requests to complete after %s ms",
+					a.inFlight, timeoutMillis);
+			System.out.println(msg);
+			throw new TimeoutException(msg);
+		}
+	}
+}
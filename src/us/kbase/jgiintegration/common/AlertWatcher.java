@@ -0,0 +1,93 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.gargoylesoftware.htmlunit.AlertHandler;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebWindow;
+
+/** Records the JavaScript alerts raised in each window of a WebClient, so
+ * that a page can notice an alert as soon as it's raised rather than waiting
+ * for some other change to the page that will never come.
+ *
+ * The watcher wraps the client's alert handler, so any handler set on the
+ * client before the watcher is installed still receives every alert.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class AlertWatcher implements AlertHandler {
+
+	private final AlertHandler wrapped;
+	private final Map<WebWindow, List<String>> alerts =
+			new WeakHashMap<WebWindow, List<String>>();
+
+	private AlertWatcher(AlertHandler wrapped) {
+		this.wrapped = wrapped;
+	}
+
+	/** Install an alert watcher on a web client, or get the watcher already
+	 * installed on the client. If the client's alert handler was replaced
+	 * after a watcher was installed, a new watcher wraps the new handler.
+	 * @param client the client to watch.
+	 * @return the alert watcher for the client.
+	 */
+	public static AlertWatcher install(WebClient client) {
+		synchronized (client) {
+			final AlertHandler h = client.getAlertHandler();
+			if (h instanceof AlertWatcher) {
+				return (AlertWatcher) h;
+			}
+			final AlertWatcher w = new AlertWatcher(h);
+			client.setAlertHandler(w);
+			return w;
+		}
+	}
+
+	@Override
+	public void handleAlert(Page page, String message) {
+		if (wrapped != null) {
+			wrapped.handleAlert(page, message);
+		}
+		synchronized (alerts) {
+			final WebWindow w = page.getEnclosingWindow();
+			List<String> l = alerts.get(w);
+			if (l == null) {
+				l = new LinkedList<String>();
+				alerts.put(w, l);
+			}
+			l.add(message);
+		}
+	}
+
+	/** Returns the number of alerts raised in a window.
+	 * @param window the window.
+	 * @return the number of alerts.
+	 */
+	public int getAlertCount(WebWindow window) {
+		synchronized (alerts) {
+			final List<String> l = alerts.get(window);
+			return l == null ? 0 : l.size();
+		}
+	}
+
+	/** Returns the alerts raised in a window, in the order they were raised.
+	 * @param window the window.
+	 * @param from the number of alerts to skip, usually the alert count
+	 * before an action.
+	 * @return the alert messages.
+	 */
+	public List<String> getAlerts(WebWindow window, int from) {
+		synchronized (alerts) {
+			final List<String> l = alerts.get(window);
+			if (l == null || from >= l.size()) {
+				return Collections.emptyList();
+			}
+			return new LinkedList<String>(l.subList(from, l.size()));
+		}
+	}
+}
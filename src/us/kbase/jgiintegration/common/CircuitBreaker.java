@@ -0,0 +1,262 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Stops calls to a host whose recent error rate is too high, so that
+ * callers fail fast rather than hammering a degraded server.
+ *
+ * Each host's breaker is closed to start with. It opens when at least half
+ * of the recent calls to the host failed, and stays open for a cool down
+ * period. After the cool down one trial call is allowed through. If the
+ * trial succeeds the breaker closes, otherwise it opens again.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class CircuitBreaker {
+
+	/** The state of a host's breaker. */
+	public static enum State {
+		/** Calls are allowed. */
+		CLOSED,
+		/** Calls fail fast. */
+		OPEN,
+		/** One trial call is allowed to see if the host has recovered. */
+		HALF_OPEN
+	}
+
+	private final int window;
+	private final int minCalls;
+	private final double failureRate;
+	private final long coolDownMillis;
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+	private static class Host {
+		/* true for each failed call, most recent last. */
+		private final LinkedList<Boolean> outcomes = new LinkedList<Boolean>();
+		private State state = State.CLOSED;
+		private long openedAtMillis = 0;
+		private boolean trialInFlight = false;
+		private int timesOpened = 0;
+		private long rejected = 0;
+
+		private int getFailures() {
+			int failures = 0;
+			for (Boolean f: outcomes) {
+				if (f) {
+					failures++;
+				}
+			}
+			return failures;
+		}
+	}
+
+	/** Create a circuit breaker.
+	 * @param window the number of recent calls to each host to consider.
+	 * @param minCalls the minimum number of recent calls before the breaker
+	 * can open.
+	 * @param failureRate the fraction of the recent calls that must fail for
+	 * the breaker to open.
+	 * @param coolDownMillis how long the breaker stays open before allowing
+	 * a trial call.
+	 */
+	public CircuitBreaker(
+			int window,
+			int minCalls,
+			double failureRate,
+			long coolDownMillis) {
+		if (window < 1 || minCalls < 1 || minCalls > window) {
+			throw new IllegalArgumentException(
+					"window and minCalls must be > 0 and minCalls <= window");
+		}
+		if (failureRate <= 0 || failureRate > 1) {
+			throw new IllegalArgumentException(
+					"failureRate must be > 0 and <= 1");
+		}
+		this.window = window;
+		this.minCalls = minCalls;
+		this.failureRate = failureRate;
+		this.coolDownMillis = coolDownMillis;
+	}
+
+	/** Create a circuit breaker that opens when half of the last 20 calls,
+	 * and at least 10 calls, to a host failed, and stays open for 30
+	 * seconds.
+	 */
+	public CircuitBreaker() {
+		this(20, 10, 0.5, 30 * 1000);
+	}
+
+	/** Check that a call to a host is allowed. If the breaker is half open
+	 * this call becomes the trial call, and the caller must record its
+	 * outcome or {@link #release(String) release} it.
+	 * @param host the host.
+	 * @return true if the call is the trial call.
+	 * @throws CircuitOpenException if calls to the host aren't allowed.
+	 */
+	public synchronized boolean acquire(String host)
+			throws CircuitOpenException {
+		final Host h = getHost(host);
+		if (h.state == State.OPEN) {
+			final long waited = System.currentTimeMillis() - h.openedAtMillis;
+			if (waited < coolDownMillis) {
+				h.rejected++;
+				throw new CircuitOpenException(host, h.state,
+						coolDownMillis - waited);
+			}
+			h.state = State.HALF_OPEN;
+			System.out.println(String.format(
+					"Circuit breaker for %s is half open, trying a call at %s",
+					host, new Date()));
+		}
+		if (h.state == State.HALF_OPEN) {
+			if (h.trialInFlight) {
+				h.rejected++;
+				throw new CircuitOpenException(host, h.state, 0);
+			}
+			h.trialInFlight = true;
+			return true;
+		}
+		return false;
+	}
+
+	/** Give up a trial call whose outcome won't be recorded, so that
+	 * another trial call can be made.
+	 * @param host the host.
+	 */
+	public synchronized void release(String host) {
+		final Host h = getHost(host);
+		if (h.state == State.HALF_OPEN) {
+			h.trialInFlight = false;
+		}
+	}
+
+	/** Record that a call to a host succeeded.
+	 * @param host the host.
+	 */
+	public synchronized void recordSuccess(String host) {
+		final Host h = getHost(host);
+		if (h.state == State.HALF_OPEN) {
+			System.out.println(String.format(
+					"Circuit breaker for %s closed at %s", host, new Date()));
+			h.state = State.CLOSED;
+			h.trialInFlight = false;
+			h.outcomes.clear();
+		}
+		addOutcome(h, false);
+	}
+
+	/** Record that a call to a host failed in a way that indicates the host
+	 * is degraded.
+	 * @param host the host.
+	 */
+	public synchronized void recordFailure(String host) {
+		final Host h = getHost(host);
+		addOutcome(h, true);
+		if (h.state == State.HALF_OPEN) {
+			h.trialInFlight = false;
+			open(host, h);
+		} else if (h.state == State.CLOSED && h.outcomes.size() >= minCalls &&
+				h.getFailures() >= h.outcomes.size() * failureRate) {
+			open(host, h);
+		}
+	}
+
+	private void open(String host, Host h) {
+		h.state = State.OPEN;
+		h.openedAtMillis = System.currentTimeMillis();
+		h.timesOpened++;
+		System.out.println(String.format(
+				"Circuit breaker for %s opened at %s after %s failures in %s calls",
+				host, new Date(), h.getFailures(), h.outcomes.size()));
+	}
+
+	private void addOutcome(Host h, boolean failed) {
+		h.outcomes.add(failed);
+		while (h.outcomes.size() > window) {
+			h.outcomes.removeFirst();
+		}
+	}
+
+	private Host getHost(String host) {
+		Host h = hosts.get(host);
+		if (h == null) {
+			h = new Host();
+			hosts.put(host, h);
+		}
+		return h;
+	}
+
+	/** Get the state of a host's breaker.
+	 * @param host the host.
+	 * @return the state of the breaker.
+	 */
+	public synchronized State getState(String host) {
+		return getHost(host).state;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("CircuitBreaker [");
+		boolean first = true;
+		for (Map.Entry<String, Host> e:
+				new TreeMap<String, Host>(hosts).entrySet()) {
+			final Host h = e.getValue();
+			if (!first) {
+				sb.append(", ");
+			}
+			first = false;
+			sb.append(String.format(
+					"%s: state=%s, recentFailures=%s/%s, timesOpened=%s, rejected=%s",
+					e.getKey(), h.state, h.getFailures(), h.outcomes.size(),
+					h.timesOpened, h.rejected));
+		}
+		return sb.append("]").toString();
+	}
+
+	/** Thrown when a call to a host isn't allowed because the host's breaker
+	 * is open.
+	 */
+	@SuppressWarnings("serial")
+	public static class CircuitOpenException extends Exception {
+
+		private final String host;
+		private final State state;
+		private final long retryAfterMillis;
+
+		public CircuitOpenException(String host, State state,
+				long retryAfterMillis) {
+			super(String.format(
+					"The circuit breaker for %s is %s, retry after %s ms",
+					host, state, retryAfterMillis));
+			this.host = host;
+			this.state = state;
+			this.retryAfterMillis = retryAfterMillis;
+		}
+
+		/** Returns the host.
+		 * @return the host.
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		/** Returns the state of the host's breaker when the call was
+		 * refused.
+		 * @return the state.
+		 */
+		public State getState() {
+			return state;
+		}
+
+		/** Returns how long until the breaker allows a trial call.
+		 * @return the time in milliseconds.
+		 */
+		public long getRetryAfterMillis() {
+			return retryAfterMillis;
+		}
+	}
+}
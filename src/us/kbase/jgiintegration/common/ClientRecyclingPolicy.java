@@ -0,0 +1,85 @@
+package us.kbase.jgiintegration.common;
+
+/** Decides when a long lived web client should be replaced by a new one
+ * rather than cleaned up and reused. By default clients are never replaced.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ClientRecyclingPolicy {
+
+	private int maxPages = 0;
+	private double maxHeapFraction = 0;
+	private boolean collectGarbage = false;
+
+	/** Create a policy that never replaces clients.
+	 */
+	public ClientRecyclingPolicy() {}
+
+	/** Replace a client after it has loaded a number of organism pages.
+	 * @param pages the number of pages, or 0 for no limit.
+	 * @return this policy.
+	 */
+	public ClientRecyclingPolicy withMaxPages(int pages) {
+		if (pages < 0) {
+			throw new IllegalArgumentException("pages must be >= 0");
+		}
+		maxPages = pages;
+		return this;
+	}
+
+	/** Replace a client when the heap retained after the most recent
+	 * garbage collection is above a fraction of the maximum heap. Garbage
+	 * that hasn't been collected yet doesn't count.
+	 * @param fraction the fraction of the maximum heap, or 0 for no limit.
+	 * @return this policy.
+	 */
+	public ClientRecyclingPolicy withMaxHeapFraction(double fraction) {
+		if (fraction < 0 || fraction > 1) {
+			throw new IllegalArgumentException(
+					"fraction must be between 0 and 1");
+		}
+		maxHeapFraction = fraction;
+		return this;
+	}
+
+	/** Run the garbage collector after cleaning up a client, so the heap
+	 * usage that is logged and checked against the heap limit includes the
+	 * memory the clean up released. Off by default.
+	 * @param gc true to collect garbage.
+	 * @return this policy.
+	 */
+	public ClientRecyclingPolicy withCollectGarbage(boolean gc) {
+		collectGarbage = gc;
+		return this;
+	}
+
+	/** Returns true if the garbage collector should run after cleaning up a
+	 * client.
+	 * @return true to collect garbage.
+	 */
+	public boolean isCollectGarbage() {
+		return collectGarbage;
+	}
+
+	/** Check whether a client should be replaced.
+	 * @param pages the number of organism pages the client has loaded.
+	 * @param usedHeap the heap retained after the most recent garbage
+	 * collection in bytes.
+	 * @param maxHeap the maximum heap in bytes.
+	 * @return true if the client should be replaced.
+	 */
+	public boolean isReplacementDue(int pages, long usedHeap, long maxHeap) {
+		if (maxPages > 0 && pages >= maxPages) {
+			return true;
+		}
+		return maxHeapFraction > 0 &&
+				usedHeap >= maxHeap * maxHeapFraction;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ClientRecyclingPolicy [maxPages=%s, maxHeapFraction=%s, collectGarbage=%s]",
+				maxPages, maxHeapFraction, collectGarbage);
+	}
+}
@@ -0,0 +1,174 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+/** A time budget for an operation on an organism page. The budget is passed
+ * down to every wait and server call the operation makes, which wait no
+ * longer than the remaining budget. When the budget runs out the operation
+ * fails with a TimeoutException that breaks down where the time went.
+ *
+ * Time is attributed to phases, e.g. the initial page fetch or waiting for
+ * the server after a click, as the operation proceeds. A deadline may be
+ * shared by several operations, e.g. selecting files and pushing them, so
+ * that the budget covers all of them.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class Deadline {
+
+	private final long startNanos;
+	private final long budgetNanos;
+	private final Map<String, Long> phaseNanos =
+			new LinkedHashMap<String, Long>();
+	private long lastMarkNanos;
+
+	private Deadline(long budgetNanos) {
+		this.startNanos = System.nanoTime();
+		this.budgetNanos = budgetNanos;
+		this.lastMarkNanos = startNanos;
+	}
+
+	/** Create a deadline that expires after a budget. The budget starts now.
+	 * @param budgetMillis the budget in milliseconds.
+	 * @return the deadline.
+	 */
+	public static Deadline after(long budgetMillis) {
+		if (budgetMillis < 1) {
+			throw new IllegalArgumentException("budget must be > 0");
+		}
+		return new Deadline(budgetMillis * 1000000L);
+	}
+
+	/** Create a deadline that never expires. Operations using it are only
+	 * limited by the timeouts of their individual steps. Time is still
+	 * attributed to phases.
+	 * @return the deadline.
+	 */
+	public static Deadline none() {
+		return new Deadline(Long.MAX_VALUE);
+	}
+
+	/** Returns true if this deadline never expires.
+	 * @return true if the deadline is unbounded.
+	 */
+	public boolean isUnbounded() {
+		return budgetNanos == Long.MAX_VALUE;
+	}
+
+	/** Returns the time since the deadline was created.
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/** Returns the remaining budget.
+	 * @return the remaining time in milliseconds, 0 if the deadline has
+	 * expired, or Long.MAX_VALUE if the deadline is unbounded.
+	 */
+	public long getRemainingMillis() {
+		if (isUnbounded()) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, (budgetNanos - getElapsedNanos()) / 1000000);
+	}
+
+	/** Returns true if the budget has run out.
+	 * @return true if the deadline has expired.
+	 */
+	public boolean isExpired() {
+		return !isUnbounded() && getElapsedNanos() >= budgetNanos;
+	}
+
+	/** Limit the timeout of a single step to the remaining budget.
+	 * @param stepMillis the step's own timeout in milliseconds.
+	 * @return the smaller of the step timeout and the remaining budget.
+	 */
+	public long limit(long stepMillis) {
+		return Math.min(stepMillis, getRemainingMillis());
+	}
+
+	/** Attribute the time since the previous phase ended, or since the
+	 * deadline was created, to a phase. Time attributed to the same phase
+	 * more than once is summed.
+	 * @param phase the name of the phase that just ended.
+	 * @return the time attributed to the phase by this call in nanoseconds.
+	 */
+	public synchronized long phase(String phase) {
+		final long now = System.nanoTime();
+		final long spent = now - lastMarkNanos;
+		final Long prev = phaseNanos.get(phase);
+		phaseNanos.put(phase, prev == null ? spent : prev + spent);
+		lastMarkNanos = now;
+		return spent;
+	}
+
+	/** Returns the time attributed to each phase, in the order the phases
+	 * first ended.
+	 * @return a mapping of phase name to time in nanoseconds.
+	 */
+	public synchronized Map<String, Long> getPhaseNanos() {
+		return new LinkedHashMap<String, Long>(phaseNanos);
+	}
+
+	/** Throw an exception if the budget has run out.
+	 * @param activity what the operation is about to do, for the exception
+	 * message.
+	 * @throws TimeoutException if the deadline has expired.
+	 */
+	public void check(String activity) throws TimeoutException {
+		if (isExpired()) {
+			throw expired(activity, null);
+		}
+	}
+
+	/** Translate a timeout from a step limited by this deadline. If the
+	 * budget has run out the returned exception describes the deadline and
+	 * the timing breakdown, otherwise the step's own timeout is returned.
+	 * @param activity what the operation was doing when the step timed out.
+	 * @param stepTimeout the timeout thrown by the step.
+	 * @return the exception to throw.
+	 */
+	public TimeoutException translate(String activity,
+			TimeoutException stepTimeout) {
+		if (isExpired()) {
+			return expired(activity, stepTimeout);
+		}
+		return stepTimeout;
+	}
+
+	private TimeoutException expired(String activity, Throwable cause) {
+		final String msg = String.format(
+				"Deadline of %s ms exceeded after %s ms while %s. %s",
+				budgetNanos / 1000000, getElapsedNanos() / 1000000, activity,
+				getBreakdown());
+		System.out.println(msg);
+		return new TimeoutException(msg, cause);
+	}
+
+	/** Returns a description of where the time went, including the time not
+	 * yet attributed to any phase.
+	 * @return the timing breakdown.
+	 */
+	public synchronized String getBreakdown() {
+		final StringBuilder sb = new StringBuilder("Time spent: ");
+		for (Entry<String, Long> e: phaseNanos.entrySet()) {
+			sb.append(String.format("%s=%s ms, ", e.getKey(),
+					e.getValue() / 1000000));
+		}
+		sb.append(String.format("in progress=%s ms",
+				(System.nanoTime() - lastMarkNanos) / 1000000));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Deadline [budget=%s, elapsed=%s ms]",
+				isUnbounded() ? "none" : budgetNanos / 1000000 + " ms",
+				getElapsedNanos() / 1000000);
+	}
+}
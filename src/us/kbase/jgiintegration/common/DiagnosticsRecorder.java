@@ -0,0 +1,221 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+
+/** Records diagnostic snapshots, such as page contents, when an operation
+ * fails.
+ *
+ * Snapshots are passed around as {@link Diagnostic}s that are only rendered
+ * when a failure actually occurs, so wait loops don't pay for serializing a
+ * page on every poll. Rendered snapshots are written asynchronously to a
+ * bounded ring buffer of files on disk rather than to standard out; the
+ * oldest snapshot is overwritten once the buffer is full, and the oldest
+ * queued snapshots are dropped, with a message, if the writer falls too far
+ * behind. Queued snapshots are written before the JVM exits, so the
+ * snapshot of the failure that ended a run isn't lost.
+ *
+ * The default recorder writes to the directory in the
+ * jgi.diagnostics.dir system property, or jgi_kbase_diagnostics in the
+ * system temporary directory if the property isn't set, and keeps the last
+ * 50 snapshots.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class DiagnosticsRecorder {
+
+	private static final String DIR_PROP = "jgi.diagnostics.dir";
+	private static final String DEFAULT_DIR = "jgi_kbase_diagnostics";
+	private static final int DEFAULT_MAX_FILES = 50;
+	private static final int MAX_QUEUED_WRITES = 20;
+	private static final long EXIT_FLUSH_TIMEOUT_SEC = 30;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static DiagnosticsRecorder DEFAULT = null;
+
+	/** A diagnostic that is rendered lazily, only when needed. */
+	public interface Diagnostic {
+
+		/** Render the diagnostic.
+		 * @return the diagnostic text.
+		 */
+		String render();
+	}
+
+	private final File dir;
+	private final int maxFiles;
+	private long count = 0;
+	private final ThreadPoolExecutor writer;
+
+	/** Get the default recorder.
+	 * @return the default recorder.
+	 */
+	public static synchronized DiagnosticsRecorder getDefault() {
+		if (DEFAULT == null) {
+			String dir = System.getProperty(DIR_PROP);
+			if (dir == null) {
+				dir = new File(System.getProperty("java.io.tmpdir"),
+						DEFAULT_DIR).getPath();
+			}
+			DEFAULT = new DiagnosticsRecorder(new File(dir),
+					DEFAULT_MAX_FILES);
+		}
+		return DEFAULT;
+	}
+
+	/** Create a recorder.
+	 * @param dir the directory in which to write snapshots.
+	 * @param maxFiles the maximum number of snapshot files to keep.
+	 */
+	public DiagnosticsRecorder(File dir, int maxFiles) {
+		if (maxFiles < 1) {
+			throw new IllegalArgumentException("maxFiles must be > 0");
+		}
+		this.dir = dir;
+		this.maxFiles = maxFiles;
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITES),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "diagnostics-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+
+					@Override
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							dropped(r);
+							return;
+						}
+						// keep the most recent snapshots
+						final Runnable oldest = executor.getQueue().poll();
+						if (oldest != null) {
+							dropped(oldest);
+						}
+						executor.execute(r);
+					}
+				});
+		// the writer thread is a daemon, so finish the queued writes here
+		Runtime.getRuntime().addShutdownHook(new Thread(
+				"diagnostics-flush") {
+
+			@Override
+			public void run() {
+				writer.shutdown();
+				try {
+					if (!writer.awaitTermination(EXIT_FLUSH_TIMEOUT_SEC,
+							TimeUnit.SECONDS)) {
+						System.out.println(
+								"Timed out writing queued diagnostics");
+					}
+				} catch (InterruptedException e) {
+					// exiting anyway
+				}
+			}
+		});
+	}
+	
+	private static void dropped(Runnable write) {
+		System.out.println("Dropped diagnostics for " +
+				((WriteTask) write).label + ", the writer is too far behind");
+	}
+	
+	private class WriteTask implements Runnable {
+		
+		private final String label;
+		private final String contents;
+		private final File file;
+		private final Date time;
+		
+		private WriteTask(String label, String contents, File file,
+				Date time) {
+			this.label = label;
+			this.contents = contents;
+			this.file = file;
+			this.time = time;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				Files.createDirectories(dir.toPath());
+				Writer w = new OutputStreamWriter(
+						Files.newOutputStream(file.toPath()), UTF8);
+				try {
+					w.write(label + "\n" + time + "\n\n");
+					w.write(contents);
+				} finally {
+					w.close();
+				}
+				System.out.println(String.format(
+						"Diagnostics for %s written to %s", label, file));
+			} catch (IOException e) {
+				System.out.println("Failed to write diagnostic to " + file +
+						": " + e);
+			}
+		}
+	}
+
+	/** Create a diagnostic that renders a header followed by the XML for a
+	 * DOM node.
+	 * @param header the header.
+	 * @param node the DOM node.
+	 * @return the diagnostic.
+	 */
+	public static Diagnostic xml(final String header, final DomNode node) {
+		return new Diagnostic() {
+
+			@Override
+			public String render() {
+				return header + "\n" + (node == null ? null : node.asXml());
+			}
+		};
+	}
+
+	/** Render a diagnostic on the calling thread and write it to disk
+	 * asynchronously. Rendering happens immediately so the snapshot reflects
+	 * the state at the time of the failure. The file is logged once it's
+	 * written.
+	 * @param label a short description of the failure.
+	 * @param diagnostic the diagnostic to record.
+	 * @return the file the diagnostic will be written to, unless the write
+	 * is dropped because the writer is too far behind.
+	 */
+	public File record(final String label, final Diagnostic diagnostic) {
+		final String contents;
+		try {
+			contents = diagnostic.render();
+		} catch (RuntimeException e) {
+			// don't mask the original failure
+			System.out.println("Failed to render diagnostic for " + label +
+					": " + e);
+			return null;
+		}
+		final File f;
+		synchronized (this) {
+			f = new File(dir, String.format("diagnostic-%03d.txt",
+					count % maxFiles));
+			count++;
+		}
+		writer.execute(new WriteTask(label, contents, f, new Date()));
+		return f;
+	}
+}
@@ -0,0 +1,769 @@
+package us.kbase.jgiintegration.common;
+
+import static us.kbase.jgiintegration.common.LightweightHtml.getAncestor;
+import static us.kbase.jgiintegration.common.LightweightHtml.getChildElements;
+import static us.kbase.jgiintegration.common.LightweightHtml.getElementById;
+import static us.kbase.jgiintegration.common.LightweightHtml.getElements;
+import static us.kbase.jgiintegration.common.LightweightHtml.getElementsByClass;
+import static us.kbase.jgiintegration.common.LightweightHtml.getNextElement;
+import static us.kbase.jgiintegration.common.LightweightHtml.hasClass;
+import static us.kbase.jgiintegration.common.LightweightHtml.isHidden;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import us.kbase.jgiintegration.common.A4JSubmission.Expression;
+import us.kbase.jgiintegration.common.DiagnosticsRecorder.Diagnostic;
+import us.kbase.jgiintegration.common.JGIOrganismPage.JGIPermissionsException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.NoSuchJGIFileException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.NoSuchJGIFileGroupException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.PushException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.PushRejectedException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+/** A JGI organism page driver that talks to the portal with a plain HTTP
+ * client instead of a browser engine. No scripts, stylesheets, or images
+ * are loaded and no JavaScript is run; instead the Ajax4JSF form posts that
+ * the page's JavaScript would make are replayed directly, and the fragments
+ * of the page in the responses are merged into a lightweight DOM.
+ *
+ * This is a best effort emulation of the RichFaces AJAX protocol, intended
+ * for load testing the PtKB backend without the cost of the browser engine.
+ * It relies on the posts being described by A4J.AJAX.Submit calls in the
+ * event handlers of the page elements (or the file tree's scripts, for
+ * group toggles), and doesn't close the push result dialog. Use
+ * {@link JGIOrganismPage} to test the portal's user interface.
+ *
+ * In the browser the portal's JavaScript fills the push result dialog, so
+ * the result is read from the push response itself: the accepted and
+ * rejected file lists (or the error) must be rendered into the response by
+ * the server. If they aren't, the push fails with a {@link PushException}
+ * and the response is recorded as a diagnostic, rather than the empty
+ * placeholders in the page being reported as a push with no results.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class DirectHttpOrganismPage implements PtKBDriver {
+
+	/* The maximum time to wait for the server to respond to a request. */
+	private final static int SERVER_TIMEOUT_SEC = 60;
+	private final static String UTF8 = "UTF-8";
+	/* The alert the portal's page raises for a push with nothing
+	 * selected.
+	 */
+	private final static String NO_FILES_SELECTED_ALERT =
+			"No JAMO files were selected for Push to KBase. Please use the checkboxes to select some files!";
+	private final static RequestConfig REQUEST_CONFIG = RequestConfig.custom()
+			.setCookieSpec(CookieSpecs.STANDARD)
+			.setConnectTimeout(SERVER_TIMEOUT_SEC * 1000)
+			.setSocketTimeout(SERVER_TIMEOUT_SEC * 1000)
+			.build();
+
+	private final CloseableHttpClient client;
+	private final String organismCode;
+	private URI pageURI;
+	private Document page;
+	private final Set<JGIFileLocation> selected =
+			new HashSet<JGIFileLocation>();
+
+	/* The body and final URI, after redirects, of a response. */
+	private static class Response {
+		private final URI uri;
+		private final String body;
+
+		private Response(URI uri, String body) {
+			this.uri = uri;
+			this.body = body;
+		}
+	}
+
+	/** Create an HTTP client suitable for use with this driver. The client
+	 * keeps cookies, and so the JGI session, between pages.
+	 * @return a new HTTP client.
+	 */
+	public static CloseableHttpClient createClient() {
+		return HttpClients.custom()
+				.setDefaultCookieStore(new BasicCookieStore())
+				.setRedirectStrategy(new LaxRedirectStrategy())
+				.setDefaultRequestConfig(REQUEST_CONFIG)
+				.build();
+	}
+
+	/** Construct a new organism page.
+	 * @param portalURL the URL of the JGI genome portal.
+	 * @param client the client to use to connect to the page. Use the same
+	 * client for all pages to keep the JGI session.
+	 * @param organismCode the JGI organism code.
+	 * @param JGIuser the username for the JGI user that will sign in to JGI.
+	 * Set as null to skip login.
+	 * @param JGIpwd the password for the JGI user.
+	 * @throws IOException if an IO exception occurs or the portal responds
+	 * unexpectedly.
+	 * @throws JGIPermissionsException if the user doesn't have permission to
+	 * view the organism page.
+	 * @throws TimeoutException if a timeout occurs.
+	 */
+	public DirectHttpOrganismPage(
+			URL portalURL,
+			CloseableHttpClient client,
+			String organismCode,
+			String JGIuser,
+			String JGIpwd)
+			throws IOException, JGIPermissionsException, TimeoutException {
+		this(portalURL, client, organismCode, JGIuser, JGIpwd,
+				Deadline.none());
+	}
+
+	/** Construct a new organism page within a time budget.
+	 * @param portalURL the URL of the JGI genome portal.
+	 * @param client the client to use to connect to the page. Use the same
+	 * client for all pages to keep the JGI session.
+	 * @param organismCode the JGI organism code.
+	 * @param JGIuser the username for the JGI user that will sign in to JGI.
+	 * Set as null to skip login.
+	 * @param JGIpwd the password for the JGI user.
+	 * @param deadline the budget for signing on and loading the page.
+	 * @throws IOException if an IO exception occurs or the portal responds
+	 * unexpectedly.
+	 * @throws JGIPermissionsException if the user doesn't have permission to
+	 * view the organism page.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	public DirectHttpOrganismPage(
+			URL portalURL,
+			CloseableHttpClient client,
+			String organismCode,
+			String JGIuser,
+			String JGIpwd,
+			Deadline deadline)
+			throws IOException, JGIPermissionsException, TimeoutException {
+		this.client = client;
+		this.organismCode = organismCode;
+		if (JGIuser == null) {
+			System.out.println("Skipping JGI login, user is null");
+		} else {
+			System.out.println(String.format("Signing on to JGI at %s...",
+					new Date()));
+			signOnToJGI(JGIuser, JGIpwd, deadline);
+			System.out.println(String.format("Signed on to JGI at %s.",
+					new Date()));
+			deadline.phase("sign on");
+		}
+		System.out.println(String.format("Opening %s page at %s... ",
+				organismCode, new Date()));
+		final Response r = execute(new HttpGet(toURI(
+				JGIOrganismPage.getURLforOrganism(portalURL, organismCode))),
+				deadline);
+		pageURI = r.uri;
+		page = LightweightHtml.parse(r.body);
+		deadline.phase("fetch");
+		checkPermissionOk();
+		System.out.println(String.format("Opened %s page at %s.",
+				organismCode, new Date()));
+	}
+
+	private static URI toURI(String uri) throws IOException {
+		try {
+			return new URI(uri);
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid URI: " + uri, e);
+		}
+	}
+
+	/* Unless the deadline is unbounded, the request's timeouts are limited to
+	 * the remaining budget.
+	 */
+	private Response execute(HttpRequestBase request, Deadline deadline)
+			throws IOException, TimeoutException {
+		final String activity = String.format("waiting for %s %s",
+				request.getMethod(), request.getURI());
+		deadline.check(activity);
+		if (!deadline.isUnbounded()) {
+			final int timeout = (int) Math.max(1,
+					deadline.limit(SERVER_TIMEOUT_SEC * 1000));
+			request.setConfig(RequestConfig.copy(REQUEST_CONFIG)
+					.setConnectTimeout(timeout)
+					.setSocketTimeout(timeout)
+					.build());
+		}
+		final HttpClientContext ctx = HttpClientContext.create();
+		final CloseableHttpResponse resp;
+		try {
+			resp = client.execute(request, ctx);
+		} catch (InterruptedIOException e) {
+			if (deadline.isExpired()) {
+				throw deadline.translate(activity,
+						new TimeoutException(e.getMessage(), e));
+			}
+			throw e;
+		}
+		try {
+			final String body = resp.getEntity() == null ? "" :
+				EntityUtils.toString(resp.getEntity(), UTF8);
+			if (resp.getStatusLine().getStatusCode() != 200) {
+				throw new IOException(String.format("%s %s returned %s",
+						request.getMethod(), request.getURI(),
+						resp.getStatusLine()));
+			}
+			final List<URI> redirects = ctx.getRedirectLocations();
+			return new Response(redirects == null || redirects.isEmpty() ?
+					request.getURI() : redirects.get(redirects.size() - 1),
+					body);
+		} finally {
+			resp.close();
+		}
+	}
+
+	private Response post(URI uri, List<NameValuePair> params,
+			Deadline deadline)
+			throws IOException, TimeoutException {
+		final HttpPost post = new HttpPost(uri);
+		post.setEntity(new UrlEncodedFormEntity(params, UTF8));
+		return execute(post, deadline);
+	}
+
+	private void signOnToJGI(String user, String password, Deadline deadline)
+			throws IOException, TimeoutException {
+		final Response r = execute(new HttpGet(
+				toURI(JGISignOn.JGI_SIGN_ON)), deadline);
+		final Element form = JGISignOn.getSignOnForm(
+				LightweightHtml.parse(r.body));
+		final Document loggedIn = LightweightHtml.parse(post(
+				r.uri.resolve(form.getAttribute("action")),
+				JGISignOn.getSignOnFields(form, user, password),
+				deadline).body);
+		JGISignOn.checkSignedOn(loggedIn, user);
+	}
+
+	/* Replays an A4J submission and merges the response into the page.
+	 * Parameters whose values are JavaScript expressions are sent as
+	 * expressionValue, or omitted if expressionValue is null.
+	 */
+	private String submit(A4JSubmission sub, String expressionValue,
+			Deadline deadline)
+			throws IOException, TimeoutException {
+		final Element form = getElementById(page, sub.getFormId());
+		if (form == null) {
+			throw new IOException(String.format(
+					"No form %s in the %s page", sub.getFormId(),
+					organismCode));
+		}
+		final List<NameValuePair> params = LightweightHtml.getFormFields(form);
+		params.add(new BasicNameValuePair("AJAXREQUEST",
+				sub.getContainerId()));
+		for (Entry<String, Object> e: sub.getParameters().entrySet()) {
+			Object value = e.getValue();
+			if (value instanceof Expression) {
+				value = expressionValue;
+			}
+			if (value != null) {
+				params.add(new BasicNameValuePair(e.getKey(),
+						value.toString()));
+			}
+		}
+		final String action = sub.getActionUrl() == null ?
+				form.getAttribute("action") : sub.getActionUrl();
+		final String body = post(pageURI.resolve(action), params, deadline)
+				.body;
+		mergeAjaxResponse(body);
+		return body;
+	}
+
+	/* A4J responses contain the re-rendered parts of the page, listed in the
+	 * Ajax-Update-Ids meta tag, and the new JSF view state.
+	 */
+	private void mergeAjaxResponse(String response) throws IOException {
+		final Document resp = LightweightHtml.parse(response);
+		final List<String> ids = new LinkedList<String>();
+		for (Element meta: getElements(resp, "meta")) {
+			if (meta.getAttribute("name").equals("Ajax-Update-Ids")) {
+				for (String id: meta.getAttribute("content").split(",")) {
+					if (!id.trim().isEmpty()) {
+						ids.add(id.trim());
+					}
+				}
+			}
+		}
+		if (ids.isEmpty()) {
+			for (Element body: getElements(resp, "body")) {
+				for (Element e: getChildElements(body)) {
+					if (!e.getAttribute("id").isEmpty()) {
+						ids.add(e.getAttribute("id"));
+					}
+				}
+			}
+		}
+		for (String id: ids) {
+			final Element update = getElementById(resp, id);
+			final Element old = getElementById(page, id);
+			if (update != null && old != null) {
+				old.getParentNode().replaceChild(
+						page.importNode(update, true), old);
+			}
+		}
+		final Element viewState = getElementById(resp, "ajax-view-state");
+		if (viewState != null) {
+			for (Element vs: getElements(viewState, "input")) {
+				for (Element input: getElements(page, "input")) {
+					if (input.getAttribute("name").equals(
+							vs.getAttribute("name"))) {
+						input.setAttribute("value", vs.getAttribute("value"));
+					}
+				}
+			}
+		}
+	}
+
+	private void checkPermissionOk() throws JGIPermissionsException {
+		for (Element e: getElements(page, "div")) {
+			if (e.getAttribute("class").equals("warning") &&
+					e.getTextContent().contains(
+							"you do not have permission")) {
+				throw new JGIPermissionsException(
+						"No permission for organism " + organismCode);
+			}
+		}
+	}
+
+	@Override
+	public String getOrganismCode() {
+		return organismCode;
+	}
+
+	@Override
+	public List<String> listFileGroups() {
+		Element tree = null;
+		for (Element e: getElements(page, "div")) {
+			if (hasClass(e, "rich-tree")) {
+				tree = e;
+				break;
+			}
+		}
+		final List<Element> tables = tree == null ?
+				new LinkedList<Element>() : getElements(tree, "table");
+		if (tables.isEmpty()) {
+			throw new IllegalStateException("No rich tree found in page");
+		}
+		// the first table is a first level file group, as are its siblings
+		final List<String> ret = new LinkedList<String>();
+		for (Element child: getChildElements(
+				tables.get(0).getParentNode())) {
+			if (child.getTagName().equalsIgnoreCase("table")) {
+				for (Element b: getElements(child, "b")) {
+					ret.add(b.getTextContent());
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public List<String> listFiles(String fileGroup)
+			throws IOException, TimeoutException {
+		return listFiles(fileGroup, Deadline.none());
+	}
+
+	@Override
+	public List<String> listFiles(String fileGroup, Deadline deadline)
+			throws IOException, TimeoutException {
+		final List<String> ret = new LinkedList<String>();
+		for (Element b: getElements(openFileGroup(fileGroup, deadline),
+				"b")) {
+			ret.add(b.getTextContent());
+		}
+		return ret;
+	}
+
+	private Element findFileGroup(String group) {
+		for (Element b: getElements(page, "b")) {
+			if (b.getTextContent().equals(group)) {
+				return b;
+			}
+		}
+		throw new NoSuchJGIFileGroupException(String.format(
+				"There is no file group %s for the organism %s at %s",
+				group, organismCode, new Date()));
+	}
+
+	private static Element getGroupContainer(Element groupText) {
+		return getNextElement(getAncestor(groupText, "table"));
+	}
+
+	private static boolean isOpen(Element container) {
+		return container != null && !isHidden(container) &&
+				!getElements(container, "b").isEmpty();
+	}
+
+	private Element openFileGroup(String group, Deadline deadline)
+			throws IOException, TimeoutException {
+		final Element text = findFileGroup(group);
+		final Element container = getGroupContainer(text);
+		if (isOpen(container)) {
+			return container;
+		}
+		System.out.println(String.format("Opening file group %s at %s... ",
+				group, new Date()));
+		final Element td = getAncestor(text, "td");
+		final List<Element> tds = getChildElements(td.getParentNode());
+		final List<Element> anchors = getElements(
+				tds.get(tds.indexOf(td) - 2), "a"); //td toggle icon
+		if (anchors.isEmpty()) {
+			throw new IOException("No toggle for file group " + group);
+		}
+		final Element toggle = anchors.get(0);
+		A4JSubmission sub = A4JSubmission.find(
+				toggle.getAttribute("onclick"));
+		if (sub == null) {
+			// the tree submits toggles from its own script
+			sub = findTreeSubmission(toggle);
+		}
+		if (sub == null) {
+			throw new IOException(
+					"Couldn't find the AJAX call to open file group " + group);
+		}
+		final String response = submit(sub,
+				toggle.getAttribute("id").replaceFirst(":handle$", ""),
+				deadline);
+		final Element opened = getGroupContainer(findFileGroup(group));
+		if (!isOpen(opened)) {
+			final String msg = String.format(
+					"File group %s didn't open after replaying %s", group, sub);
+			recordDiagnostic(msg, response);
+			throw new IOException(msg);
+		}
+		System.out.println(String.format("Opened file group %s at %s.",
+				group, new Date()));
+		deadline.phase("group open");
+		return opened;
+	}
+
+	private static A4JSubmission findTreeSubmission(Element toggle) {
+		for (Element e = getAncestor(toggle, "div"); e != null;
+				e = getAncestor(e, "div")) {
+			if (hasClass(e, "rich-tree")) {
+				for (Element script: getElements(e, "script")) {
+					A4JSubmission sub =
+							A4JSubmission.find(script.getTextContent());
+					if (sub != null) {
+						return sub;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void selectFile(JGIFileLocation file)
+			throws IOException, TimeoutException {
+		selectFile(file, true);
+	}
+
+	@Override
+	public void selectFile(JGIFileLocation file, boolean select)
+			throws IOException, TimeoutException {
+		selectFile(file, select, Deadline.none());
+	}
+
+	@Override
+	public void selectFile(
+			JGIFileLocation file,
+			boolean select,
+			Deadline deadline)
+			throws IOException, TimeoutException {
+		final String selstr = select ? "Select" : "Unselect";
+		System.out.println(String.format("%sing file %s from group %s",
+				selstr, file.getFile(), file.getGroup()));
+		final Element checkbox = findFile(file, deadline);
+		if (select == checkbox.hasAttribute("checked")) {
+			return;
+		}
+		if (select) {
+			checkbox.setAttribute("checked", "checked");
+			selected.add(file);
+		} else {
+			checkbox.removeAttribute("checked");
+			selected.remove(file);
+		}
+		// with no AJAX call the state is sent with the next submission
+		final A4JSubmission sub = A4JSubmission.find(
+				checkbox.getAttribute("onclick"));
+		if (sub != null) {
+			submit(sub, checkbox.getAttribute("id"), deadline);
+		}
+		System.out.println(String.format("%sed file %s from group %s.",
+				selstr, file.getFile(), file.getGroup()));
+		deadline.phase("select");
+	}
+
+	private Element findFile(JGIFileLocation file, Deadline deadline)
+			throws IOException, TimeoutException {
+		final Element container = openFileGroup(file.getGroup(), deadline);
+		for (Element b: getElements(container, "b")) {
+			if (b.getTextContent().equals(file.getFile())) {
+				final List<Element> inputs =
+						getElements(getAncestor(b, "td"), "input");
+				if (!inputs.isEmpty()) {
+					return inputs.get(0);
+				}
+			}
+		}
+		throw new NoSuchJGIFileException(String.format(
+				"There is no file %s in file group %s for the organism %s",
+				file.getFile(), file.getGroup(), organismCode));
+	}
+
+	@Override
+	public int selectFiles(Collection<JGIFileLocation> files, boolean select)
+			throws IOException, TimeoutException {
+		return selectFiles(files, select, Deadline.none());
+	}
+
+	/** Select or unselect a set of files within a time budget. Every
+	 * checkbox that needs changing is changed in the form, and then the
+	 * changes are sent with one submission rather than one per checkbox,
+	 * since each submission posts the state of the whole form. Checkboxes
+	 * whose submission only sends their own state are still submitted one
+	 * at a time.
+	 */
+	@Override
+	public int selectFiles(
+			Collection<JGIFileLocation> files,
+			boolean select,
+			Deadline deadline)
+			throws IOException, TimeoutException {
+		final String selstr = select ? "Select" : "Unselect";
+		int ajaxClicks = 0;
+		int submissions = 0;
+		A4JSubmission last = null;
+		String lastId = null;
+		for (JGIFileLocation file: files) {
+			final Element checkbox = findFile(file, deadline);
+			if (select == checkbox.hasAttribute("checked")) {
+				continue;
+			}
+			if (select) {
+				checkbox.setAttribute("checked", "checked");
+				selected.add(file);
+			} else {
+				checkbox.removeAttribute("checked");
+				selected.remove(file);
+			}
+			final A4JSubmission sub = A4JSubmission.find(
+					checkbox.getAttribute("onclick"));
+			if (sub == null) {
+				continue;
+			}
+			ajaxClicks++;
+			if (Boolean.TRUE.equals(sub.getOptions().get("single"))) {
+				submit(sub, checkbox.getAttribute("id"), deadline);
+				submissions++;
+			} else {
+				last = sub;
+				lastId = checkbox.getAttribute("id");
+			}
+		}
+		if (last != null) {
+			submit(last, lastId, deadline);
+			submissions++;
+		}
+		deadline.phase("select");
+		final int saved = ajaxClicks - submissions;
+		System.out.println(String.format(
+				"%sed %s files with %s AJAX requests at %s, saved %s waits for the server.",
+				selstr, files.size(), submissions, new Date(), saved));
+		return saved;
+	}
+
+	/** Push the selected files to KBase. The phases of the push in the
+	 * receipt are submit and clear.
+	 */
+	@Override
+	public PushReceipt pushToKBase()
+			throws IOException, TimeoutException, PushException {
+		return pushToKBase(Deadline.none());
+	}
+
+	@Override
+	public PushReceipt pushToKBase(Deadline deadline)
+			throws IOException, TimeoutException, PushException {
+		System.out.println(String.format("Pushing files to KBase at %s...",
+				new Date()));
+		if (selected.isEmpty()) {
+			// the page's script refuses the push without contacting PtKB
+			System.out.println("The page rejected the push with the alert: " +
+					NO_FILES_SELECTED_ALERT);
+			throw new PushRejectedException(String.format(
+					"The page rejected the push with the alert: %s",
+					NO_FILES_SELECTED_ALERT), NO_FILES_SELECTED_ALERT);
+		}
+		final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		long start = System.nanoTime();
+		final List<Element> pushlist =
+				getElementsByClass(page, "input", "pushToKbaseClass");
+		if (pushlist.size() != 1) {
+			throw new PushException(String.format(
+					"Expected 1 push to KBase button, found %s",
+					pushlist.size()));
+		}
+		final A4JSubmission sub = A4JSubmission.find(
+				pushlist.get(0).getAttribute("onclick"));
+		if (sub == null) {
+			throw new IOException(
+					"Couldn't find the AJAX call for the push to KBase button");
+		}
+		final String response = submit(sub, pushlist.get(0).getAttribute("id"),
+				deadline);
+		final long now = System.nanoTime();
+		phases.put("submit", now - start);
+		deadline.phase("push submit");
+		final Document resp = LightweightHtml.parse(response);
+		// the lists the browser driver reads, or their containers
+		final Element acc = getPushResult(resp, "acceptedFiles",
+				"acceptedKbaseFiles");
+		final Element rej = getPushResult(resp, "rejectedFiles",
+				"rejectedKbaseFiles");
+		final Element err = getElementById(resp, "foundKbaseErrors");
+		final Set<String> accepted = getPushedFileList(acc);
+		final Set<String> rejected = getPushedFileList(rej);
+		String error = null;
+		if (accepted.isEmpty() && rejected.isEmpty()) {
+			if (err == null || err.getTextContent().trim().isEmpty()) {
+				/* the lists are empty in the markup if the page's JavaScript
+				 * fills them, so no results means the server didn't render
+				 * them
+				 */
+				recordDiagnostic("No PtKB result in the push response",
+						response);
+				throw new PushException(String.format(
+						"The push response for organism %s didn't render the PtKB result. The portal may fill the result dialog with JavaScript, which this driver doesn't run.",
+						organismCode));
+			}
+			recordDiagnostic("PtKB returned with error", response);
+			error = err.getTextContent();
+		}
+		final Set<JGIFileLocation> pushed =
+				new HashSet<JGIFileLocation>(selected);
+		for (JGIFileLocation file: pushed) {
+			selectFile(file, false, deadline);
+		}
+		phases.put("clear", System.nanoTime() - now);
+		deadline.phase("push clear");
+		final PushReceipt receipt = new PushReceipt(organismCode, pushed,
+				accepted, rejected, error, phases);
+		if (error == null && !receipt.isAsExpected()) {
+			recordDiagnostic("Pushed files did not match the selection",
+					response);
+		}
+		System.out.println(String.format("Finished push to KBase at %s.",
+				new Date()));
+		return receipt;
+	}
+
+	/** Push the selected files to KBase on the executor. The client must be
+	 * thread safe, as the clients from {@link #createClient()} are.
+	 */
+	@Override
+	public Future<PushReceipt> pushToKBaseAsync(ExecutorService executor) {
+		return pushToKBaseAsync(executor, Deadline.none());
+	}
+
+	@Override
+	public Future<PushReceipt> pushToKBaseAsync(
+			ExecutorService executor,
+			final Deadline deadline) {
+		return executor.submit(new Callable<PushReceipt>() {
+
+			@Override
+			public PushReceipt call() throws Exception {
+				return pushToKBase(deadline);
+			}
+		});
+	}
+
+	/** Does nothing, as the page holds no resources beyond the client.
+	 */
+	@Override
+	public void close() {}
+
+	/* Returns the file list with the given id in the push response, or its
+	 * container if the list itself wasn't rendered, or null if neither was.
+	 */
+	private static Element getPushResult(Document response, String listId,
+			String containerId) {
+		final Element list = getElementById(response, listId);
+		return list == null ? getElementById(response, containerId) : list;
+	}
+
+	private static Set<String> getPushedFileList(Element e) {
+		final Set<String> files = new HashSet<String>();
+		if (e != null) {
+			for (String line: e.getTextContent().split("\n")) {
+				if (!line.trim().isEmpty()) {
+					files.add(line.trim());
+				}
+			}
+		}
+		return files;
+	}
+
+	@Override
+	public String getWorkspaceName(String user) {
+		final List<Element> orgNames = new LinkedList<Element>();
+		for (Element e: getElements(page, "div")) {
+			if (e.getAttribute("class").equals("organismName")) {
+				orgNames.add(e);
+			}
+		}
+		if (orgNames.size() != 1) {
+			throw new IllegalStateException(String.format(
+					"Expected 1 organismName div, found %s", orgNames.size()));
+		}
+		return JGIUtils.getWorkspaceName(orgNames.get(0).getTextContent(),
+				user);
+	}
+
+	private static void recordDiagnostic(String label,
+			final String response) {
+		DiagnosticsRecorder.getDefault().record(label, new Diagnostic() {
+
+			@Override
+			public String render() {
+				return "Server response:\n" + response;
+			}
+		});
+	}
+}
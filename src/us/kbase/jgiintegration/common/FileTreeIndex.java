@@ -0,0 +1,193 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gargoylesoftware.htmlunit.html.DomElement;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
+import com.gargoylesoftware.htmlunit.html.HtmlCheckBoxInput;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/** An index of the file tree on a JGI organism page. Maps file group names
+ * to the group's name, toggle, and file container elements, and file names
+ * within a group to the file's checkbox, so that repeated lookups don't
+ * rescan the page.
+ *
+ * The index is built lazily and validated on use. If the DOM elements for an
+ * entry have been detached from the page, for instance because an AJAX
+ * response re-rendered part of the tree, only the affected part of the index
+ * is rebuilt. An index is only valid for the page it was created with.
+ * @author gaprice@lbl.gov
+ *
+ */
+class FileTreeIndex {
+
+	private final HtmlPage page;
+	/* The first bold element in the page with a given text. File group
+	 * names are bold in the page.
+	 */
+	private Map<String, DomElement> boldByText = null;
+	private final Map<String, GroupEntry> groups =
+			new HashMap<String, GroupEntry>();
+
+	private static class GroupEntry {
+
+		private final DomElement text;
+		private DomElement container = null;
+		private HtmlAnchor toggle = null;
+		private Map<String, HtmlCheckBoxInput> files = null;
+
+		private GroupEntry(DomElement text) {
+			this.text = text;
+		}
+	}
+
+	/** Create an index for a page.
+	 * @param page the page to index.
+	 */
+	FileTreeIndex(HtmlPage page) {
+		this.page = page;
+	}
+
+	/** Returns the page this index indexes.
+	 * @return the indexed page.
+	 */
+	HtmlPage getPage() {
+		return page;
+	}
+
+	private boolean isAttached(DomNode node) {
+		return node != null && page.isAncestorOf(node);
+	}
+
+	/* Returns null if the group doesn't exist. */
+	private GroupEntry getGroup(String group) {
+		GroupEntry ge = groups.get(group);
+		if (ge != null && isAttached(ge.text)) {
+			return ge;
+		}
+		groups.remove(group);
+		DomElement text = getBoldElement(group);
+		if (text == null) {
+			return null;
+		}
+		ge = new GroupEntry(text);
+		groups.put(group, ge);
+		return ge;
+	}
+
+	private DomElement getBoldElement(String text) {
+		if (boldByText != null) {
+			DomElement e = boldByText.get(text);
+			if (isAttached(e)) {
+				return e;
+			}
+		}
+		// the element is missing or stale, so the page has changed - rescan
+		boldByText = new HashMap<String, DomElement>();
+		for (DomElement de: page.getElementsByTagName("b")) {
+			String t = de.getTextContent();
+			if (!boldByText.containsKey(t)) {
+				boldByText.put(t, de);
+			}
+		}
+		return boldByText.get(text);
+	}
+
+	/** Get the element containing the name of a file group.
+	 * @param group the name of the file group.
+	 * @return the element, or null if the group doesn't exist.
+	 */
+	DomElement getGroupText(String group) {
+		GroupEntry ge = getGroup(group);
+		return ge == null ? null : ge.text;
+	}
+
+	/** Get the element containing the files in a file group.
+	 * @param group the name of the file group.
+	 * @return the element, or null if the group doesn't exist.
+	 */
+	DomElement getGroupContainer(String group) {
+		GroupEntry ge = getGroup(group);
+		if (ge == null) {
+			return null;
+		}
+		if (!isAttached(ge.container)) {
+			ge.container = (DomElement) ge.text
+					.getParentNode() //td
+					.getParentNode() //tr
+					.getParentNode() //tbody
+					.getParentNode() //table
+					.getNextSibling(); //div below table
+		}
+		return ge.container;
+	}
+
+	/** Get the anchor that opens and closes a file group.
+	 * @param group the name of the file group.
+	 * @return the anchor, or null if the group doesn't exist.
+	 */
+	HtmlAnchor getGroupToggle(String group) {
+		GroupEntry ge = getGroup(group);
+		if (ge == null) {
+			return null;
+		}
+		if (!isAttached(ge.toggle)) {
+			ge.toggle = (HtmlAnchor) ge.text
+					.getParentNode() //td
+					.getPreviousSibling() //td folder icon
+					.getPreviousSibling() //td toggle icon
+					.getChildNodes().get(0) //div
+					.getChildNodes().get(0); //a
+		}
+		return ge.toggle;
+	}
+
+	/** Get the checkbox for a file. The file group containing the file must
+	 * be open.
+	 * @param group the name of the file group containing the file.
+	 * @param file the name of the file.
+	 * @return the checkbox, or null if the group or file doesn't exist.
+	 */
+	HtmlCheckBoxInput getFileCheckBox(String group, String file) {
+		GroupEntry ge = getGroup(group);
+		if (ge == null) {
+			return null;
+		}
+		if (ge.files != null) {
+			HtmlCheckBoxInput cb = ge.files.get(file);
+			if (isAttached(cb)) {
+				return cb;
+			}
+		}
+		// missing or stale, so rescan just this group
+		DomElement container = getGroupContainer(group);
+		ge.files = new HashMap<String, HtmlCheckBoxInput>();
+		List<HtmlElement> bold = container.getElementsByTagName("b");
+		for (HtmlElement fileText: bold) {
+			String name = fileText.getTextContent();
+			if (ge.files.containsKey(name)) {
+				continue;
+			}
+			ge.files.put(name, (HtmlCheckBoxInput)
+					((DomElement) fileText
+					.getParentNode() //i
+					.getParentNode() //a
+					.getParentNode() //span
+					.getParentNode()) //td
+					.getElementsByTagName("input").get(0));
+		}
+		return ge.files.get(file);
+	}
+
+	/** Discard the cached elements for a file group, for instance after
+	 * toggling the group, which replaces the group's contents.
+	 * @param group the name of the file group.
+	 */
+	void invalidateGroup(String group) {
+		groups.remove(group);
+	}
+}
@@ -0,0 +1,95 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** A log of tagged latency histograms, one per line, so that the
+ * histograms from several runs or intervals can be compared and merged
+ * offline.
+ *
+ * Each line is the tag, a comma, and the histogram encoded by
+ * {@link LatencyHistogram#encode()}. Lines starting with # are comments.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class HistogramLog {
+
+	private final PrintWriter writer;
+
+	/** Create a log, replacing any existing file.
+	 * @param file the log file.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public HistogramLog(Path file) throws IOException {
+		final BufferedWriter w = Files.newBufferedWriter(
+				file, StandardCharsets.UTF_8);
+		writer = new PrintWriter(w);
+		writer.println(
+				"#tag,startMillis,endMillis,highestTrackableValue,significantDigits,min,max,count,index:count ...");
+		writer.flush();
+	}
+
+	/** Write a histogram to the log.
+	 * @param tag the tag for the histogram, e.g. the name of the measurement.
+	 * May not contain commas or line breaks.
+	 * @param histogram the histogram.
+	 */
+	public synchronized void write(String tag, LatencyHistogram histogram) {
+		if (tag == null || tag.isEmpty() || tag.matches(".*[,\\r\\n#].*")) {
+			throw new IllegalArgumentException("Illegal tag: " + tag);
+		}
+		writer.println(tag + "," + histogram.encode());
+		writer.flush();
+	}
+
+	/** Close the log. */
+	public synchronized void close() {
+		writer.close();
+	}
+
+	/** Read a log, merging the histograms with the same tag.
+	 * @param file the log file.
+	 * @return the merged histograms by tag.
+	 * @throws IOException if the file can't be read.
+	 */
+	public static Map<String, LatencyHistogram> read(Path file)
+			throws IOException {
+		final Map<String, LatencyHistogram> ret =
+				new TreeMap<String, LatencyHistogram>();
+		final BufferedReader r = Files.newBufferedReader(
+				file, StandardCharsets.UTF_8);
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final int comma = line.indexOf(",");
+				if (comma < 1) {
+					throw new IOException("Illegal histogram log line: " +
+							line);
+				}
+				final String tag = line.substring(0, comma);
+				final LatencyHistogram h =
+						LatencyHistogram.decode(line.substring(comma + 1));
+				final LatencyHistogram merged = ret.get(tag);
+				if (merged == null) {
+					ret.put(tag, h);
+				} else {
+					merged.add(h);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return ret;
+	}
+}
@@ -1,48 +1,87 @@
 package us.kbase.jgiintegration.common;
 
-import static org.hamcrest.CoreMatchers.is;
-import static org.junit.Assert.assertThat;
-import static org.junit.Assert.fail;
+import static us.kbase.jgiintegration.common.DiagnosticsRecorder.xml;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import us.kbase.common.test.TestException;
+import us.kbase.jgiintegration.common.DiagnosticsRecorder.Diagnostic;
+import us.kbase.jgiintegration.common.PageReadinessWatcher.ReadinessCondition;
+import us.kbase.jgiintegration.common.JGISignOn.SignOnMode;
+import us.kbase.jgiintegration.common.PageTimingListener.Phase;
+import us.kbase.jgiintegration.common.RetryPolicy.Failure;
 
-import com.gargoylesoftware.htmlunit.ElementNotFoundException;
 import com.gargoylesoftware.htmlunit.ScriptException;
+import com.gargoylesoftware.htmlunit.TopLevelWindow;
 import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebWindow;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.DomNodeList;
 import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
 import com.gargoylesoftware.htmlunit.html.HtmlCheckBoxInput;
-import com.gargoylesoftware.htmlunit.html.HtmlDivision;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
-import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlInput;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 /** This class represents a JGI organism page and allows performing
  * operations - primarily selecting files and pushing them to KBase - on that
  * page.
+ *
+ * Each page is loaded in its own window, so several pages on one signed on
+ * web client can be operated concurrently from different threads. The
+ * operations on a page are serialized, and each page only waits for the
+ * requests made for its own window.
  * @author gaprice@lbl.gov
  *
  */
-public class JGIOrganismPage {
+public class JGIOrganismPage implements PtKBDriver {
 
-	private final static String JGI_SIGN_ON =
-			"https://signon.jgi.doe.gov/signon";
-	
 	private final static String JGI_ORG_PAGE_SUFFIX =
 			"/pages/dynamicOrganismDownload.jsf?organism=";
+	/* The maximum time to wait for the server to respond to an action. */
+	private final static int SERVER_TIMEOUT_SEC = 60;
+	/* The maximum time to wait for a loaded page's controls to render. */
+	private final static int PAGE_LOAD_TIMEOUT_SEC = 60;
+	/* The maximum time to wait for a file group to open. */
+	private final static int GROUP_OPEN_TIMEOUT_SEC = 60;
+	/* The maximum time to wait for the PtKB result dialog to show. */
+	private final static int PTKB_DIALOG_TIMEOUT_SEC = 60;
+	/* The maximum time to wait for the PtKB result dialog to be filled in
+	 * once it shows, which should be almost immediate.
+	 */
+	private final static int PTKB_RESULT_TIMEOUT_SEC = 10;
+	/* Attempts to load a page that fails with a harmless script error. */
+	private final static int PAGE_LOAD_ATTEMPTS = 3;
+	
+	/* Used to give each page's window a unique name. */
+	private final static AtomicInteger WINDOWS = new AtomicInteger();
+	/* The windows of pages that haven't been closed. */
+	private final static Set<WebWindow> OPEN_WINDOWS =
+			Collections.newSetFromMap(new WeakHashMap<WebWindow, Boolean>());
+	private final static List<PageTimingListener> TIMING_LISTENERS =
+			new CopyOnWriteArrayList<PageTimingListener>();
+	
 	private final static URL JGI_ORG_PAGE_DEFAULT;
 	static {
 		try {
@@ -54,8 +93,17 @@ public class JGIOrganismPage {
 	
 	private final String organismCode;
 	private HtmlPage page = null;
+	private FileTreeIndex index = null;
 	private final Set<JGIFileLocation> selected =
 			new HashSet<JGIFileLocation>();
+	private final Map<String, Long> readinessNanos;
+	private final AjaxRequestTracker ajax;
+	private AlertWatcher alerts;
+	/* The number of alerts in the window when the current push started. */
+	private int alertsAtPush = 0;
+	private WebWindow window = null;
+	/* The total time spent opening file groups, so selects can exclude it. */
+	private long groupOpenNanos = 0;
 
 	/** Construct a new organism page using the default JGI portal url.
 	 * @param client the client to use to connect to the page.
@@ -90,78 +138,225 @@ public class JGIOrganismPage {
 			String JGIuser,
 			String JGIpwd)
 			throws Exception {
+		this(portalURL, client, organismCode, JGIuser, JGIpwd,
+				SignOnMode.BROWSER);
+	}
+
+	/** Construct a new organism page.
+	 * @param portalURL the URL of the JGI genome portal.
+	 * @param client the client to use to connect to the page.
+	 * @param organismCode the JGI organism code.
+	 * @param JGIuser the username for the JGI user that will sign in to JGI.
+	 * Set as null to skip login.
+	 * @param JGIpwd the password for the JGI user.
+	 * @param signOnMode how to sign on to JGI.
+	 * @throws Exception if an exception occurs.
+	 */
+	public JGIOrganismPage(
+			URL portalURL,
+			WebClient client,
+			String organismCode,
+			String JGIuser,
+			String JGIpwd,
+			SignOnMode signOnMode)
+			throws Exception {
+		this(portalURL, client, organismCode, JGIuser, JGIpwd, signOnMode,
+				Deadline.none());
+	}
+
+	/** Construct a new organism page within a time budget.
+	 * @param portalURL the URL of the JGI genome portal.
+	 * @param client the client to use to connect to the page.
+	 * @param organismCode the JGI organism code.
+	 * @param JGIuser the username for the JGI user that will sign in to JGI.
+	 * Set as null to skip login.
+	 * @param JGIpwd the password for the JGI user.
+	 * @param signOnMode how to sign on to JGI.
+	 * @param deadline the budget for signing on and loading the page.
+	 * @throws Exception if an exception occurs.
+	 */
+	public JGIOrganismPage(
+			URL portalURL,
+			WebClient client,
+			String organismCode,
+			String JGIuser,
+			String JGIpwd,
+			SignOnMode signOnMode,
+			Deadline deadline)
+			throws Exception {
 		super();
 		//this makes weird things happen. Calls never finish, etc.
 //		client.setAjaxController(new NicelyResynchronizingAjaxController());
+		// so count the requests in flight instead
+		ajax = AjaxRequestTracker.install(client);
+		// the portal rejects some pushes with an alert and nothing else
+		alerts = AlertWatcher.install(client);
+		// every organism page runs the same scripts, so don't recompile them
+		SharedScriptCache.install(client);
 		URI jgiOrgPage = portalURL.toURI().resolve(JGI_ORG_PAGE_SUFFIX);
 		if (JGIuser == null) {
 			System.out.println("Skipping JGI login, user is null");
 		} else {
+			deadline.check("signing on to JGI");
 			System.out.println(String.format("Signing on to JGI at %s...",
 					new Date()));
-			signOnToJGI((HtmlPage) client.getPage(JGI_SIGN_ON),
-					JGIuser, JGIpwd);
+			final long start = System.nanoTime();
+			JGISignOn.signOn(client, JGIuser, JGIpwd, signOnMode);
+			timed(organismCode, Phase.SIGN_ON, start);
 			System.out.println(String.format("Signed on to JGI at %s.",
 					new Date()));
+			deadline.phase("sign on");
 		}
 		System.out.println(String.format("Opening %s page at %s... ",
 				organismCode, new Date()));
 		this.organismCode = organismCode;
-		page = loadOrganismPage(jgiOrgPage, client, organismCode);
-		checkPermissionOk();
-		waitForPageToLoad();
-		waitForJS();
-		// try a longer wait time & check for any running js afterwards to fix
-		// the intermittent file group not found errors. Hypothesis is that
-		// the page partially loads but the file group toggle isn't set up
-		// appropriately when it's clicked.
-		Thread.sleep(5000);
-		waitForJS();
-		System.out.println(String.format(
-				"Opened %s page at %s, %s characters.",
-				organismCode, new Date(), page.asXml().length()));
-		closePushedFilesDialog(false);
+		try {
+			long start = System.nanoTime();
+			setPage(loadOrganismPage(jgiOrgPage, client, organismCode,
+					deadline));
+			start = timed(organismCode, Phase.INITIAL_FETCH, start);
+			deadline.phase("fetch");
+			checkPermissionOk();
+			readinessNanos = waitForPageToLoad(deadline);
+			start = timed(organismCode, Phase.DOM_READY, start);
+			deadline.phase("readiness");
+			waitForServer(deadline);
+			timed(organismCode, Phase.JS_QUIESCENT, start);
+			deadline.phase("server");
+			System.out.println(String.format("Opened %s page at %s.",
+					organismCode, new Date()));
+			closePushedFilesDialog(false, deadline);
+			deadline.phase("close dialog");
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** Add a listener that is told how long each phase of the operations on
+	 * every organism page takes.
+	 * @param listener the listener.
+	 */
+	public static void addTimingListener(PageTimingListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		TIMING_LISTENERS.add(listener);
+	}
+
+	/** Remove a timing listener.
+	 * @param listener the listener.
+	 */
+	public static void removeTimingListener(PageTimingListener listener) {
+		TIMING_LISTENERS.remove(listener);
+	}
+
+	/* Reports the time since start for a phase to the timing listeners and
+	 * returns the current time.
+	 */
+	private static long timed(String organismCode, Phase phase, long start) {
+		final long now = System.nanoTime();
+		for (PageTimingListener l: TIMING_LISTENERS) {
+			try {
+				l.phaseCompleted(organismCode, phase, now - start);
+			} catch (RuntimeException e) {
+				System.out.println(String.format(
+						"Timing listener %s failed: %s", l, e));
+			}
+		}
+		return now;
 	}
 
-	/** Waits for a WebClient's background JavaScript jobs to complete.
+	/* Clicks an element, attributing the requests the click makes to this
+	 * page's window.
 	 */
-	private void waitForJS() {
-		int jobs = 1;
-		while (jobs > 0) {
-			System.out.println("Waiting for background JS to complete at " +
-					new Date());
-			jobs = page.getWebClient()
-					.waitForBackgroundJavaScript(5 * 60 * 1000); //5 min 
+	private HtmlPage click(HtmlElement element) throws IOException {
+		final WebWindow prev = ajax.setCurrentWindow(window);
+		try {
+			return element.click();
+		} finally {
+			ajax.setCurrentWindow(prev);
+		}
+	}
+
+	/* Any action that may replace the page must go through here so the file
+	 * tree index is rebuilt for the new page.
+	 */
+	private void setPage(HtmlPage page) {
+		this.page = page;
+		if (index == null || index.getPage() != page) {
+			index = new FileTreeIndex(page);
 		}
-		System.out.println(
-				"No JS jobs scheduled for next 5 mins, calling it a day at " +
-						new Date());
 	}
 
-	private void waitForPageToLoad()
+	/** Waits for the server round trips triggered by the last action and
+	 * the JavaScript that handles the responses to complete.
+	 */
+	private void waitForServer(Deadline deadline)
 			throws InterruptedException, TimeoutException {
-		int timeoutSec = 60;
-		waitForGlobusButtonLoad(timeoutSec, "Globus button");
-		waitForXPathLoad(timeoutSec,
-				"//input[contains(@class, 'pushToKbaseClass')]",
-				"PtKB button");
-		waitForXPathLoad(timeoutSec, "//div[@class='rich-tree-node-children']",
-				"file tree");
+		final long waited;
+		try {
+			waited = ajax.awaitQuiescence(window,
+					deadline.limit(SERVER_TIMEOUT_SEC * 1000));
+		} catch (TimeoutException te) {
+			throw deadline.translate("waiting for the server", te);
+		}
+		System.out.println(String.format(
+				"Server requests complete after %s ms at %s",
+				waited / 1000000, new Date()));
 	}
-	
-	private void waitForGlobusButtonLoad(int timeoutSec, String name)
+
+	private Map<String, Long> waitForPageToLoad(Deadline deadline)
 			throws InterruptedException, TimeoutException {
-		Long startNanos = System.nanoTime(); 
-		while (!hasGlobusButton()) {
-			Thread.sleep(1000);
-			checkTimeout(startNanos, timeoutSec, String.format(
-					"Timed out waiting for %s to load after %s seconds.",
-					name, timeoutSec), "Page contents\n" + page.asXml());
-			System.out.println("waiting on " + name +" load at " + new Date());
+		List<ReadinessCondition> conditions =
+				new LinkedList<ReadinessCondition>();
+		conditions.add(new ReadinessCondition() {
+			
+			@Override
+			public String getName() {
+				return "Globus button";
+			}
+			
+			@Override
+			public boolean isMet(HtmlPage page) {
+				return hasGlobusButton(page);
+			}
+		});
+		conditions.add(new XPathCondition("PtKB button",
+				"//input[contains(@class, 'pushToKbaseClass')]"));
+		conditions.add(new XPathCondition("file tree",
+				"//div[@class='rich-tree-node-children']"));
+		PageReadinessWatcher watcher = new PageReadinessWatcher(page);
+		try {
+			return watcher.await(PAGE_LOAD_TIMEOUT_SEC, conditions, deadline);
+		} finally {
+			watcher.close();
 		}
 	}
+	
+	/* Met when at least one displayed element matches the xpath. */
+	private static class XPathCondition implements ReadinessCondition {
+		
+		private final String name;
+		private final String xpath;
+		
+		public XPathCondition(String name, String xpath) {
+			this.name = name;
+			this.xpath = xpath;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
 
-	private boolean hasGlobusButton() {
+		@Override
+		public boolean isMet(HtmlPage page) {
+			return !getElementsByXPath(page, xpath).isEmpty();
+		}
+	}
+
+	private static boolean hasGlobusButton(HtmlPage page) {
 		/* This is totally stupid and I have no idea what's going on here,
 		 * but traversing down the DOM results in a NPE at the div with
 		 * a together class, and the div is empty even though printing the xml
@@ -189,21 +384,6 @@ public class JGIOrganismPage {
 //		return globusbutton;
 	}
 
-	private void waitForXPathLoad(int timeoutSec, String xpath, String name)
-			throws InterruptedException, TimeoutException {
-		List<HtmlElement> elements = getElementsByXPath(xpath);
-		Long startNanos = System.nanoTime(); 
-		while (elements.isEmpty()) {
-			Thread.sleep(1000);
-			checkTimeout(startNanos, timeoutSec, String.format(
-					"Timed out waiting for %s to load after %s seconds.",
-					name, timeoutSec), "Page contents\n" + page.asXml());
-			elements = getElementsByXPath(xpath);
-			System.out.println("waiting on " + name +" load at " + new Date());
-		}
-//		printXPathElements(xpath, name, elements);
-	}
-
 	@SuppressWarnings("unused")
 	private void printXPathElements(String xpath, String name,
 			List<HtmlElement> elements) {
@@ -222,6 +402,11 @@ public class JGIOrganismPage {
 	}
 
 	private List<HtmlElement> getElementsByXPath(String xpath) {
+		return getElementsByXPath(page, xpath);
+	}
+
+	private static List<HtmlElement> getElementsByXPath(HtmlPage page,
+			String xpath) {
 		List<?> elements = page.getByXPath(xpath);
 		List<HtmlElement> ret = new LinkedList<HtmlElement>();
 		for (Object e: elements) {
@@ -245,50 +430,42 @@ public class JGIOrganismPage {
 		
 	}
 
-	private HtmlPage loadOrganismPage(URI jgiOrgPage, WebClient client,
-			String organismCode)
+	private HtmlPage loadOrganismPage(URI jgiOrgPage, final WebClient client,
+			String organismCode, final Deadline deadline)
 			throws Exception {
-		//This exception does not affect user experience or functionality
-		//at all and occurs rather frequently, so we ignore it
-		String acceptableExceptionContents =
-				"https://issues.jgi-psf.org/rest/collectors/1.0/configuration/trigger/4c7588ab?os_authType=none&callback=trigger_4c7588ab";
-		HtmlPage page = null;
-		while (page == null) {
+		// load in a new window so pages on the same client don't replace
+		// each other, e.g. while a push on the previous page completes
+		synchronized (client) {
+			window = client.openWindow(null, String.format("organism-%s-%s",
+					organismCode, WINDOWS.incrementAndGet()));
+			synchronized (OPEN_WINDOWS) {
+				OPEN_WINDOWS.add(window);
+			}
+		}
+		final WebRequest req =
+				new WebRequest(new URL(jgiOrgPage + organismCode));
+		/* some script errors don't affect the page at all and occur rather
+		 * frequently, so retry them. Callers that want other failures
+		 * retried, or a circuit breaker, wrap the page in a RetryPolicy.
+		 */
+		int attempt = 1;
+		while (true) {
+			deadline.check("fetching the organism page");
+			final WebWindow prev = ajax.setCurrentWindow(window);
 			try {
-				page = client.getPage(jgiOrgPage + organismCode);
+				return client.getPage(window, req);
 			} catch (ScriptException se) {
-				if (se.getMessage().contains(
-						acceptableExceptionContents)) {
-					System.out.println("Ignoring exception " + se);
-				} else {
+				if (attempt >= PAGE_LOAD_ATTEMPTS ||
+						RetryPolicy.classify(se) !=
+								Failure.TRANSIENT_SCRIPT_ERROR) {
 					throw se;
 				}
+				System.out.println("Ignoring exception " + se);
+				attempt++;
+			} finally {
+				ajax.setCurrentWindow(prev);
 			}
 		}
-		return page;
-	}
-	
-	private void signOnToJGI(HtmlPage signonPage, String user, String password)
-			throws IOException, MalformedURLException {
-		assertThat("Signon title ok", signonPage.getTitleText(),
-				is("JGI Single Sign On"));
-		try {
-			signonPage.getHtmlElementById("highlight-me");
-			fail("logged in already");
-		} catch (ElementNotFoundException enfe) {
-			//we're all good
-		}
-
-		//login form has no name, which is the only way to get a specific form
-		List<HtmlForm> forms = signonPage.getForms();
-		assertThat("1 form on login page", forms.size(), is(1));
-		HtmlForm form = forms.get(0);
-		form.getInputByName("login").setValueAttribute(user);
-		form.getInputByName("password").setValueAttribute(password);
-		HtmlPage loggedIn = form.getInputByName("commit").click();
-		HtmlDivision div = loggedIn.getHtmlElementById("highlight-me");
-		assertThat("signed in correctly", div.getTextContent().trim(),
-				is("You have signed in successfully."));
 	}
 	
 	/** Returns the url for an organism page.
@@ -307,21 +484,30 @@ public class JGIOrganismPage {
 		return organismCode;
 	}
 	
+	/** Returns how long each page readiness condition took to be met after
+	 * the organism page was fetched.
+	 * @return a mapping of readiness condition name to the time in
+	 * nanoseconds until the condition was met.
+	 */
+	public Map<String, Long> getReadinessTimings() {
+		return readinessNanos;
+	}
+	
 	/** Prints the contents of this web page as xml to standard out.
 	 * 
 	 */
-	public void printPageToStdout() {
+	public synchronized void printPageToStdout() {
 		System.out.println(page.asXml());
 	}
 	
 	/** Get the names of the first level filegroups in this page.
 	 * @return the names of the first level filegroups.
 	 */
-	public List<String> listFileGroups() {
+	public synchronized List<String> listFileGroups() {
 		List<?> filetree = page.getByXPath("//div[@class='rich-tree ']");
 		if (filetree.isEmpty()) {
-			System.out.println("No rich tree found in page. Current page:\n" +
-					page.asXml());
+			recordDiagnostic("No rich tree found in page",
+					xml("Current page:", page));
 			throw new TestException("No rich tree found in page");
 			
 		}
@@ -352,9 +538,26 @@ public class JGIOrganismPage {
 	 * sleeping.
 	 * @throws TimeoutException if a timeout occurs
 	 */
-	public List<String> listFiles(String fileGroup) 
+	public synchronized List<String> listFiles(String fileGroup) 
+			throws IOException, InterruptedException, TimeoutException {
+		return listFiles(fileGroup, Deadline.none());
+	}
+	
+	/** List the files in a file group within a time budget. This function
+	 * only works for top level filegroups.
+	 * @param fileGroup the name of the file group.
+	 * @param deadline the budget for the operation.
+	 * @return the list of files in the file group.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	public synchronized List<String> listFiles(
+			String fileGroup,
+			Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException {
-		DomElement fg = openFileGroup(fileGroup);
+		DomElement fg = openFileGroup(fileGroup, deadline);
 		List<HtmlElement> names = fg.getElementsByTagName("b");
 		List<String> ret = new LinkedList<String>();
 		for (HtmlElement he: names) {
@@ -370,7 +573,7 @@ public class JGIOrganismPage {
 	 * sleeping.
 	 * @throws TimeoutException if a timeout occurs
 	 */
-	public void selectFile(JGIFileLocation file)
+	public synchronized void selectFile(JGIFileLocation file)
 			throws IOException, InterruptedException, TimeoutException {
 		selectFile(file, true);
 	}
@@ -384,165 +587,505 @@ public class JGIOrganismPage {
 	 * sleeping.
 	 * @throws TimeoutException if a timeout occurs
 	 */
-	public void selectFile(JGIFileLocation file, boolean select)
+	public synchronized void selectFile(JGIFileLocation file, boolean select)
+			throws IOException, InterruptedException, TimeoutException {
+		selectFile(file, select, Deadline.none());
+	}
+	
+	/** Select or unselect a file on the organism page within a time budget.
+	 * @param file the file to select or unselect.
+	 * @param select true to select the file, false to unselect.
+	 * @param deadline the budget for the operation.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	public synchronized void selectFile(
+			JGIFileLocation file,
+			boolean select,
+			Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException {
 		//text element with the file group name
 		String selstr = select ? "Select" : "Unselect";
 		System.out.println(String.format("%sing file %s from group %s",
 				selstr, file.getFile(), file.getGroup()));
-		DomElement fileText = findFile(file);
-		
-		HtmlCheckBoxInput filetoggle = (HtmlCheckBoxInput)
-				((DomElement) fileText
-				.getParentNode() //i
-				.getParentNode() //a
-				.getParentNode() //span
-				.getParentNode()) //td
-				.getElementsByTagName("input").get(0);
+		final long start = System.nanoTime();
+		final long opening = groupOpenNanos;
+		if (!toggleFile(file, select, deadline)) {
+			return;
+		}
+		waitForServer(deadline); //every click gets sent to the server
+		verifySelection(Arrays.asList(file), select, deadline);
+		// opening the group is timed separately
+		timed(organismCode, Phase.SELECT,
+				start + groupOpenNanos - opening);
+		deadline.phase("select");
+		System.out.println(String.format("%sed file %s from group %s.",
+				selstr, file.getFile(), file.getGroup()));
+	}
+	
+	/** Select a set of files on the organism page. Each file group
+	 * containing the files is opened once, every checkbox is clicked, and
+	 * then the server is waited on once for the whole batch rather than
+	 * after every click. Each click is still sent to the server.
+	 * @param files the files to select.
+	 * @return the number of waits for the server saved compared to
+	 * selecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	public synchronized int selectFiles(Collection<JGIFileLocation> files)
+			throws IOException, InterruptedException, TimeoutException {
+		return selectFiles(files, true);
+	}
+	
+	/** Unselect all the files currently selected on the organism page,
+	 * waiting on the server once for the whole batch.
+	 * @return the number of waits for the server saved compared to
+	 * unselecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	public synchronized int clearSelection()
+			throws IOException, InterruptedException, TimeoutException {
+		return selectFiles(new LinkedList<JGIFileLocation>(selected), false,
+				Deadline.none());
+	}
+	
+	/** Select or unselect a set of files on the organism page. Each file
+	 * group containing the files is opened once, every checkbox that needs
+	 * changing is clicked, and then the server is waited on once for the
+	 * whole batch rather than after every click. Each click is still sent to
+	 * the server. Once the server is done the checkboxes are read again, and
+	 * if any file isn't in the requested state a SelectionException is
+	 * thrown.
+	 * @param files the files to select or unselect.
+	 * @param select true to select the files, false to unselect.
+	 * @return the number of waits for the server saved compared to
+	 * selecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	public synchronized int selectFiles(
+			Collection<JGIFileLocation> files,
+			boolean select)
+			throws IOException, InterruptedException, TimeoutException {
+		return selectFiles(files, select, Deadline.none());
+	}
+	
+	/** Select or unselect a set of files on the organism page within a time
+	 * budget, as {@link #selectFiles(Collection, boolean)}.
+	 * @param files the files to select or unselect.
+	 * @param select true to select the files, false to unselect.
+	 * @param deadline the budget for the operation.
+	 * @return the number of waits for the server saved compared to
+	 * selecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	public synchronized int selectFiles(
+			Collection<JGIFileLocation> files,
+			boolean select,
+			Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException {
+		String selstr = select ? "Select" : "Unselect";
+		Map<String, List<JGIFileLocation>> groups =
+				new LinkedHashMap<String, List<JGIFileLocation>>();
+		for (JGIFileLocation file: files) {
+			if (!groups.containsKey(file.getGroup())) {
+				groups.put(file.getGroup(), new LinkedList<JGIFileLocation>());
+			}
+			groups.get(file.getGroup()).add(file);
+		}
+		System.out.println(String.format(
+				"%sing %s files from %s groups at %s",
+				selstr, files.size(), groups.size(), new Date()));
+		long ajaxStart = ajax.getAjaxRequestCount(window);
+		final long start = System.nanoTime();
+		final long opening = groupOpenNanos;
+		int clicks = 0;
+		for (String group: groups.keySet()) {
+			openFileGroup(group, deadline);
+			for (JGIFileLocation file: groups.get(group)) {
+				if (toggleFile(file, select, deadline)) {
+					clicks++;
+				}
+			}
+		}
+		if (clicks < 1) {
+			return 0;
+		}
+		waitForServer(deadline);
+		verifySelection(files, select, deadline);
+		// opening the groups is timed separately
+		timed(organismCode, Phase.SELECT, start + groupOpenNanos - opening);
+		deadline.phase("select");
+		int saved = clicks - 1;
+		System.out.println(String.format(
+				"%sed %s files with %s AJAX requests at %s, saved %s waits for the server.",
+				selstr, clicks, ajax.getAjaxRequestCount(window) - ajaxStart,
+				new Date(), saved));
+		return saved;
+	}
+	
+	/* Reads the checkboxes again once the server has responded to the
+	 * clicks, which may have re-rendered them, and makes the record of the
+	 * selected files match the page. The server may have dropped or
+	 * reordered a toggle, in which case the selection differs from what
+	 * was clicked.
+	 */
+	private void verifySelection(Collection<JGIFileLocation> files,
+			boolean select, Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException {
+		final List<JGIFileLocation> wrong = new LinkedList<JGIFileLocation>();
+		for (JGIFileLocation file: files) {
+			final boolean checked = findFile(file, deadline).isChecked();
+			if (checked) {
+				selected.add(file);
+			} else {
+				selected.remove(file);
+			}
+			if (checked != select) {
+				wrong.add(file);
+			}
+		}
+		if (!wrong.isEmpty()) {
+			throw new SelectionException(String.format(
+					"Failed to %s %s of %s files on the page for %s: %s",
+					select ? "select" : "unselect", wrong.size(), files.size(),
+					organismCode, wrong));
+		}
+	}
+	
+	/* Returns true if the checkbox was clicked, false if the file was
+	 * already in the requested state. Does not wait for the server.
+	 * Records the file as selected or unselected on the assumption the click
+	 * takes effect, which verifySelection() checks.
+	 */
+	private boolean toggleFile(JGIFileLocation file, boolean select,
+			Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException {
+		HtmlCheckBoxInput filetoggle = findFile(file, deadline);
+		deadline.check("selecting files");
 		
 		if (select == filetoggle.isChecked()) {
-			return;
+			return false;
 		}
-		this.page = filetoggle.click();
+		setPage(click(filetoggle));
 		if (select) {
 			selected.add(file);
 		} else {
 			selected.remove(file);
 		}
-		waitForJS();
-		Thread.sleep(1000); //every click gets sent to the server
-		System.out.println(String.format("%sed file %s from group %s.",
-				selstr, file.getFile(), file.getGroup()));
+		return true;
 	}
 	
-	private DomElement findFile(JGIFileLocation file)
+	private HtmlCheckBoxInput findFile(JGIFileLocation file,
+			Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException {
-		DomElement fileGroup = openFileGroup(file.getGroup());
-		//this is ugly but it doesn't seem like there's another way
-		//to get the node
-		DomElement selGroup = null;
-		List<HtmlElement> bold = fileGroup.getElementsByTagName("b");
-		for (HtmlElement de: bold) {
-			if (file.getFile().equals(de.getTextContent())) {
-				selGroup = de;
-				break;
-			}
-		}
-		if (selGroup == null) {
+		openFileGroup(file.getGroup(), deadline);
+		HtmlCheckBoxInput filetoggle = index.getFileCheckBox(
+				file.getGroup(), file.getFile());
+		if (filetoggle == null) {
 			throw new NoSuchJGIFileException(String.format(
 					"There is no file %s in file group %s for the organism %s",
 					file.getFile(), file.getGroup(), organismCode));
 		}
-		return selGroup;
+		return filetoggle;
 	}
 
-	private DomElement openFileGroup(String group)
+	private DomElement openFileGroup(String group, Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException {
-		int timeoutSec = 60;
-		System.out.println(String.format("Opening file group %s at %s... ",
-				group, new Date()));
-		
-		DomElement fileGroupText = findFileGroup(group);
-		DomElement fileContainer = getFilesDivFromFilesGroup(
-				fileGroupText);
+		findFileGroup(group);
+		DomElement fileContainer = index.getGroupContainer(group);
 		
 		if (fileContainer.isDisplayed()) {
-			System.out.println(String.format("File group %s already open.",
-					group));
 			return fileContainer;
 		}
-		fileContainer = openClosedFileGroup(group, timeoutSec);
+		System.out.println(String.format("Opening file group %s at %s... ",
+				group, new Date()));
+		final long start = System.nanoTime();
+		fileContainer = openClosedFileGroup(
+				group, GROUP_OPEN_TIMEOUT_SEC, deadline);
+		groupOpenNanos += timed(organismCode, Phase.GROUP_OPEN, start) - start;
 		System.out.println(String.format("Opened file group %s at %s.",
 				group, new Date()));
+		deadline.phase("group open");
 		return fileContainer;
 	}
 
-	private DomElement openClosedFileGroup(String group, int timeoutSec)
+	private DomElement openClosedFileGroup(String group, int timeoutSec,
+			Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException {
-		DomElement fileGroupText = findFileGroup(group);
-		DomElement fileContainer = getFilesDivFromFilesGroup(
-				fileGroupText);
-		
-		final HtmlAnchor fileSetToggle = (HtmlAnchor) fileGroupText
-				.getParentNode() //td
-				.getPreviousSibling() //td folder icon
-				.getPreviousSibling() //td toggle icon
-				.getChildNodes().get(0) //div
-				.getChildNodes().get(0); //a
+		deadline.check("opening file group " + group);
+		final HtmlAnchor fileSetToggle = index.getGroupToggle(group);
 		
 		final String toggleDOM = fileSetToggle.asXml();
 		
-		this.page = fileSetToggle.click();
-		waitForJS();
-		Thread.sleep(1000); // wait for file group to open, requires a server call
+		setPage(click(fileSetToggle));
+		// the group contents are replaced when the group opens
+		index.invalidateGroup(group);
+		waitForServer(deadline); // wait for file group to open, requires a server call
 		
+		findFileGroup(group, toggleDOM);
+		DomElement fileContainer = index.getGroupContainer(group);
 		Long startNanos = System.nanoTime(); 
 		while (!fileContainer.isDisplayed()) {
-//			System.out.println("------------file group text--------------");
-//			System.out.println(fileGroupText.asXml());
-//			System.out.println("------------file container text--------------");
-//			System.out.println(fileContainer.asXml());
-//			System.out.println("----------------------");
-			fileGroupText = findFileGroup(group, toggleDOM);
-			fileContainer = getFilesDivFromFilesGroup(fileGroupText);
-			checkTimeout(startNanos, timeoutSec, String.format(
-					"Timed out waiting for file group %s to open after %s seconds, contents:\n%s",
-					group, timeoutSec, fileContainer.asXml()));
-			Thread.sleep(1000);
+			findFileGroup(group, toggleDOM);
+			fileContainer = index.getGroupContainer(group);
+			checkTimeout(startNanos, timeoutSec, deadline,
+					"waiting for file group " + group + " to open",
+					xml("File group contents:", fileContainer));
+			Thread.sleep(deadline.limit(1000));
 		}
 		return fileContainer;
 	}
 
-	/** Push the selected files to KBase.
+	/** Push the selected files to KBase. The phases of the push in the
+	 * receipt are click, dialog, result, close and clear. If a checkbox
+	 * doesn't come back unticked when the selection is cleared after the
+	 * push, that's logged rather than thrown.
+	 * @return the outcome of the push.
 	 * @throws IOException if an IO exception occurs.
 	 * @throws InterruptedException if this function is interrupted while
 	 * sleeping.
 	 * @throws TimeoutException if a timeout occurs
-	 * @throws PushException if the push fails
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push.
+	 * @throws PushRejectedException if the page rejects the push with an
+	 * alert, e.g. because no files are selected.
+	 */
+	public synchronized PushReceipt pushToKBase()
+			throws IOException, InterruptedException, TimeoutException,
+				PushException {
+		return pushToKBase(Deadline.none());
+	}
+
+	/** Push the selected files to KBase within a time budget, as
+	 * {@link #pushToKBase()}.
+	 * @param deadline the budget for the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if this function is interrupted while
+	 * sleeping.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push.
+	 * @throws PushRejectedException if the page rejects the push with an
+	 * alert, e.g. because no files are selected.
 	 */
-	public void pushToKBase()
+	public synchronized PushReceipt pushToKBase(Deadline deadline)
 			throws IOException, InterruptedException, TimeoutException,
 				PushException {
+		final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		return finishPush(phases, startPush(phases, deadline), deadline);
+	}
+
+	/** Push the selected files to KBase without waiting for the push to
+	 * complete. The push button is clicked before this method returns, and
+	 * waiting for the result dialog, closing it and clearing the selection
+	 * run on the executor. Don't use this page until the push completes.
+	 * @param executor the executor on which to complete the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push.
+	 * @throws PushRejectedException if the page rejects the push with an
+	 * alert while the push button is clicked.
+	 */
+	public synchronized Future<PushReceipt> pushToKBaseAsync(
+			ExecutorService executor)
+			throws IOException, PushException {
+		return pushToKBaseAsync(executor, Deadline.none());
+	}
+
+	/** Push the selected files to KBase within a time budget without
+	 * waiting for the push to complete, as
+	 * {@link #pushToKBaseAsync(ExecutorService)}. The budget covers the
+	 * whole push, including the part that runs on the executor.
+	 * @param executor the executor on which to complete the push.
+	 * @param deadline the budget for the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push.
+	 * @throws PushRejectedException if the page rejects the push with an
+	 * alert while the push button is clicked.
+	 */
+	public synchronized Future<PushReceipt> pushToKBaseAsync(
+			ExecutorService executor,
+			final Deadline deadline)
+			throws IOException, PushException {
+		final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+		final long start = startPush(phases, deadline);
+		return executor.submit(new Callable<PushReceipt>() {
+
+			@Override
+			public PushReceipt call() throws Exception {
+				synchronized (JGIOrganismPage.this) {
+					return finishPush(phases, start, deadline);
+				}
+			}
+		});
+	}
+
+	/* Clicks the push button and returns the time the click completed. */
+	private long startPush(Map<String, Long> phases, Deadline deadline)
+			throws IOException, PushException {
 		System.out.println(String.format("Pushing files to KBase at %s...",
 				new Date()));
+		long start = System.nanoTime();
 
 		List<?> pushlist =  page.getByXPath(
 				"//input[contains(@class, 'pushToKbaseClass')]");
-		assertThat("only 1 pushToKbaseClass", pushlist.size(), is(1));
+		if (pushlist.size() != 1) {
+			throw new PushException(String.format(
+					"Expected 1 push to KBase button, found %s",
+					pushlist.size()));
+		}
 		
 		HtmlInput push = (HtmlInput) pushlist.get(0);
 		
-		this.page = push.click();
-		// do not wait for JS here, hangs forever for some reason
-//		waitForJS();
+		// reinstall in case the client's alert handler was replaced
+		alerts = AlertWatcher.install(window.getWebClient());
+		alertsAtPush = alerts.getAlertCount(window);
+		setPage(click(push));
+		// do not wait for background JS here, hangs forever for some reason
+		checkPushRejected();
+		return phase(phases, "click", start, deadline, Phase.PUSH_CLICK);
+	}
 
-		checkPushedFiles();
-		closePushedFilesDialog(true);
-		Set<JGIFileLocation> fixconcurrent =
-				new HashSet<JGIFileLocation>(selected);
-		for (JGIFileLocation file: fixconcurrent) {
-			selectFile(file, false); //reset all toggles to unselected state
+	/* Throws an exception if an alert was raised since the push started. */
+	private void checkPushRejected() throws PushRejectedException {
+		final List<String> raised = alerts.getAlerts(window, alertsAtPush);
+		if (!raised.isEmpty()) {
+			final String msg = String.format(
+					"The page rejected the push with the alert: %s",
+					raised.get(0));
+			System.out.println(msg);
+			throw new PushRejectedException(msg, raised.get(0));
 		}
+	}
+
+	private PushReceipt finishPush(Map<String, Long> phases, long start,
+			Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException,
+				PushException {
+		waitForPtKBDialog(deadline);
+		start = phase(phases, "dialog", start, deadline, Phase.DIALOG_SHOWN);
+		final String error = waitForPtKBResult(deadline);
+		final Set<String> accepted = getPushedFileList("acceptedFiles");
+		final Set<String> rejected = getPushedFileList("rejectedFiles");
+		start = phase(phases, "result", start, deadline,
+				Phase.DIALOG_FILLED);
+		final PushReceipt receipt = new PushReceipt(organismCode, selected,
+				accepted, rejected, error, phases);
+		if (error == null && !receipt.isAsExpected()) {
+			System.out.println(String.format(
+					"Pushed files did not match the selection. Accepted: %s, rejected: %s",
+					accepted, rejected));
+			recordDiagnostic("Pushed files did not match the selection",
+					xml("KBase result dialog:", getKBaseResultDialog()));
+		}
+		closePushedFilesDialog(true, deadline);
+		start = phase(receipt, "close", start, deadline,
+				Phase.DIALOG_CLOSED);
+		//reset all toggles to unselected state
+		try {
+			selectFiles(new LinkedList<JGIFileLocation>(selected), false,
+					deadline);
+		} catch (SelectionException e) {
+			// the push has completed, so don't lose its receipt
+			System.out.println(String.format(
+					"Failed to clear the selection after the push at %s: %s",
+					new Date(), e.getMessage()));
+			recordDiagnostic("Failed to clear the selection after the push",
+					xml("Current page:", page));
+		}
+		// the selects report their own timings
+		phase(receipt, "clear", start, deadline, null);
 		System.out.println(String.format("Finished push to KBase at %s.",
 				new Date()));
+		return receipt;
+	}
+
+	/** Close the page's window. Don't use the page after closing it.
+	 */
+	public synchronized void close() {
+		if (window instanceof TopLevelWindow) {
+			synchronized (window.getWebClient()) {
+				((TopLevelWindow) window).close();
+				synchronized (OPEN_WINDOWS) {
+					OPEN_WINDOWS.remove(window);
+				}
+			}
+		}
+	}
+
+	/** Check whether a window belongs to an organism page that hasn't been
+	 * closed.
+	 * @param window the window.
+	 * @return true if the window belongs to an open page.
+	 */
+	static boolean isOpenPageWindow(WebWindow window) {
+		synchronized (OPEN_WINDOWS) {
+			return OPEN_WINDOWS.contains(window);
+		}
+	}
+
+	/* Records the time since start as a phase and returns the current time.
+	 * The phase is also recorded in the deadline's timing breakdown and, if
+	 * timing isn't null, reported to the timing listeners.
+	 */
+	private long phase(Map<String, Long> phases, String phase,
+			long start, Deadline deadline, Phase timing) {
+		final long now = endPhase(phase, start, deadline, timing);
+		phases.put(phase, now - start);
+		return now;
+	}
+
+	/* Records a phase that ran after the receipt was created. */
+	private long phase(PushReceipt receipt, String phase,
+			long start, Deadline deadline, Phase timing) {
+		final long now = endPhase(phase, start, deadline, timing);
+		receipt.addPhase(phase, now - start);
+		return now;
+	}
+
+	private long endPhase(String phase, long start, Deadline deadline,
+			Phase timing) {
+		final long now = timing == null ? System.nanoTime() :
+			timed(organismCode, timing, start);
+		deadline.phase("push " + phase);
+		return now;
 	}
 
-	private void closePushedFilesDialog(boolean failIfClosedNow)
-			throws IOException, InterruptedException {
+	private void closePushedFilesDialog(boolean failIfClosedNow,
+			Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException,
+				PushException {
 		HtmlElement resDialogDiv = (HtmlElement) page.getElementById(
 						"downloadForm:showFilesPushedToKbaseContentTable");
 		if (resDialogDiv == null) {
-			System.out.println("couldn't find div for post-push dialog. Page:");
-			System.out.println(page.asXml());
-			fail("The post-push dialog div is not in the page as expected");
+			recordDiagnostic("couldn't find div for post-push dialog",
+					xml("Current page:", page));
+			throw new PushException(
+					"The post-push dialog div is not in the page as expected");
 		}
-		if (failIfClosedNow) {
-			assertThat("result dialog open", resDialogDiv.isDisplayed(),
-					is(true));
-		} else {
-			if (!resDialogDiv.isDisplayed()) {
-				return;
+		if (!resDialogDiv.isDisplayed()) {
+			if (failIfClosedNow) {
+				throw new PushException("The post-push dialog is not open");
 			}
+			return;
 		}
 		HtmlElement modalFooter = getElementsByXPath(
 				"//div[@class='modal-footer']").get(0);
@@ -555,61 +1098,38 @@ public class JGIOrganismPage {
 //				.getChildNodes().get(2) //div
 //				.getFirstChild(); //input
 
-		page = ok.click();
-		Thread.sleep(2000);
+		deadline.check("closing the post-push dialog");
+		setPage(click(ok));
+		waitForServer(deadline);
 		
 		resDialogDiv = (HtmlElement) page.getElementById(
 						"downloadForm:showFilesPushedToKbaseContentTable");
-		assertThat("Dialog closed", resDialogDiv.isDisplayed(), is(false));
+		if (resDialogDiv.isDisplayed()) {
+			throw new PushException("The post-push dialog didn't close");
+		}
 	}
 
 	/** Get the workspace name associated with this organism page.
 	 * @param user the KBase username of the user that will push the files.
 	 * @return
 	 */
-	public String getWorkspaceName(String user) {
+	public synchronized String getWorkspaceName(String user) {
 		List<?> orgNames = page.getByXPath("//div[@class='organismName']");
-		assertThat("only 1 organismName class", orgNames.size(), is(1));
-		DomNode orgName = (DomNode) orgNames.get(0);
-		return orgName.getTextContent()
-				.replace(" ", "_")
-				.replace("-", "")
-				.replace(".", "")
-				.replace("/", "")
-				+ '_' + user;
-	}
-
-	private void checkPushedFiles()
-			throws InterruptedException, TimeoutException, PushException {
-		// make this configurable per test?
-		//may need to be longer for tape files
-		waitForPtKBResult();
-		Set<String> filesFound = getPushedFileList("acceptedFiles");
-		Set<String> filesRejected = getPushedFileList("rejectedFiles");
-		Set<String> filesExpected = new HashSet<String>();
-		Set<String> rejectedExpected = new HashSet<String>();
-		for (JGIFileLocation file: selected) {
-			if (file.isExpectedRejection()) {
-				rejectedExpected.add(file.getFile());
-			} else {
-				filesExpected.add(file.getFile());
-			}
+		if (orgNames.size() != 1) {
+			throw new IllegalStateException(String.format(
+					"Expected 1 organismName div, found %s", orgNames.size()));
 		}
-		
-		checkPushedFileSet("Expected", filesExpected, filesFound);
-		checkPushedFileSet("Expected rejected ", filesRejected,
-				rejectedExpected);
+		DomNode orgName = (DomNode) orgNames.get(0);
+		return JGIUtils.getWorkspaceName(orgName.getTextContent(), user);
 	}
 
-	private void waitForPtKBResult()
-			throws TimeoutException, InterruptedException, PushException {
-		waitForPtKBDialog();
-		
+	/* Returns the contents of the error div, or null if there's no error. */
+	private String waitForPtKBResult(Deadline deadline)
+			throws TimeoutException, InterruptedException {
 		/* this should happen almost immediately after the model shows up
 		 * the JGI JS code sets the modal visible and then fills in the
 		 * contents in the same fn
 		 */
-		int timeoutSec = 10;
 		HtmlElement accFilesDiv =
 				(HtmlElement) page.getElementById("acceptedKbaseFiles");
 		HtmlElement rejFilesDev =
@@ -619,47 +1139,33 @@ public class JGIOrganismPage {
 		Long startNanos = System.nanoTime();
 		while (!accFilesDiv.isDisplayed() && !rejFilesDev.isDisplayed() &&
 				!errDiv.isDisplayed()) {
-			checkTimeout(startNanos, timeoutSec, String.format(
-					"Timed out waiting for PtKB result dialog fill after %s seconds",
-					timeoutSec), "Dialog contents:\n" +
-					getKBaseResultDialog().asXml());
-			Thread.sleep(1000);
+			checkTimeout(startNanos, PTKB_RESULT_TIMEOUT_SEC, deadline,
+					"waiting for PtKB result dialog fill",
+					xml("Dialog contents:", getKBaseResultDialog()));
+			Thread.sleep(deadline.limit(1000));
 		}
-		Thread.sleep(1000); // the error div is hidden last, *after* the modal
+		Thread.sleep(deadline.limit(1000)); // the error div is hidden last, *after* the modal
 		// is displayed, so wait a sec to be sure it's hidden
 		if (errDiv.isDisplayed()) {
-			System.out.println("PtKB returned with error. Dialog contents:");
-			System.out.println(getKBaseResultDialog().asXml());
-			throw new PushException("PtKB returned with error. Error div contents:\n" +
-					errDiv.asXml());
+			recordDiagnostic("PtKB returned with error",
+					xml("Dialog contents:", getKBaseResultDialog()));
+			return errDiv.asXml();
 		}
+		return null;
 	}
 
-	private void waitForPtKBDialog()
-			throws TimeoutException, InterruptedException {
-		int timeoutSec = 60;
-		
+	private void waitForPtKBDialog(Deadline deadline)
+			throws TimeoutException, InterruptedException,
+				PushRejectedException {
 		DomNode modal = getKBaseResultDialog();
 		Long startNanos = System.nanoTime();
 		while (!modal.isDisplayed()) {
-			checkTimeout(startNanos, timeoutSec, String.format(
-					"Timed out waiting for PtKB result dialog after %s seconds",
-					timeoutSec), "Dialog contents:\n" +
-					getKBaseResultDialog().asXml());
-			Thread.sleep(1000);
-		}
-	}
-
-	private void checkPushedFileSet(String desc, Set<String> filesExpected,
-			Set<String> filesFound) {
-		if (!filesFound.equals(filesExpected)) {
-			System.out.println(desc + " files for push did not match actual:");
-			System.out.println("Expected: " + filesExpected);
-			System.out.println("Actual: " + filesFound);
-			System.out.println("KBase result dialog:");
-			System.out.println(getKBaseResultDialog().asXml());
-			fail(desc + " files for push did not match actual: " +
-					filesExpected + " vs. " + filesFound);
+			// the dialog never shows if the page rejects the push
+			checkPushRejected();
+			checkTimeout(startNanos, PTKB_DIALOG_TIMEOUT_SEC, deadline,
+					"waiting for PtKB result dialog",
+					xml("Dialog contents:", modal));
+			Thread.sleep(deadline.limit(1000));
 		}
 	}
 
@@ -683,45 +1189,37 @@ public class JGIOrganismPage {
 		return resDialogDiv.getParentNode(); //div modal-body
 	}
 
-	private DomElement getFilesDivFromFilesGroup(DomElement selGroup) {
-		return (DomElement) selGroup
-				.getParentNode() //td
-				.getParentNode() //tr
-				.getParentNode() //tbody
-				.getParentNode() //table
-				.getNextSibling(); //div below table
-	}
-
 	private DomElement findFileGroup(String group) {
 		return findFileGroup(group, null);
 	}
 	
-	private DomElement findFileGroup(String group, String toggleDOM) {
-		//this is ugly but it doesn't seem like there's another way
-		//to get the node
-		DomElement selGroup = null;
-		List<DomElement> bold = page.getElementsByTagName("b");
-		for (DomElement de: bold) {
-			if (group.equals(de.getTextContent())) {
-				selGroup = de;
-				break;
-			}
-		}
+	private DomElement findFileGroup(String group, final String toggleDOM) {
+		DomElement selGroup = index.getGroupText(group);
 		if (selGroup == null) {
-			System.out.println(String.format(
-					"There is no file group %s for the organism %s. Found %s bold tags at %s:",
-					group, organismCode, bold.size(), new Date()));
-			for (DomElement de: bold) {
-				System.out.println(de.asXml());
-			}
-			if (toggleDOM != null) {
-				System.out.println(
-						"DOM tree under toggle button prior to click:");
-				System.out.println(toggleDOM);
-			}
-			System.out.println("Current URL: " + page.getUrl());
-			System.out.println("Current page:");
-			System.out.println(page.asXml());
+			final HtmlPage page = this.page;
+			recordDiagnostic(String.format(
+					"There is no file group %s for the organism %s",
+					group, organismCode), new Diagnostic() {
+				
+				@Override
+				public String render() {
+					StringBuilder sb = new StringBuilder();
+					List<DomElement> bold = page.getElementsByTagName("b");
+					sb.append(String.format("Found %s bold tags:\n",
+							bold.size()));
+					for (DomElement de: bold) {
+						sb.append(de.asXml()).append("\n");
+					}
+					if (toggleDOM != null) {
+						sb.append("DOM tree under toggle button prior to click:\n");
+						sb.append(toggleDOM).append("\n");
+					}
+					sb.append("Current URL: " + page.getUrl() + "\n");
+					sb.append("Current page:\n");
+					sb.append(page.asXml());
+					return sb.toString();
+				}
+			});
 			throw new NoSuchJGIFileGroupException(String.format(
 					"There is no file group %s for the organism %s at %s",
 					group, organismCode, new Date()));
@@ -729,22 +1227,27 @@ public class JGIOrganismPage {
 		return selGroup;
 	}
 	
+	/* Throws if the step has run past its own timeout or the deadline has
+	 * expired. The activity reads like "waiting for X".
+	 */
 	private static void checkTimeout(Long startNanos, int timeoutSec,
-			String message) throws TimeoutException {
-		checkTimeout(startNanos, timeoutSec, message, null);
-	}
-	
-	private static void checkTimeout(Long startNanos, int timeoutSec,
-			String message, String printToStdOut)  //ugh
+			Deadline deadline, String activity, Diagnostic diagnostic)
 			throws TimeoutException {
-		if ((System.nanoTime() - startNanos) / 1000000000 > timeoutSec) {
+		if ((System.nanoTime() - startNanos) / 1000000000 > timeoutSec ||
+				deadline.isExpired()) {
+			final String message = String.format(
+					"Timed out %s after %s seconds", activity,
+					(System.nanoTime() - startNanos) / 1000000000);
 			System.out.println(message);
-			if (printToStdOut != null) {
-				System.out.println(printToStdOut);
+			if (diagnostic != null) {
+				recordDiagnostic(message, diagnostic);
 			}
-			throw new TimeoutException(message);
+			throw deadline.translate(activity, new TimeoutException(message));
 		}
-		
+	}
+	
+	private static void recordDiagnostic(String label, Diagnostic diagnostic) {
+		DiagnosticsRecorder.getDefault().record(label, diagnostic);
 	}
 	
 	@SuppressWarnings("serial")
@@ -763,6 +1266,17 @@ public class JGIOrganismPage {
 		}
 	}
 	
+	/** Thrown when a file's checkbox isn't in the requested state after
+	 * the server has responded to the clicks.
+	 */
+	@SuppressWarnings("serial")
+	public static class SelectionException extends RuntimeException {
+		
+		public SelectionException(String msg) {
+			super(msg);
+		}
+	}
+	
 	@SuppressWarnings("serial")
 	public static class TimeoutException extends Exception {
 		
@@ -776,7 +1290,7 @@ public class JGIOrganismPage {
 	}
 	
 	@SuppressWarnings("serial")
-	public class JGIPermissionsException extends Exception {
+	public static class JGIPermissionsException extends Exception {
 		
 		public JGIPermissionsException(String msg) {
 			super(msg);
@@ -784,10 +1298,31 @@ public class JGIOrganismPage {
 	}
 	
 	@SuppressWarnings("serial")
-	public class PushException extends Exception {
+	public static class PushException extends Exception {
 		
 		public PushException(String msg) {
 			super(msg);
 		}
 	}
+	
+	/** Thrown when the page rejects a push with an alert rather than sending
+	 * it to PtKB.
+	 */
+	@SuppressWarnings("serial")
+	public static class PushRejectedException extends PushException {
+		
+		private final String alert;
+		
+		public PushRejectedException(String msg, String alert) {
+			super(msg);
+			this.alert = alert;
+		}
+		
+		/** Returns the text of the alert that rejected the push.
+		 * @return the alert text.
+		 */
+		public String getAlert() {
+			return alert;
+		}
+	}
 }
@@ -0,0 +1,296 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+
+/** Saves JGI session cookies to disk so a later JVM can reuse a session
+ * rather than signing on again.
+ *
+ * Each user can have several saved sessions, one per client that was
+ * signed on, so that clients don't share a session. Each saved session is
+ * handed to at most one client at a time, including clients in other JVMs
+ * using the same directory, by holding a lock on a lock file next to the
+ * session while the session is in use. The locks are released when the
+ * session is invalidated or the JVM exits. The session files contain live
+ * session cookies and are only readable by their owner. Passwords are not
+ * saved.
+ *
+ * The default store is disabled unless the jgi.session.dir system property
+ * is set to the directory to store sessions in.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class JGISessionStore {
+
+	private static final String DIR_PROP = "jgi.session.dir";
+	private static final String JGI_DOMAIN = "jgi.doe.gov";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SLOT_SUFFIX = ".properties";
+	private static final String LOCK_SUFFIX = ".lock";
+
+	/* The default stores, by directory. */
+	private static final Map<File, JGISessionStore> STORES =
+			new HashMap<File, JGISessionStore>();
+
+	private final File dir;
+	/* The session slot each client is using. */
+	private final Map<WebClient, Claim> claimedBy =
+			new IdentityHashMap<WebClient, Claim>();
+	private final Set<File> claimed = new HashSet<File>();
+
+	/* A session slot in use, locked against other JVMs. */
+	private static class Claim {
+		private final File slot;
+		private final FileChannel channel;
+		private final FileLock lock;
+
+		private Claim(File slot, FileChannel channel, FileLock lock) {
+			this.slot = slot;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		private void release() {
+			try {
+				lock.release();
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(String.format(
+						"Failed to unlock JGI session %s: %s", slot, e));
+			}
+		}
+	}
+
+	/** Create a session store.
+	 * @param dir the directory in which to save sessions.
+	 */
+	public JGISessionStore(File dir) {
+		if (dir == null) {
+			throw new NullPointerException("dir");
+		}
+		this.dir = dir;
+	}
+
+	/** Get the session store configured by the jgi.session.dir system
+	 * property. The same store is returned for the same directory.
+	 * @return the store, or null if the property isn't set.
+	 */
+	public static synchronized JGISessionStore getDefault() {
+		final String prop = System.getProperty(DIR_PROP);
+		if (prop == null) {
+			return null;
+		}
+		final File dir = new File(prop).getAbsoluteFile();
+		JGISessionStore store = STORES.get(dir);
+		if (store == null) {
+			store = new JGISessionStore(dir);
+			STORES.put(dir, store);
+		}
+		return store;
+	}
+
+	private static String getPrefix(String user) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return String.format("session-%040x-",
+					new BigInteger(1, md.digest(user.getBytes(UTF8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 isn't available", e);
+		}
+	}
+
+	private File getSlot(String user, int slot) {
+		return new File(dir, getPrefix(user) + slot + SLOT_SUFFIX);
+	}
+
+	private List<File> getSavedSlots(String user) {
+		final String prefix = getPrefix(user);
+		final List<File> ret = new LinkedList<File>();
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f: files) {
+				if (f.getName().startsWith(prefix) &&
+						f.getName().endsWith(SLOT_SUFFIX)) {
+					ret.add(f);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/** Restore a saved session for a user to a web client, if a valid one
+	 * exists. Invalid saved sessions are deleted.
+	 * @param client the client, which should not be signed on.
+	 * @param user the JGI username.
+	 * @return true if the client is now signed on.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public boolean restore(WebClient client, String user) throws IOException {
+		for (File slot: getSavedSlots(user)) {
+			synchronized (this) {
+				if (!claim(client, slot)) {
+					continue;
+				}
+			}
+			final List<Cookie> cookies = read(slot);
+			final CookieManager cm = client.getCookieManager();
+			for (Cookie c: cookies) {
+				cm.addCookie(c);
+			}
+			if (JGISignOn.isSignedOn(client)) {
+				System.out.println(String.format(
+						"Restored JGI session for %s from %s at %s",
+						user, slot, new Date()));
+				return true;
+			}
+			for (Cookie c: cookies) {
+				cm.removeCookie(c);
+			}
+			invalidate(client);
+		}
+		return false;
+	}
+
+	/** Save a web client's JGI session.
+	 * @param client the signed on client.
+	 * @param user the JGI username.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public void save(WebClient client, String user) throws IOException {
+		final File slot;
+		synchronized (this) {
+			if (!claimedBy.containsKey(client)) {
+				for (int i = 0; !claim(client, getSlot(user, i)); i++) {}
+			}
+			slot = claimedBy.get(client).slot;
+		}
+		final Properties p = new Properties();
+		int i = 0;
+		for (Cookie c: client.getCookieManager().getCookies()) {
+			if (c.getDomain() == null || !c.getDomain().endsWith(JGI_DOMAIN)) {
+				continue;
+			}
+			final String prefix = "cookie." + i + ".";
+			p.setProperty(prefix + "name", c.getName());
+			p.setProperty(prefix + "value", c.getValue());
+			p.setProperty(prefix + "domain", c.getDomain());
+			if (c.getPath() != null) {
+				p.setProperty(prefix + "path", c.getPath());
+			}
+			if (c.getExpires() != null) {
+				p.setProperty(prefix + "expires", "" + c.getExpires().getTime());
+			}
+			p.setProperty(prefix + "secure", "" + c.isSecure());
+			p.setProperty(prefix + "httpOnly", "" + c.isHttpOnly());
+			i++;
+		}
+		// restrict access before writing the cookies
+		slot.createNewFile();
+		slot.setReadable(false, false);
+		slot.setWritable(false, false);
+		slot.setReadable(true, true);
+		slot.setWritable(true, true);
+		final OutputStream os = Files.newOutputStream(slot.toPath());
+		try {
+			p.store(os, "JGI session for " + user);
+		} finally {
+			os.close();
+		}
+	}
+
+	/** Delete the saved session used by a web client, for instance because
+	 * the session expired.
+	 * @param client the client.
+	 */
+	public void invalidate(WebClient client) {
+		synchronized (this) {
+			final Claim c = claimedBy.remove(client);
+			if (c == null) {
+				return;
+			}
+			c.slot.delete();
+			claimed.remove(c.slot);
+			c.release();
+		}
+	}
+
+	/* Returns false if the slot is in use by another client in this or
+	 * another JVM. Any slot the client had is given up.
+	 */
+	private boolean claim(WebClient client, File slot) throws IOException {
+		if (claimed.contains(slot)) {
+			return false;
+		}
+		Files.createDirectories(dir.toPath());
+		final File lockFile = new File(dir, slot.getName().substring(0,
+				slot.getName().length() - SLOT_SUFFIX.length()) + LOCK_SUFFIX);
+		final FileChannel channel =
+				new RandomAccessFile(lockFile, "rw").getChannel();
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// another store in this JVM has the slot
+			lock = null;
+		}
+		if (lock == null) {
+			channel.close();
+			return false;
+		}
+		final Claim old = claimedBy.put(client, new Claim(slot, channel, lock));
+		if (old != null) {
+			claimed.remove(old.slot);
+			old.release();
+		}
+		claimed.add(slot);
+		return true;
+	}
+
+	private static List<Cookie> read(File slot) throws IOException {
+		final Properties p = new Properties();
+		final InputStream is = Files.newInputStream(slot.toPath());
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+		final List<Cookie> ret = new LinkedList<Cookie>();
+		for (int i = 0; p.containsKey("cookie." + i + ".name"); i++) {
+			final String prefix = "cookie." + i + ".";
+			final String expires = p.getProperty(prefix + "expires");
+			ret.add(new Cookie(
+					p.getProperty(prefix + "domain"),
+					p.getProperty(prefix + "name"),
+					p.getProperty(prefix + "value"),
+					p.getProperty(prefix + "path"),
+					expires == null ? null : new Date(Long.parseLong(expires)),
+					Boolean.parseBoolean(p.getProperty(prefix + "secure")),
+					Boolean.parseBoolean(p.getProperty(prefix + "httpOnly"))));
+		}
+		return ret;
+	}
+}
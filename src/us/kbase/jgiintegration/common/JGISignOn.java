@@ -0,0 +1,274 @@
+package us.kbase.jgiintegration.common;
+
+import static us.kbase.jgiintegration.common.LightweightHtml.getElementById;
+import static us.kbase.jgiintegration.common.LightweightHtml.getElements;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.gargoylesoftware.htmlunit.ElementNotFoundException;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.html.HtmlDivision;
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/** Signs web clients on to JGI.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class JGISignOn {
+
+	final static String JGI_SIGN_ON = "https://signon.jgi.doe.gov/signon";
+	private final static String SIGNED_ON = "You have signed in successfully.";
+
+	/** How a web client signs on to JGI. */
+	public static enum SignOnMode {
+		/** Render the sign on page and submit its form, like a browser. */
+		BROWSER,
+		/** Post the sign on form with plain HTTP requests through the
+		 * client, so its cookie manager gets the session cookies. No page is
+		 * rendered and no scripts are run.
+		 */
+		LIGHTWEIGHT
+	}
+
+	private JGISignOn() {}
+
+	/** Sign a web client on to JGI by rendering the sign on page. The client
+	 * must not already be signed on.
+	 * @param client the client.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public static void signOn(WebClient client, String user, String password)
+			throws IOException {
+		signOn(client, user, password, SignOnMode.BROWSER);
+	}
+
+	/** Sign a web client on to JGI. The client must not already be signed
+	 * on.
+	 * @param client the client.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @param mode how to sign on.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public static void signOn(
+			WebClient client,
+			String user,
+			String password,
+			SignOnMode mode)
+			throws IOException {
+		if (mode == SignOnMode.LIGHTWEIGHT) {
+			signOnLightweight(client, user, password);
+			return;
+		}
+		HtmlPage signonPage = client.getPage(JGI_SIGN_ON);
+		if (!signonPage.getTitleText().equals("JGI Single Sign On")) {
+			throw new IOException("Unexpected JGI sign on page title: " +
+					signonPage.getTitleText());
+		}
+		try {
+			signonPage.getHtmlElementById("highlight-me");
+			throw new IllegalStateException("Already signed on to JGI");
+		} catch (ElementNotFoundException enfe) {
+			//we're all good
+		}
+
+		//login form has no name, which is the only way to get a specific form
+		List<HtmlForm> forms = signonPage.getForms();
+		if (forms.size() != 1) {
+			throw new IOException(String.format(
+					"Expected 1 form on the JGI sign on page, found %s",
+					forms.size()));
+		}
+		HtmlForm form = forms.get(0);
+		form.getInputByName("login").setValueAttribute(user);
+		form.getInputByName("password").setValueAttribute(password);
+		HtmlPage loggedIn = form.getInputByName("commit").click();
+		try {
+			HtmlDivision div = loggedIn.getHtmlElementById("highlight-me");
+			if (div.getTextContent().trim().equals(SIGNED_ON)) {
+				return;
+			}
+		} catch (ElementNotFoundException enfe) {
+			// fall through
+		}
+		throw new IOException("JGI sign on failed for user " + user);
+	}
+
+	/** Sign a web client on to JGI, reusing a saved session if possible.
+	 * If there's no valid saved session the client signs on and the new
+	 * session is saved.
+	 * @param client the client.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @param mode how to sign on if there's no saved session.
+	 * @param sessions the saved sessions, or null to always sign on.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public static void signOn(
+			WebClient client,
+			String user,
+			String password,
+			SignOnMode mode,
+			JGISessionStore sessions)
+			throws IOException {
+		if (sessions != null && sessions.restore(client, user)) {
+			return;
+		}
+		signOn(client, user, password, mode);
+		if (sessions != null) {
+			sessions.save(client, user);
+		}
+	}
+
+	private static void signOnLightweight(
+			WebClient client,
+			String user,
+			String password)
+			throws IOException {
+		final WebResponse r = load(client, new WebRequest(toURL(JGI_SIGN_ON)));
+		final URL signOnURL = r.getWebRequest().getUrl();
+		final Element form;
+		try {
+			form = getSignOnForm(LightweightHtml.parse(r.getContentAsString()));
+		} finally {
+			r.cleanUp();
+		}
+		final WebRequest post = new WebRequest(
+				new URL(signOnURL, form.getAttribute("action")),
+				HttpMethod.POST);
+		final List<com.gargoylesoftware.htmlunit.util.NameValuePair> params =
+				new LinkedList<com.gargoylesoftware.htmlunit.util.NameValuePair>();
+		for (NameValuePair nvp: getSignOnFields(form, user, password)) {
+			params.add(new com.gargoylesoftware.htmlunit.util.NameValuePair(
+					nvp.getName(), nvp.getValue()));
+		}
+		post.setRequestParameters(params);
+		post.setAdditionalHeader("Referer", signOnURL.toExternalForm());
+		final WebResponse loggedIn = load(client, post);
+		try {
+			checkSignedOn(LightweightHtml.parse(
+					loggedIn.getContentAsString()), user);
+		} finally {
+			loggedIn.cleanUp();
+		}
+	}
+
+	/* Follows redirects, so the response's request is the final request. */
+	private static WebResponse load(WebClient client, WebRequest request)
+			throws IOException {
+		final WebResponse r = client.loadWebResponse(request);
+		if (r.getStatusCode() != 200) {
+			r.cleanUp();
+			throw new IOException(String.format("%s %s returned %s %s",
+					request.getHttpMethod(), request.getUrl(),
+					r.getStatusCode(), r.getStatusMessage()));
+		}
+		return r;
+	}
+
+	private static URL toURL(String url) {
+		try {
+			return new URL(url);
+		} catch (MalformedURLException e) {
+			throw new RuntimeException("You big dummy", e);
+		}
+	}
+
+	/** Get the sign on form from the sign on page.
+	 * @param signOnPage the sign on page.
+	 * @return the form.
+	 * @throws IOException if the page doesn't have the expected form.
+	 */
+	static Element getSignOnForm(Document signOnPage) throws IOException {
+		if (getElementById(signOnPage, "highlight-me") != null) {
+			throw new IllegalStateException("Already signed on to JGI");
+		}
+		//login form has no name, which is the only way to get a specific form
+		final List<Element> forms = getElements(signOnPage, "form");
+		if (forms.size() != 1) {
+			throw new IOException(String.format(
+					"Expected 1 form on the JGI sign on page, found %s",
+					forms.size()));
+		}
+		return forms.get(0);
+	}
+
+	/** Get the fields to submit with the sign on form.
+	 * @param form the sign on form.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @return the names and values of the fields.
+	 */
+	static List<NameValuePair> getSignOnFields(
+			Element form,
+			String user,
+			String password) {
+		final List<NameValuePair> params = new LinkedList<NameValuePair>();
+		for (NameValuePair nvp: LightweightHtml.getFormFields(form)) {
+			if (!nvp.getName().equals("login") &&
+					!nvp.getName().equals("password")) {
+				params.add(nvp);
+			}
+		}
+		params.add(new BasicNameValuePair("login", user));
+		params.add(new BasicNameValuePair("password", password));
+		for (Element input: getElements(form, "input")) {
+			if (input.getAttribute("name").equals("commit")) {
+				params.add(new BasicNameValuePair("commit",
+						input.getAttribute("value")));
+			}
+		}
+		return params;
+	}
+
+	/** Check that the page returned by submitting the sign on form says the
+	 * user signed on.
+	 * @param loggedIn the page.
+	 * @param user the JGI username.
+	 * @throws IOException if the user didn't sign on.
+	 */
+	static void checkSignedOn(Document loggedIn, String user)
+			throws IOException {
+		final Element div = getElementById(loggedIn, "highlight-me");
+		if (div == null || !div.getTextContent().trim().equals(SIGNED_ON)) {
+			throw new IOException("JGI sign on failed for user " + user);
+		}
+	}
+
+	/** Check whether a web client is signed on to JGI. The sign on page is
+	 * fetched without rendering it or running its scripts, so this is cheap
+	 * enough to use as a session keep alive.
+	 * @param client the client.
+	 * @return true if the client is signed on.
+	 * @throws IOException if an IO exception occurs.
+	 */
+	public static boolean isSignedOn(WebClient client) throws IOException {
+		final WebResponse r = client.loadWebResponse(
+				new WebRequest(toURL(JGI_SIGN_ON)));
+		try {
+			if (r.getStatusCode() != 200) {
+				return false;
+			}
+			// the sign on page greets users that are already signed on
+			return getElementById(LightweightHtml.parse(
+					r.getContentAsString()), "highlight-me") != null;
+		} finally {
+			r.cleanUp();
+		}
+	}
+}
@@ -12,6 +12,10 @@ import us.kbase.common.service.JsonClientException;
 import us.kbase.common.service.Tuple2;
 import us.kbase.wipedev03.WipeDev03Client;
 
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
 public class JGIUtils {
 
 	/** Wipe the dev03 services' data (workspace & shock) and get a client
@@ -69,4 +73,41 @@ public class JGIUtils {
 		return files;
 	}
 	
+	/** Find a web connection of a particular type in the chain of web
+	 * connection wrappers installed on a web client.
+	 * @param client the web client to search.
+	 * @param clazz the class of the web connection to find.
+	 * @return the web connection, or null if there is no web connection of
+	 * that type installed on the client.
+	 */
+	public static <T extends WebConnection> T getWebConnectionWrapper(
+			WebClient client, Class<T> clazz) {
+		WebConnection wc = client.getWebConnection();
+		while (wc != null) {
+			if (clazz.isInstance(wc)) {
+				return clazz.cast(wc);
+			}
+			if (wc instanceof WebConnectionWrapper) {
+				wc = ((WebConnectionWrapper) wc).getWrappedWebConnection();
+			} else {
+				wc = null;
+			}
+		}
+		return null;
+	}
+	
+	/** Get the name of the workspace that files from an organism page are
+	 * pushed to.
+	 * @param organismName the organism name displayed on the organism page.
+	 * @param user the KBase username of the user that will push the files.
+	 * @return the workspace name.
+	 */
+	public static String getWorkspaceName(String organismName, String user) {
+		return organismName
+				.replace(" ", "_")
+				.replace("-", "")
+				.replace(".", "")
+				.replace("/", "")
+				+ '_' + user;
+	}
 }
@@ -0,0 +1,354 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.Arrays;
+
+/** A high dynamic range histogram of latencies in nanoseconds. Memory use
+ * is fixed when the histogram is created, regardless of the number of values
+ * recorded, and each recorded value is accurate to a fixed number of
+ * significant decimal digits. The maximum and minimum are exact.
+ *
+ * Values are counted in buckets that double in size, each split into the
+ * same number of sub buckets, as in Gil Tene's HdrHistogram.
+ *
+ * The histogram keeps a cumulative count of every value recorded, and can
+ * also return the values recorded in each interval, e.g. each minute of a
+ * run, for logging with {@link HistogramLog}. Histograms with the same
+ * settings can be merged.
+ *
+ * Instances are thread safe.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class LatencyHistogram {
+
+	/** The default highest trackable value, one hour. */
+	public static final long DEFAULT_HIGHEST_NANOS = 60L * 60 * 1000000000;
+	/** The default number of significant digits. */
+	public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+	private final long highestTrackableValue;
+	private final int significantDigits;
+	private final int subBucketHalfCountMagnitude;
+	private final int subBucketHalfCount;
+	private final long subBucketMask;
+	private final long[] counts;
+	private long totalCount = 0;
+	private long minValue = Long.MAX_VALUE;
+	private long maxValue = 0;
+	private long startTimeMillis;
+	private long endTimeMillis = 0;
+
+	// the counts at the end of the last interval
+	private long[] intervalStartCounts = null;
+	private long intervalMin = Long.MAX_VALUE;
+	private long intervalMax = 0;
+	private long intervalStartMillis;
+
+	/** Create a histogram that tracks values up to an hour to 2 significant
+	 * digits.
+	 */
+	public LatencyHistogram() {
+		this(DEFAULT_HIGHEST_NANOS, DEFAULT_SIGNIFICANT_DIGITS);
+	}
+
+	/** Create a histogram.
+	 * @param highestTrackableValue the highest value to track. Higher values
+	 * are counted as this value, although the maximum is still exact.
+	 * @param significantDigits the number of significant decimal digits to
+	 * which values are accurate, from 1 to 4.
+	 */
+	public LatencyHistogram(long highestTrackableValue, int significantDigits) {
+		if (significantDigits < 1 || significantDigits > 4) {
+			throw new IllegalArgumentException(
+					"significantDigits must be from 1 to 4");
+		}
+		final long largestExact = 2 * (long) Math.pow(10, significantDigits);
+		final int subBucketCountMagnitude =
+				(int) Math.ceil(Math.log(largestExact) / Math.log(2));
+		final long subBucketCount = 1L << subBucketCountMagnitude;
+		if (highestTrackableValue < subBucketCount) {
+			throw new IllegalArgumentException(
+					"highestTrackableValue must be >= " + subBucketCount);
+		}
+		this.highestTrackableValue = highestTrackableValue;
+		this.significantDigits = significantDigits;
+		subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+		subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+		subBucketMask = subBucketCount - 1;
+		// values below the sub bucket count are all in the first bucket
+		int buckets = 1;
+		long smallestUntrackable = subBucketCount;
+		while (smallestUntrackable <= highestTrackableValue) {
+			if (smallestUntrackable > Long.MAX_VALUE / 2) {
+				buckets++;
+				break;
+			}
+			smallestUntrackable <<= 1;
+			buckets++;
+		}
+		counts = new long[(buckets + 1) << subBucketHalfCountMagnitude];
+		startTimeMillis = System.currentTimeMillis();
+		intervalStartMillis = startTimeMillis;
+	}
+
+	/** Create an empty histogram with the same settings as another.
+	 * @param other the histogram to copy the settings from.
+	 */
+	public LatencyHistogram(LatencyHistogram other) {
+		this(other.highestTrackableValue, other.significantDigits);
+	}
+
+	private int getIndex(long value) {
+		final int pow2Ceiling =
+				64 - Long.numberOfLeadingZeros(value | subBucketMask);
+		final int bucketIndex = pow2Ceiling - (subBucketHalfCountMagnitude + 1);
+		final int subBucketIndex = (int) (value >>> bucketIndex);
+		return ((bucketIndex + 1) << subBucketHalfCountMagnitude) +
+				(subBucketIndex - subBucketHalfCount);
+	}
+
+	/* The highest value counted at an index. */
+	private long getHighestValue(int index) {
+		int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (subBucketHalfCount - 1)) +
+				subBucketHalfCount;
+		if (bucketIndex < 0) {
+			subBucketIndex -= subBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return ((long) subBucketIndex << bucketIndex) +
+				(1L << bucketIndex) - 1;
+	}
+
+	/** Record a value.
+	 * @param value the value, usually in nanoseconds. Negative values are
+	 * recorded as 0.
+	 */
+	public synchronized void recordValue(long value) {
+		value = Math.max(0, value);
+		counts[getIndex(Math.min(value, highestTrackableValue))]++;
+		totalCount++;
+		minValue = Math.min(minValue, value);
+		maxValue = Math.max(maxValue, value);
+		intervalMin = Math.min(intervalMin, value);
+		intervalMax = Math.max(intervalMax, value);
+	}
+
+	/** Add all the values recorded in another histogram to this one. The
+	 * histograms must have the same settings.
+	 * @param other the histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		if (other == this) {
+			throw new IllegalArgumentException(
+					"Can't add a histogram to itself");
+		}
+		final LatencyHistogram o = other.copy();
+		if (o.highestTrackableValue != highestTrackableValue ||
+				o.significantDigits != significantDigits) {
+			throw new IllegalArgumentException(
+					"Histograms with different settings can't be merged");
+		}
+		synchronized (this) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += o.counts[i];
+			}
+			totalCount += o.totalCount;
+			minValue = Math.min(minValue, o.minValue);
+			maxValue = Math.max(maxValue, o.maxValue);
+			intervalMin = Math.min(intervalMin, o.minValue);
+			intervalMax = Math.max(intervalMax, o.maxValue);
+			startTimeMillis = Math.min(startTimeMillis, o.startTimeMillis);
+			endTimeMillis = Math.max(endTimeMillis, o.endTimeMillis);
+		}
+	}
+
+	/** Returns a copy of this histogram.
+	 * @return the copy.
+	 */
+	public synchronized LatencyHistogram copy() {
+		final LatencyHistogram h = new LatencyHistogram(this);
+		System.arraycopy(counts, 0, h.counts, 0, counts.length);
+		h.totalCount = totalCount;
+		h.minValue = minValue;
+		h.maxValue = maxValue;
+		h.startTimeMillis = startTimeMillis;
+		h.endTimeMillis = endTimeMillis;
+		return h;
+	}
+
+	/** Returns the values recorded since the last call to this method, or
+	 * since the histogram was created. The cumulative counts are not
+	 * affected.
+	 * @return a histogram of the values recorded in the interval.
+	 */
+	public synchronized LatencyHistogram getIntervalHistogram() {
+		final LatencyHistogram h = new LatencyHistogram(this);
+		for (int i = 0; i < counts.length; i++) {
+			h.counts[i] = counts[i] -
+					(intervalStartCounts == null ? 0 : intervalStartCounts[i]);
+			h.totalCount += h.counts[i];
+		}
+		h.minValue = intervalMin;
+		h.maxValue = intervalMax;
+		h.startTimeMillis = intervalStartMillis;
+		h.endTimeMillis = System.currentTimeMillis();
+		intervalStartCounts = Arrays.copyOf(counts, counts.length);
+		intervalMin = Long.MAX_VALUE;
+		intervalMax = 0;
+		intervalStartMillis = h.endTimeMillis;
+		return h;
+	}
+
+	/** Returns the number of values recorded.
+	 * @return the count.
+	 */
+	public synchronized long getTotalCount() {
+		return totalCount;
+	}
+
+	/** Returns the largest value recorded.
+	 * @return the maximum, or 0 if no values were recorded.
+	 */
+	public synchronized long getMaxValue() {
+		return maxValue;
+	}
+
+	/** Returns the smallest value recorded.
+	 * @return the minimum, or 0 if no values were recorded.
+	 */
+	public synchronized long getMinValue() {
+		return totalCount == 0 ? 0 : minValue;
+	}
+
+	/** Returns the mean of the values recorded, to the histogram's
+	 * precision.
+	 * @return the mean, or 0 if no values were recorded.
+	 */
+	public synchronized double getMean() {
+		if (totalCount == 0) {
+			return 0;
+		}
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				sum += counts[i] * (double) Math.min(
+						getHighestValue(i), maxValue);
+			}
+		}
+		return sum / totalCount;
+	}
+
+	/** Returns a percentile of the values recorded. The value returned is
+	 * the highest value that's equivalent, to the histogram's precision, to
+	 * the value at the percentile, and is never more than the maximum.
+	 * @param percentile the percentile, from 0 to 100.
+	 * @return the value at the percentile, or 0 if no values were recorded.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException(
+					"percentile must be between 0 and 100");
+		}
+		if (totalCount == 0) {
+			return 0;
+		}
+		// nearest rank
+		final long rank = Math.max(1,
+				(long) Math.ceil(percentile / 100 * totalCount));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getHighestValue(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	/** Returns the start of the period the histogram covers, in milliseconds
+	 * since the epoch.
+	 * @return the start time.
+	 */
+	public synchronized long getStartTimeMillis() {
+		return startTimeMillis;
+	}
+
+	/** Returns the end of the period the histogram covers, in milliseconds
+	 * since the epoch.
+	 * @return the end time, or 0 if the histogram is still recording.
+	 */
+	public synchronized long getEndTimeMillis() {
+		return endTimeMillis;
+	}
+
+	/** Returns a one line summary of the histogram with the count, the p50,
+	 * p90, p99 and p99.9 percentiles, and the maximum.
+	 * @param unitNanos the unit of the values in the summary in
+	 * nanoseconds, e.g. 1000000 for milliseconds.
+	 * @param unitName the name of the unit, e.g. "ms".
+	 * @return the summary.
+	 */
+	public synchronized String summarize(long unitNanos, String unitName) {
+		final double u = unitNanos;
+		return String.format(
+				"count=%s p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f %s",
+				totalCount, getValueAtPercentile(50) / u,
+				getValueAtPercentile(90) / u, getValueAtPercentile(99) / u,
+				getValueAtPercentile(99.9) / u, maxValue / u, unitName);
+	}
+
+	/** Encode the histogram as a single line of text. Only the non zero
+	 * counts are included.
+	 * @return the encoded histogram.
+	 * @see #decode(String)
+	 */
+	public synchronized String encode() {
+		final StringBuilder sb = new StringBuilder(String.format(
+				"%s,%s,%s,%s,%s,%s,%s,", startTimeMillis,
+				endTimeMillis == 0 ?
+						System.currentTimeMillis() : endTimeMillis,
+				highestTrackableValue, significantDigits, getMinValue(),
+				maxValue, totalCount));
+		String sep = "";
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				sb.append(sep).append(i).append(":").append(counts[i]);
+				sep = " ";
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Decode a histogram encoded by {@link #encode()}.
+	 * @param encoded the encoded histogram.
+	 * @return the histogram.
+	 */
+	public static LatencyHistogram decode(String encoded) {
+		final String[] parts = encoded.trim().split(",", -1);
+		if (parts.length != 8) {
+			throw new IllegalArgumentException(
+					"Not an encoded histogram: " + encoded);
+		}
+		final LatencyHistogram h = new LatencyHistogram(
+				Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+		h.startTimeMillis = Long.parseLong(parts[0]);
+		h.endTimeMillis = Long.parseLong(parts[1]);
+		h.totalCount = Long.parseLong(parts[6]);
+		h.minValue = h.totalCount == 0 ?
+				Long.MAX_VALUE : Long.parseLong(parts[4]);
+		h.maxValue = Long.parseLong(parts[5]);
+		if (!parts[7].isEmpty()) {
+			for (String c: parts[7].split(" ")) {
+				final String[] ic = c.split(":");
+				h.counts[Integer.parseInt(ic[0])] = Long.parseLong(ic[1]);
+			}
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [" + summarize(1000000, "ms") + "]";
+	}
+}
@@ -0,0 +1,223 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.cyberneko.html.parsers.DOMParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/** Helpers for parsing HTML into a plain DOM, without any layout or
+ * JavaScript, and finding elements in it. Element names are lower case.
+ * @author gaprice@lbl.gov
+ *
+ */
+final class LightweightHtml {
+
+	private LightweightHtml() {}
+
+	/** Parse an HTML document.
+	 * @param html the HTML.
+	 * @return the document.
+	 * @throws IOException if the HTML can't be parsed.
+	 */
+	static Document parse(String html) throws IOException {
+		final DOMParser parser = new DOMParser();
+		try {
+			// a plain DOM, so nodes can be moved between documents
+			parser.setProperty(
+					"http://apache.org/xml/properties/dom/document-class-name",
+					"org.apache.xerces.dom.DocumentImpl");
+			parser.setFeature("http://xml.org/sax/features/namespaces", false);
+			parser.setProperty(
+					"http://cyberneko.org/html/properties/names/elems",
+					"lower");
+			parser.parse(new InputSource(new StringReader(html)));
+		} catch (SAXException e) {
+			throw new IOException("Couldn't parse HTML: " + e.getMessage(),
+					e);
+		}
+		return parser.getDocument();
+	}
+
+	/** Get an element by its id.
+	 * @param root the node to search under.
+	 * @param id the id of the element.
+	 * @return the element, or null if there's no such element.
+	 */
+	static Element getElementById(Node root, String id) {
+		if (root instanceof Element &&
+				id.equals(((Element) root).getAttribute("id"))) {
+			return (Element) root;
+		}
+		for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+			final Element e = getElementById(n, id);
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/** Get all the elements with a tag name, in document order.
+	 * @param root the node to search under.
+	 * @param tag the lower case tag name.
+	 * @return the elements.
+	 */
+	static List<Element> getElements(Node root, String tag) {
+		final List<Element> ret = new LinkedList<Element>();
+		final NodeList nl = root instanceof Document ?
+				((Document) root).getElementsByTagName(tag) :
+				((Element) root).getElementsByTagName(tag);
+		for (int i = 0; i < nl.getLength(); i++) {
+			ret.add((Element) nl.item(i));
+		}
+		return ret;
+	}
+
+	/** Get all the elements with a tag name that have a CSS class.
+	 * @param root the node to search under.
+	 * @param tag the lower case tag name.
+	 * @param cssClass the class.
+	 * @return the elements.
+	 */
+	static List<Element> getElementsByClass(Node root, String tag,
+			String cssClass) {
+		final List<Element> ret = new LinkedList<Element>();
+		for (Element e: getElements(root, tag)) {
+			if (hasClass(e, cssClass)) {
+				ret.add(e);
+			}
+		}
+		return ret;
+	}
+
+	/** Check whether an element has a CSS class.
+	 * @param e the element.
+	 * @param cssClass the class.
+	 * @return true if the element's class attribute contains the class.
+	 */
+	static boolean hasClass(Element e, String cssClass) {
+		for (String c: e.getAttribute("class").split("\\s+")) {
+			if (c.equals(cssClass)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Get the closest ancestor of a node with a tag name.
+	 * @param node the node.
+	 * @param tag the lower case tag name.
+	 * @return the ancestor, or null if there's no such ancestor.
+	 */
+	static Element getAncestor(Node node, String tag) {
+		for (Node n = node.getParentNode(); n != null; n = n.getParentNode()) {
+			if (n instanceof Element &&
+					tag.equals(n.getNodeName().toLowerCase())) {
+				return (Element) n;
+			}
+		}
+		return null;
+	}
+
+	/** Get the element children of a node, skipping text and comments.
+	 * @param node the node.
+	 * @return the child elements.
+	 */
+	static List<Element> getChildElements(Node node) {
+		final List<Element> ret = new LinkedList<Element>();
+		for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n instanceof Element) {
+				ret.add((Element) n);
+			}
+		}
+		return ret;
+	}
+
+	/** Get the next element sibling of a node, skipping text and comments.
+	 * @param node the node.
+	 * @return the next element, or null if there is none.
+	 */
+	static Element getNextElement(Node node) {
+		for (Node n = node.getNextSibling(); n != null; n = n.getNextSibling()) {
+			if (n instanceof Element) {
+				return (Element) n;
+			}
+		}
+		return null;
+	}
+
+	/** Check whether an element is hidden by an inline display: none style
+	 * on it or one of its ancestors. Stylesheets aren't considered.
+	 * @param e the element.
+	 * @return true if the element is hidden.
+	 */
+	static boolean isHidden(Element e) {
+		for (Node n = e; n instanceof Element; n = n.getParentNode()) {
+			final String style = ((Element) n).getAttribute("style")
+					.replace(" ", "").toLowerCase();
+			if (style.contains("display:none")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Get the fields a browser would submit with a form, excluding buttons.
+	 * @param form the form.
+	 * @return the names and values of the fields.
+	 */
+	static List<NameValuePair> getFormFields(Element form) {
+		final List<NameValuePair> ret = new LinkedList<NameValuePair>();
+		for (Element input: getElements(form, "input")) {
+			final String name = input.getAttribute("name");
+			final String type = input.getAttribute("type").toLowerCase();
+			if (name.isEmpty() || type.equals("submit") ||
+					type.equals("button") || type.equals("image") ||
+					type.equals("reset") || type.equals("file")) {
+				continue;
+			}
+			if (type.equals("checkbox") || type.equals("radio")) {
+				if (input.hasAttribute("checked")) {
+					ret.add(new BasicNameValuePair(name,
+							input.hasAttribute("value") ?
+									input.getAttribute("value") : "on"));
+				}
+			} else {
+				ret.add(new BasicNameValuePair(name,
+						input.getAttribute("value")));
+			}
+		}
+		for (Element select: getElements(form, "select")) {
+			final String name = select.getAttribute("name");
+			final List<Element> options = getElements(select, "option");
+			if (name.isEmpty() || options.isEmpty()) {
+				continue;
+			}
+			Element opt = options.get(0);
+			for (Element o: options) {
+				if (o.hasAttribute("selected")) {
+					opt = o;
+				}
+			}
+			ret.add(new BasicNameValuePair(name, opt.hasAttribute("value") ?
+					opt.getAttribute("value") : opt.getTextContent()));
+		}
+		for (Element ta: getElements(form, "textarea")) {
+			if (!ta.getAttribute("name").isEmpty()) {
+				ret.add(new BasicNameValuePair(ta.getAttribute("name"),
+						ta.getTextContent()));
+			}
+		}
+		return ret;
+	}
+}
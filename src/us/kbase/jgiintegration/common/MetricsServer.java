@@ -0,0 +1,220 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A small embedded HTTP server that publishes metrics at /metrics in the
+ * Prometheus text exposition format, so that long running tests can be
+ * watched, scraped and aborted early. The metrics are collected from a
+ * {@link Source} on each request. By default the server only listens on the
+ * loopback interface, since the metrics are not authenticated.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class MetricsServer {
+
+	private static final String CONTENT_TYPE =
+			"text/plain; version=0.0.4; charset=utf-8";
+
+	/** Collects the current metrics when the endpoint is scraped. Sources
+	 * are called on the server's thread, so they must be thread safe.
+	 */
+	public static interface Source {
+
+		/** Add the current metrics to an exposition.
+		 * @param metrics the exposition.
+		 */
+		void collect(Exposition metrics);
+	}
+
+	/** Builds metrics in the Prometheus text exposition format. */
+	public static class Exposition {
+
+		private final StringBuilder sb = new StringBuilder();
+
+		/** Start a metric family. Add the family's samples next.
+		 * @param name the metric name.
+		 * @param type the metric type, e.g. counter, gauge or summary.
+		 * @param help a description of the metric.
+		 * @return this exposition.
+		 */
+		public Exposition family(String name, String type, String help) {
+			sb.append("# HELP ").append(name).append(" ")
+					.append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+					.append("\n");
+			sb.append("# TYPE ").append(name).append(" ").append(type)
+					.append("\n");
+			return this;
+		}
+
+		/** Add a sample.
+		 * @param name the sample name.
+		 * @param value the value.
+		 * @param labels label names and values, alternating.
+		 * @return this exposition.
+		 */
+		public Exposition sample(String name, double value, String... labels) {
+			if (labels.length % 2 != 0) {
+				throw new IllegalArgumentException(
+						"labels must be name value pairs");
+			}
+			sb.append(name);
+			for (int i = 0; i < labels.length; i += 2) {
+				sb.append(i == 0 ? "{" : ",").append(labels[i]).append("=\"")
+						.append(labels[i + 1].replace("\\", "\\\\")
+								.replace("\"", "\\\"").replace("\n", "\\n"))
+						.append("\"");
+			}
+			if (labels.length > 0) {
+				sb.append("}");
+			}
+			sb.append(" ");
+			if (value == Math.rint(value) && !Double.isInfinite(value)) {
+				sb.append((long) value);
+			} else {
+				sb.append(value);
+			}
+			sb.append("\n");
+			return this;
+		}
+
+		/** Add the samples of a summary: the p50, p90, p99 and p99.9
+		 * quantiles, the sum, and the count. Start the summary's family with
+		 * {@link #family(String, String, String)} first.
+		 * @param name the summary name.
+		 * @param histogram the recorded values in nanoseconds.
+		 * @param unitNanos the unit of the summary in nanoseconds, e.g.
+		 * 1000000000 for seconds.
+		 * @param labels label names and values, alternating.
+		 * @return this exposition.
+		 */
+		public Exposition summary(String name, LatencyHistogram histogram,
+				double unitNanos, String... labels) {
+			final LatencyHistogram h = histogram.copy();
+			for (String q: new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+				final String[] l = new String[labels.length + 2];
+				System.arraycopy(labels, 0, l, 0, labels.length);
+				l[labels.length] = "quantile";
+				l[labels.length + 1] = q;
+				sample(name, h.getValueAtPercentile(
+						Double.parseDouble(q) * 100) / unitNanos, l);
+			}
+			sample(name + "_sum",
+					h.getMean() * h.getTotalCount() / unitNanos, labels);
+			sample(name + "_count", h.getTotalCount(), labels);
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return sb.toString();
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/** Create and start a metrics server listening on the loopback
+	 * interface.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @param source the source of the metrics.
+	 * @throws IOException if the server can't be started, e.g. if the port
+	 * is in use.
+	 */
+	public MetricsServer(int port, Source source) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port, source);
+	}
+
+	/** Create and start a metrics server.
+	 * @param address the address to listen on. Pass the wildcard address
+	 * to listen on all interfaces, which exposes the metrics to the network.
+	 * @param port the port to listen on, or 0 for any free port.
+	 * @param source the source of the metrics.
+	 * @throws IOException if the server can't be started, e.g. if the port
+	 * is in use.
+	 */
+	public MetricsServer(InetAddress address, int port, final Source source)
+			throws IOException {
+		if (address == null) {
+			throw new NullPointerException("address");
+		}
+		if (source == null) {
+			throw new NullPointerException("source");
+		}
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					final Exposition e = new Exposition();
+					source.collect(e);
+					final byte[] body =
+							e.toString().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set(
+							"Content-Type", CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					final OutputStream os = exchange.getResponseBody();
+					try {
+						os.write(body);
+					} finally {
+						os.close();
+					}
+				} catch (RuntimeException e) {
+					System.out.println("Failed to collect metrics: " + e);
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		// don't keep the JVM running if the caller forgets to stop the server
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "metrics-server");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		System.out.println(String.format("Serving metrics at %s at %s",
+				getURL(), new Date()));
+	}
+
+	/** Returns the port the server is listening on.
+	 * @return the port.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** Returns the URL of the metrics endpoint.
+	 * @return the URL.
+	 */
+	public String getURL() {
+		final InetAddress a = server.getAddress().getAddress();
+		final String host = a.isLoopbackAddress() || a.isAnyLocalAddress() ?
+				"localhost" : a.getHostAddress();
+		return "http://" + host + ":" + getPort() + "/metrics";
+	}
+
+	/** Stop the server. */
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,190 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+import com.gargoylesoftware.htmlunit.html.DomChangeEvent;
+import com.gargoylesoftware.htmlunit.html.DomChangeListener;
+import com.gargoylesoftware.htmlunit.html.HtmlAttributeChangeEvent;
+import com.gargoylesoftware.htmlunit.html.HtmlAttributeChangeListener;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/** Waits for a set of readiness conditions on a page to be met, driven by
+ * DOM mutation notifications rather than fixed sleeps.
+ *
+ * The DOM listeners only mark the page as changed and wake the waiting
+ * thread, so the (potentially expensive) conditions are evaluated on the
+ * waiting thread rather than on the JavaScript thread that mutated the DOM.
+ * A short fallback poll catches any state change that isn't reflected in a
+ * DOM mutation event.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class PageReadinessWatcher {
+
+	/* How often to re-check the conditions if no DOM mutations occur. */
+	private static final long FALLBACK_POLL_MS = 500;
+
+	/** A condition that must be met for a page to be considered ready. */
+	public interface ReadinessCondition {
+
+		/** Returns the name of the condition, used for logging and timing.
+		 * @return the name of the condition.
+		 */
+		String getName();
+
+		/** Check whether the condition is met.
+		 * @param page the page to check.
+		 * @return true if the condition is met.
+		 */
+		boolean isMet(HtmlPage page);
+	}
+
+	private final HtmlPage page;
+	private final Object lock = new Object();
+	private boolean changed = true;
+	private final MutationListener listener = new MutationListener();
+
+	/** Create a watcher for a page. The watcher starts listening for DOM
+	 * mutations immediately.
+	 * @param page the page to watch.
+	 */
+	public PageReadinessWatcher(HtmlPage page) {
+		this.page = page;
+		page.addDomChangeListener(listener);
+		page.addHtmlAttributeChangeListener(listener);
+	}
+
+	/** Stop listening for DOM mutations. */
+	public void close() {
+		page.removeDomChangeListener(listener);
+		page.removeHtmlAttributeChangeListener(listener);
+	}
+
+	/** Wait for all the conditions to be met.
+	 * @param timeoutSec the maximum time to wait for all the conditions, in
+	 * seconds.
+	 * @param conditions the conditions to wait for.
+	 * @return a mapping of condition name to the time, in nanoseconds, from
+	 * the start of the wait until the condition was first observed to be
+	 * met. Ordered by the order in which the conditions were met.
+	 * @throws InterruptedException if the wait is interrupted.
+	 * @throws TimeoutException if the conditions aren't met within the
+	 * timeout.
+	 */
+	public Map<String, Long> await(
+			int timeoutSec,
+			List<ReadinessCondition> conditions)
+			throws InterruptedException, TimeoutException {
+		return await(timeoutSec, conditions, Deadline.none());
+	}
+
+	/** Wait for all the conditions to be met, waiting no longer than the
+	 * remaining budget of a deadline.
+	 * @param timeoutSec the maximum time to wait for all the conditions, in
+	 * seconds.
+	 * @param conditions the conditions to wait for.
+	 * @param budget the deadline of the operation that's waiting.
+	 * @return a mapping of condition name to the time, in nanoseconds, from
+	 * the start of the wait until the condition was first observed to be
+	 * met. Ordered by the order in which the conditions were met.
+	 * @throws InterruptedException if the wait is interrupted.
+	 * @throws TimeoutException if the conditions aren't met within the
+	 * timeout or the deadline expires.
+	 */
+	public Map<String, Long> await(
+			int timeoutSec,
+			List<ReadinessCondition> conditions,
+			Deadline budget)
+			throws InterruptedException, TimeoutException {
+		final long timeoutMillis = budget.limit(timeoutSec * 1000L);
+		final long startNanos = System.nanoTime();
+		final long deadline = startNanos + timeoutMillis * 1000000L;
+		final List<ReadinessCondition> pending =
+				new LinkedList<ReadinessCondition>(conditions);
+		final Map<String, Long> met = new LinkedHashMap<String, Long>();
+		while (true) {
+			synchronized (lock) {
+				changed = false;
+			}
+			final List<ReadinessCondition> done =
+					new LinkedList<ReadinessCondition>();
+			for (ReadinessCondition c: pending) {
+				if (c.isMet(page)) {
+					final long elapsed = System.nanoTime() - startNanos;
+					met.put(c.getName(), elapsed);
+					done.add(c);
+					System.out.println(String.format(
+							"%s ready after %s ms at %s", c.getName(),
+							elapsed / 1000000, new Date()));
+				}
+			}
+			pending.removeAll(done);
+			if (pending.isEmpty()) {
+				return Collections.unmodifiableMap(met);
+			}
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				final List<String> names = new LinkedList<String>();
+				for (ReadinessCondition c: pending) {
+					names.add(c.getName());
+				}
+				final String msg = String.format(
+						"Timed out waiting for %s to load after %s ms.",
+						names, timeoutMillis);
+				System.out.println(msg);
+				throw budget.translate("waiting for " + names + " to load",
+						new TimeoutException(msg));
+			}
+			synchronized (lock) {
+				if (!changed) {
+					lock.wait(Math.max(1, Math.min(FALLBACK_POLL_MS,
+							remaining / 1000000)));
+				}
+			}
+		}
+	}
+
+	private void signalChange() {
+		synchronized (lock) {
+			changed = true;
+			lock.notifyAll();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class MutationListener
+			implements DomChangeListener, HtmlAttributeChangeListener {
+
+		@Override
+		public void nodeAdded(DomChangeEvent event) {
+			signalChange();
+		}
+
+		@Override
+		public void nodeDeleted(DomChangeEvent event) {
+			signalChange();
+		}
+
+		@Override
+		public void attributeAdded(HtmlAttributeChangeEvent event) {
+			signalChange();
+		}
+
+		@Override
+		public void attributeRemoved(HtmlAttributeChangeEvent event) {
+			signalChange();
+		}
+
+		@Override
+		public void attributeReplaced(HtmlAttributeChangeEvent event) {
+			signalChange();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package us.kbase.jgiintegration.common;
+
+/** Receives the time each phase of an operation on an organism page took.
+ * Register listeners with
+ * {@link JGIOrganismPage#addTimingListener(PageTimingListener)}.
+ *
+ * Listeners are called synchronously on the thread operating the page, and
+ * possibly from several threads at once, so they must be thread safe and
+ * quick.
+ * @author gaprice@lbl.gov
+ *
+ */
+public interface PageTimingListener {
+
+	/** The timed phases of the operations on an organism page. */
+	public static enum Phase {
+		/** Signing on to JGI. */
+		SIGN_ON,
+		/** Fetching the organism page and running its scripts. */
+		INITIAL_FETCH,
+		/** Waiting for the page's file tree and buttons to be displayed. */
+		DOM_READY,
+		/** Waiting for the page's server requests and scripts to finish. */
+		JS_QUIESCENT,
+		/** Opening a closed file group. */
+		GROUP_OPEN,
+		/** Selecting or unselecting a file, or a batch of files, including
+		 * waiting for the server.
+		 */
+		SELECT,
+		/** Clicking the push to KBase button. */
+		PUSH_CLICK,
+		/** Waiting for the push result dialog to be shown. */
+		DIALOG_SHOWN,
+		/** Waiting for the push result dialog to be filled in. */
+		DIALOG_FILLED,
+		/** Closing the push result dialog. */
+		DIALOG_CLOSED
+	}
+
+	/** Called when a phase completes successfully.
+	 * @param organismCode the organism code of the page.
+	 * @param phase the phase.
+	 * @param nanos how long the phase took in nanoseconds.
+	 */
+	void phaseCompleted(String organismCode, Phase phase, long nanos);
+}
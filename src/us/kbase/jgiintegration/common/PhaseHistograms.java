@@ -0,0 +1,87 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/** A page timing listener that records the times of each phase in a
+ * {@link LatencyHistogram}, so memory use doesn't grow with the length of
+ * the run, and reports the median, 90th, 99th and 99.9th percentiles, and
+ * maximum per phase.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class PhaseHistograms implements PageTimingListener {
+
+	private final Map<Phase, LatencyHistogram> histograms =
+			new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+	/** Create an empty aggregator. */
+	public PhaseHistograms() {
+		for (Phase p: Phase.values()) {
+			histograms.put(p, new LatencyHistogram());
+		}
+	}
+
+	@Override
+	public void phaseCompleted(String organismCode, Phase phase, long nanos) {
+		histograms.get(phase).recordValue(nanos);
+	}
+
+	/** Returns the histogram of a phase's times. The histogram is live, and
+	 * may be used to get the times recorded in each interval.
+	 * @param phase the phase.
+	 * @return the histogram of the phase's times in nanoseconds.
+	 */
+	public LatencyHistogram getHistogram(Phase phase) {
+		return histograms.get(phase);
+	}
+
+	/** Returns the number of times a phase completed.
+	 * @param phase the phase.
+	 * @return the number of samples for the phase.
+	 */
+	public int getCount(Phase phase) {
+		return (int) histograms.get(phase).getTotalCount();
+	}
+
+	/** Returns a percentile of the times of a phase.
+	 * @param phase the phase.
+	 * @param percentile the percentile, from 0 to 100.
+	 * @return the time in nanoseconds, or -1 if the phase never completed.
+	 */
+	public long getPercentile(Phase phase, double percentile) {
+		final LatencyHistogram h = histograms.get(phase);
+		final long ret = h.getValueAtPercentile(percentile);
+		return h.getTotalCount() == 0 ? -1 : ret;
+	}
+
+	/** Returns a report with a line per phase that completed at least once,
+	 * giving the count and the p50, p90, p99, p99.9 and maximum times in
+	 * milliseconds.
+	 * @return the report.
+	 */
+	public String report() {
+		final StringBuilder sb = new StringBuilder(String.format(
+				"%-14s %7s %10s %10s %10s %10s %10s\n", "Phase", "count",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Phase p: Phase.values()) {
+			final LatencyHistogram h = histograms.get(p).copy();
+			if (h.getTotalCount() > 0) {
+				sb.append(String.format(
+						"%-14s %7s %10.1f %10.1f %10.1f %10.1f %10.1f\n",
+						p, h.getTotalCount(),
+						h.getValueAtPercentile(50) / 1000000.0,
+						h.getValueAtPercentile(90) / 1000000.0,
+						h.getValueAtPercentile(99) / 1000000.0,
+						h.getValueAtPercentile(99.9) / 1000000.0,
+						h.getMaxValue() / 1000000.0));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "PhaseHistograms\n" + report();
+	}
+}
@@ -0,0 +1,187 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import us.kbase.jgiintegration.common.JGIOrganismPage.PushException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+/** A driver for the push to KBase (PtKB) operations on a JGI organism
+ * page: listing file groups and files, selecting files, and pushing the
+ * selected files to KBase.
+ *
+ * The operations that wait on the server optionally take a
+ * {@link Deadline}, which limits every wait and server call the operation
+ * makes. Without a deadline each step is only limited by its own timeout.
+ * @author gaprice@lbl.gov
+ *
+ */
+public interface PtKBDriver {
+
+	/** Returns the organism code for the page.
+	 * @return the organism code for the page.
+	 */
+	String getOrganismCode();
+
+	/** Get the names of the first level filegroups in the page.
+	 * @return the names of the first level filegroups.
+	 */
+	List<String> listFileGroups();
+
+	/** List the files in a first level file group.
+	 * @param fileGroup the name of the file group.
+	 * @return the list of files in the file group.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	List<String> listFiles(String fileGroup)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** List the files in a first level file group within a time budget.
+	 * @param fileGroup the name of the file group.
+	 * @param deadline the budget for the operation.
+	 * @return the list of files in the file group.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	List<String> listFiles(String fileGroup, Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Select a file.
+	 * @param file the file to select.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	void selectFile(JGIFileLocation file)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Select or unselect a file.
+	 * @param file the file to select or unselect.
+	 * @param select true to select the file, false to unselect.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	void selectFile(JGIFileLocation file, boolean select)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Select or unselect a file within a time budget.
+	 * @param file the file to select or unselect.
+	 * @param select true to select the file, false to unselect.
+	 * @param deadline the budget for the operation.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	void selectFile(JGIFileLocation file, boolean select, Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Select or unselect a set of files.
+	 * @param files the files to select or unselect.
+	 * @param select true to select the files, false to unselect.
+	 * @return the number of waits for the server saved compared to
+	 * selecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs
+	 */
+	int selectFiles(Collection<JGIFileLocation> files, boolean select)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Select or unselect a set of files within a time budget.
+	 * @param files the files to select or unselect.
+	 * @param select true to select the files, false to unselect.
+	 * @param deadline the budget for the operation.
+	 * @return the number of waits for the server saved compared to
+	 * selecting the files one at a time.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 */
+	int selectFiles(
+			Collection<JGIFileLocation> files,
+			boolean select,
+			Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException;
+
+	/** Push the selected files to KBase. Whether the accepted and rejected
+	 * files match the selected files' expectations, and any error PtKB
+	 * returned, are reported in the receipt rather than thrown. A failure to
+	 * clear the selection once PtKB has responded doesn't fail the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push, or a PushRejectedException if the page rejects the push,
+	 * e.g. because no files are selected.
+	 */
+	PushReceipt pushToKBase()
+			throws IOException, InterruptedException, TimeoutException,
+				PushException;
+
+	/** Push the selected files to KBase within a time budget.
+	 * @param deadline the budget for the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws InterruptedException if the driver is interrupted while
+	 * waiting.
+	 * @throws TimeoutException if a timeout occurs or the deadline expires.
+	 * @throws PushException if the page doesn't behave as expected during
+	 * the push, or a PushRejectedException if the page rejects the push,
+	 * e.g. because no files are selected.
+	 */
+	PushReceipt pushToKBase(Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException,
+				PushException;
+
+	/** Push the selected files to KBase without waiting for the push to
+	 * complete. Don't use the driver until the push completes.
+	 * @param executor the executor on which to complete the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws PushException if the page doesn't behave as expected when
+	 * starting the push.
+	 */
+	Future<PushReceipt> pushToKBaseAsync(ExecutorService executor)
+			throws IOException, PushException;
+
+	/** Push the selected files to KBase within a time budget without
+	 * waiting for the push to complete. The budget covers the whole push.
+	 * @param executor the executor on which to complete the push.
+	 * @param deadline the budget for the push.
+	 * @return the outcome of the push.
+	 * @throws IOException if an IO exception occurs.
+	 * @throws PushException if the page doesn't behave as expected when
+	 * starting the push.
+	 */
+	Future<PushReceipt> pushToKBaseAsync(
+			ExecutorService executor,
+			Deadline deadline)
+			throws IOException, PushException;
+
+	/** Get the workspace name associated with the page.
+	 * @param user the KBase username of the user that will push the files.
+	 * @return the workspace name.
+	 */
+	String getWorkspaceName(String user);
+
+	/** Release any resources held for the page. Don't use the driver after
+	 * closing it.
+	 */
+	void close();
+}
@@ -0,0 +1,80 @@
+package us.kbase.jgiintegration.common;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+
+/** Creates web clients configured for pushing files to KBase from JGI
+ * organism pages.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class PtKBWebClientFactory {
+
+	private BrowserVersion browser = BrowserVersion.getDefault();
+	private ResourceFilterProfile filter = null;
+	private StaticAssetCache assetCache = null;
+	private boolean shareScripts = true;
+
+	/** Create a factory for plain web clients that share compiled scripts.
+	 */
+	public PtKBWebClientFactory() {}
+
+	/** Set the browser the clients emulate.
+	 * @param browser the browser version.
+	 * @return this factory.
+	 */
+	public PtKBWebClientFactory withBrowserVersion(BrowserVersion browser) {
+		if (browser == null) {
+			throw new NullPointerException("browser");
+		}
+		this.browser = browser;
+		return this;
+	}
+
+	/** Filter the resources the clients download.
+	 * @param profile the filter profile, or null to download everything.
+	 * @return this factory.
+	 */
+	public PtKBWebClientFactory withResourceFilter(
+			ResourceFilterProfile profile) {
+		filter = profile;
+		return this;
+	}
+
+	/** Share static assets between the clients.
+	 * @param cache the cache to install on the clients, or null for no
+	 * shared cache.
+	 * @return this factory.
+	 */
+	public PtKBWebClientFactory withAssetCache(StaticAssetCache cache) {
+		assetCache = cache;
+		return this;
+	}
+
+	/** Share compiled scripts between the clients. True by default.
+	 * @param share true to share compiled scripts.
+	 * @return this factory.
+	 */
+	public PtKBWebClientFactory withSharedScripts(boolean share) {
+		shareScripts = share;
+		return this;
+	}
+
+	/** Create a web client.
+	 * @return the new client.
+	 */
+	public WebClient createClient() {
+		final WebClient client = new WebClient(browser);
+		// install below the filter so denied resources aren't cached
+		if (assetCache != null) {
+			assetCache.install(client);
+		}
+		if (filter != null) {
+			ResourceFilteringWebConnection.install(client, filter);
+		}
+		if (shareScripts) {
+			SharedScriptCache.install(client);
+		}
+		return client;
+	}
+}
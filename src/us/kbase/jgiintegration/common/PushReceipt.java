@@ -0,0 +1,199 @@
+package us.kbase.jgiintegration.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/** The outcome of a push to KBase as reported by the organism page: the
+ * files PtKB accepted and rejected, the contents of the error div if PtKB
+ * returned an error, and how long each phase of the push took.
+ *
+ * A receipt is returned whether or not the outcome matches the selected
+ * files' expectations, so callers decide whether a mismatch is a failure.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class PushReceipt {
+
+	private final String organismCode;
+	private final Set<JGIFileLocation> selected;
+	private final Set<String> accepted;
+	private final Set<String> rejected;
+	private final String error;
+	private final Map<String, Long> phaseNanos;
+
+	/** Create a receipt.
+	 * @param organismCode the organism code of the page the files were pushed
+	 * from.
+	 * @param selected the files that were selected when the push started.
+	 * @param accepted the names of the files PtKB accepted.
+	 * @param rejected the names of the files PtKB rejected.
+	 * @param error the contents of the PtKB error div, or null if PtKB didn't
+	 * return an error.
+	 * @param phaseNanos the time each phase of the push took in nanoseconds,
+	 * in the order the phases ran. Phases that run after the receipt is
+	 * created, e.g. clearing the selection, are added by the driver.
+	 */
+	public PushReceipt(
+			String organismCode,
+			Collection<JGIFileLocation> selected,
+			Set<String> accepted,
+			Set<String> rejected,
+			String error,
+			Map<String, Long> phaseNanos) {
+		this.organismCode = organismCode;
+		this.selected = Collections.unmodifiableSet(
+				new HashSet<JGIFileLocation>(selected));
+		this.accepted = Collections.unmodifiableSet(
+				new HashSet<String>(accepted));
+		this.rejected = Collections.unmodifiableSet(
+				new HashSet<String>(rejected));
+		this.error = error;
+		this.phaseNanos = new LinkedHashMap<String, Long>(phaseNanos);
+	}
+
+	/** Returns the organism code of the page the files were pushed from.
+	 * @return the organism code.
+	 */
+	public String getOrganismCode() {
+		return organismCode;
+	}
+
+	/** Returns the files that were selected when the push started.
+	 * @return the selected files.
+	 */
+	public Set<JGIFileLocation> getSelected() {
+		return selected;
+	}
+
+	/** Returns the names of the files PtKB accepted.
+	 * @return the accepted files.
+	 */
+	public Set<String> getAccepted() {
+		return accepted;
+	}
+
+	/** Returns the names of the files PtKB rejected.
+	 * @return the rejected files.
+	 */
+	public Set<String> getRejected() {
+		return rejected;
+	}
+
+	/** Returns the names of the selected files that are expected to be
+	 * accepted.
+	 * @return the files expected to be accepted.
+	 */
+	public Set<String> getExpectedAccepted() {
+		return getExpected(false);
+	}
+
+	/** Returns the names of the selected files that are expected to be
+	 * rejected.
+	 * @return the files expected to be rejected.
+	 */
+	public Set<String> getExpectedRejected() {
+		return getExpected(true);
+	}
+
+	private Set<String> getExpected(boolean rejection) {
+		final Set<String> ret = new HashSet<String>();
+		for (JGIFileLocation file: selected) {
+			if (file.isExpectedRejection() == rejection) {
+				ret.add(file.getFile());
+			}
+		}
+		return ret;
+	}
+
+	/** Returns the contents of the PtKB error div.
+	 * @return the error, or null if PtKB didn't return an error.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/** Returns true if PtKB returned an error.
+	 * @return true if PtKB returned an error.
+	 */
+	public boolean isError() {
+		return error != null;
+	}
+
+	/** Returns true if PtKB didn't return an error and accepted and rejected
+	 * exactly the files expected.
+	 * @return true if the push went as expected.
+	 */
+	public boolean isAsExpected() {
+		return !isError() && accepted.equals(getExpectedAccepted()) &&
+				rejected.equals(getExpectedRejected());
+	}
+
+	/** Returns true if PtKB didn't return an error and accepted or rejected
+	 * one of the selected files as expected, whatever happened to the other
+	 * files in the push.
+	 * @param file the name of the file.
+	 * @return true if the push of the file went as expected, or false if
+	 * the file wasn't selected.
+	 */
+	public boolean isAsExpected(String file) {
+		if (isError()) {
+			return false;
+		}
+		for (JGIFileLocation sel: selected) {
+			if (sel.getFile().equals(file)) {
+				final Set<String> expected = sel.isExpectedRejection() ?
+						rejected : accepted;
+				final Set<String> unexpected = sel.isExpectedRejection() ?
+						accepted : rejected;
+				return expected.contains(file) && !unexpected.contains(file);
+			}
+		}
+		return false;
+	}
+
+	/** Returns the time each phase of the push took, in the order the phases
+	 * ran.
+	 * @return a mapping of phase name to time in nanoseconds.
+	 */
+	public synchronized Map<String, Long> getPhaseNanos() {
+		return Collections.unmodifiableMap(
+				new LinkedHashMap<String, Long>(phaseNanos));
+	}
+
+	/* Adds a phase that ran after the receipt was created. */
+	synchronized void addPhase(String phase, long nanos) {
+		phaseNanos.put(phase, nanos);
+	}
+
+	/** Returns the total time the push took.
+	 * @return the total time in nanoseconds.
+	 */
+	public synchronized long getTotalNanos() {
+		long ttl = 0;
+		for (Long n: phaseNanos.values()) {
+			ttl += n;
+		}
+		return ttl;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder phases = new StringBuilder();
+		for (Entry<String, Long> e: phaseNanos.entrySet()) {
+			if (phases.length() > 0) {
+				phases.append(", ");
+			}
+			phases.append(String.format("%s=%.3fs", e.getKey(),
+					e.getValue() / 1000000000.0));
+		}
+		return String.format(
+				"PushReceipt [organismCode=%s, accepted=%s, rejected=%s, expectedAccepted=%s, expectedRejected=%s, error=%s, phases={%s}]",
+				organismCode, accepted, rejected, getExpectedAccepted(),
+				getExpectedRejected(), error, phases);
+	}
+}
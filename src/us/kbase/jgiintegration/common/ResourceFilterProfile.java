@@ -0,0 +1,192 @@
+package us.kbase.jgiintegration.common;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/** A set of rules determining which resources a web client may download.
+ * Rules match on the host and path of the request URL and the content type
+ * of the resource, and are evaluated in order; the first matching rule
+ * determines whether the resource is downloaded. If no rule matches the
+ * default action applies.
+ *
+ * Content type rules are checked before the request is sent using the
+ * content type implied by the file extension in the URL, if any, and
+ * checked again against the actual content type of the response.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ResourceFilterProfile {
+
+	/** What to do with a resource. */
+	public static enum Action {
+		/** Download the resource. */
+		ALLOW,
+		/** Don't download the resource. */
+		DENY;
+	}
+
+	private static final Map<String, String> EXTENSION_TO_TYPE =
+			new HashMap<String, String>();
+	static {
+		EXTENSION_TO_TYPE.put("png", "image/png");
+		EXTENSION_TO_TYPE.put("gif", "image/gif");
+		EXTENSION_TO_TYPE.put("jpg", "image/jpeg");
+		EXTENSION_TO_TYPE.put("jpeg", "image/jpeg");
+		EXTENSION_TO_TYPE.put("ico", "image/x-icon");
+		EXTENSION_TO_TYPE.put("svg", "image/svg+xml");
+		EXTENSION_TO_TYPE.put("woff", "font/woff");
+		EXTENSION_TO_TYPE.put("woff2", "font/woff2");
+		EXTENSION_TO_TYPE.put("ttf", "font/ttf");
+		EXTENSION_TO_TYPE.put("eot", "application/vnd.ms-fontobject");
+		EXTENSION_TO_TYPE.put("css", "text/css");
+		EXTENSION_TO_TYPE.put("js", "application/javascript");
+	}
+
+	/* Any JGI host. */
+	private static final String JGI_HOSTS = "(.*\\.)?jgi\\.doe\\.gov";
+	/* The organism page and sign on hosts. */
+	private static final String PORTAL_HOSTS =
+			"(genomeportal|genome|signon)\\.jgi\\.doe\\.gov";
+
+	private static class Rule {
+		private final Action action;
+		private final Pattern host;
+		private final Pattern path;
+		private final String contentType;
+
+		private Rule(Action action, String hostRegex, String pathRegex,
+				String contentTypePrefix) {
+			this.action = action;
+			host = hostRegex == null ? null : Pattern.compile(hostRegex);
+			path = pathRegex == null ? null : Pattern.compile(pathRegex);
+			contentType = contentTypePrefix == null ? null :
+				contentTypePrefix.toLowerCase();
+		}
+
+		/* null content type means unknown, and never matches a rule with
+		 * a content type.
+		 */
+		private boolean matches(URL url, String type) {
+			if (host != null && !host.matcher(url.getHost()).matches()) {
+				return false;
+			}
+			if (path != null && !path.matcher(url.getPath()).matches()) {
+				return false;
+			}
+			if (contentType != null && (type == null ||
+					!type.toLowerCase().startsWith(contentType))) {
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private final Action defaultAction;
+	private final List<Rule> rules = new LinkedList<Rule>();
+
+	/** Create a profile with no rules.
+	 * @param defaultAction the action to take if no rule matches.
+	 */
+	public ResourceFilterProfile(Action defaultAction) {
+		if (defaultAction == null) {
+			throw new NullPointerException("defaultAction");
+		}
+		this.defaultAction = defaultAction;
+	}
+
+	/** Returns the profile used for pushing files to KBase from JGI
+	 * organism pages. Only the JGI portal and sign on pages, their scripts,
+	 * stylesheets and AJAX requests, and the RichFaces and JSF resources that
+	 * drive the file tree and push dialog are downloaded. Everything else,
+	 * including third party scripts and stylesheets, is denied by default.
+	 * Images, fonts, media and the JGI issue collector are denied even from
+	 * the JGI hosts. Stylesheets are allowed since they determine whether
+	 * elements on the page are displayed.
+	 * @return the PtKB profile.
+	 */
+	public static ResourceFilterProfile ptkb() {
+		return new ResourceFilterProfile(Action.DENY)
+				.withRule(Action.DENY, "issues\\.jgi-psf\\.org", null, null)
+				.withRule(Action.DENY, null, null, "image/")
+				.withRule(Action.DENY, null, null, "font/")
+				.withRule(Action.DENY, null, null, "application/font")
+				.withRule(Action.DENY, null, null, "application/x-font")
+				.withRule(Action.DENY, null, null,
+						"application/vnd.ms-fontobject")
+				.withRule(Action.DENY, null, null, "audio/")
+				.withRule(Action.DENY, null, null, "video/")
+				// RichFaces 3 and 4 and JSF 2 resources, which have no
+				// file extensions
+				.withRule(Action.ALLOW, JGI_HOSTS,
+						"(/[^/]+)?/(a4j|rfRes|javax\\.faces\\.resource)/.*",
+						null)
+				.withRule(Action.ALLOW, JGI_HOSTS, ".*\\.jsf", null)
+				.withRule(Action.ALLOW, PORTAL_HOSTS, null, null);
+	}
+
+	/** Add a rule to the end of the profile's rule list.
+	 * @param action the action to take if the rule matches.
+	 * @param hostRegex a regular expression that must match the entire host
+	 * of the request URL, or null to match any host.
+	 * @param pathRegex a regular expression that must match the entire path
+	 * of the request URL, or null to match any path.
+	 * @param contentTypePrefix a prefix the content type of the resource
+	 * must start with, or null to match any content type.
+	 * @return this profile.
+	 */
+	public ResourceFilterProfile withRule(Action action, String hostRegex,
+			String pathRegex, String contentTypePrefix) {
+		if (action == null) {
+			throw new NullPointerException("action");
+		}
+		rules.add(new Rule(action, hostRegex, pathRegex, contentTypePrefix));
+		return this;
+	}
+
+	/** Decide whether to send a request, based on the URL and the content
+	 * type implied by the URL's file extension, if any.
+	 * @param url the request URL.
+	 * @return the action to take.
+	 */
+	public Action checkRequest(URL url) {
+		return check(url, guessContentType(url));
+	}
+
+	/** Decide whether to keep a response, based on the URL and the
+	 * response's content type.
+	 * @param url the request URL.
+	 * @param contentType the content type of the response.
+	 * @return the action to take.
+	 */
+	public Action checkResponse(URL url, String contentType) {
+		return check(url, contentType);
+	}
+
+	private Action check(URL url, String contentType) {
+		for (Rule r: rules) {
+			if (r.matches(url, contentType)) {
+				return r.action;
+			}
+		}
+		return defaultAction;
+	}
+
+	/** Guess the content type of a resource from the file extension in its
+	 * URL.
+	 * @param url the URL of the resource.
+	 * @return the content type, or null if it can't be determined.
+	 */
+	public static String guessContentType(URL url) {
+		String path = url.getPath();
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot < 0 || dot < slash) {
+			return null;
+		}
+		return EXTENSION_TO_TYPE.get(path.substring(dot + 1).toLowerCase());
+	}
+}
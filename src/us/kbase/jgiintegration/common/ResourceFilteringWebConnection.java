@@ -0,0 +1,273 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.jgiintegration.common.ResourceFilterProfile.Action;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/** A web connection that only downloads the resources allowed by a
+ * {@link ResourceFilterProfile}. Denied resources are replaced with an empty
+ * response so the page carries on loading without them.
+ *
+ * The first time a denied resource is seen in this JVM its size is
+ * learned with a HEAD request, and the sizes of the most recently seen
+ * resources are remembered by URL, without the query string. Bytes fetched
+ * and discarded are measured from the response bodies. Servers don't
+ * always report a size for a HEAD request, so the bytes avoided are a lower
+ * bound.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class ResourceFilteringWebConnection extends WebConnectionWrapper {
+
+	private static final int MAX_KNOWN_SIZES = 10000;
+
+	/* Resource sizes seen by any filtering connection, by URL without the
+	 * query, least recently used first. -1 if the size is unknown.
+	 */
+	@SuppressWarnings("serial")
+	private static final Map<String, Long> KNOWN_SIZES =
+			new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Long> eldest) {
+					return size() > MAX_KNOWN_SIZES;
+				}
+			};
+
+	private final ResourceFilterProfile profile;
+	private long requests = 0;
+	private long requestsAvoided = 0;
+	private long bytesFetched = 0;
+	private long bytesAvoided = 0;
+
+	/** Counts of requests and bytes fetched and avoided. */
+	public static class FilterStats {
+
+		private final long requests;
+		private final long requestsAvoided;
+		private final long bytesFetched;
+		private final long bytesAvoided;
+
+		private FilterStats(long requests, long requestsAvoided,
+				long bytesFetched, long bytesAvoided) {
+			this.requests = requests;
+			this.requestsAvoided = requestsAvoided;
+			this.bytesFetched = bytesFetched;
+			this.bytesAvoided = bytesAvoided;
+		}
+
+		/** Returns the number of requests made by the client, including
+		 * requests that were avoided.
+		 * @return the number of requests.
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/** Returns the number of requests that were not sent, or whose
+		 * response was discarded.
+		 * @return the number of requests avoided.
+		 */
+		public long getRequestsAvoided() {
+			return requestsAvoided;
+		}
+
+		/** Returns the number of bytes fetched, measured from the bodies of
+		 * the responses that were kept.
+		 * @return the number of bytes fetched.
+		 */
+		public long getBytesFetched() {
+			return bytesFetched;
+		}
+
+		/** Returns a lower bound on the number of bytes avoided.
+		 * @return the number of bytes avoided.
+		 */
+		public long getBytesAvoided() {
+			return bytesAvoided;
+		}
+
+		/** Subtract an earlier set of stats from these stats, for instance to
+		 * get the stats for a single page load.
+		 * @param earlier the earlier stats.
+		 * @return the difference.
+		 */
+		public FilterStats minus(FilterStats earlier) {
+			return new FilterStats(requests - earlier.requests,
+					requestsAvoided - earlier.requestsAvoided,
+					bytesFetched - earlier.bytesFetched,
+					bytesAvoided - earlier.bytesAvoided);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s requests, %s avoided, %s bytes fetched, >= %s bytes avoided",
+					requests, requestsAvoided, bytesFetched, bytesAvoided);
+		}
+	}
+
+	private ResourceFilteringWebConnection(WebClient client,
+			ResourceFilterProfile profile) {
+		super(client);
+		this.profile = profile;
+	}
+
+	/** Install a resource filter on a web client. If a filter is already
+	 * installed on the client, its profile is not changed.
+	 * @param client the client to filter.
+	 * @param profile the filter profile.
+	 * @return the filter installed on the client.
+	 */
+	public static ResourceFilteringWebConnection install(WebClient client,
+			ResourceFilterProfile profile) {
+		if (profile == null) {
+			throw new NullPointerException("profile");
+		}
+		synchronized (client) {
+			ResourceFilteringWebConnection f = JGIUtils.getWebConnectionWrapper(
+					client, ResourceFilteringWebConnection.class);
+			if (f == null) {
+				f = new ResourceFilteringWebConnection(client, profile);
+			}
+			return f;
+		}
+	}
+
+	/** Get the current counts for this filter.
+	 * @return the counts.
+	 */
+	public synchronized FilterStats getStats() {
+		return new FilterStats(requests, requestsAvoided, bytesFetched,
+				bytesAvoided);
+	}
+
+	@Override
+	public WebResponse getResponse(WebRequest request) throws IOException {
+		final URL url = request.getUrl();
+		synchronized (this) {
+			requests++;
+		}
+		if (profile.checkRequest(url) == Action.DENY) {
+			final long size = getDeniedSize(request);
+			avoided(size < 0 ? 0 : size);
+			return emptyResponse(request,
+					ResourceFilterProfile.guessContentType(url));
+		}
+		final WebResponse response = super.getResponse(request);
+		final long size = getBodyLength(response);
+		putKnownSize(url, size);
+		if (profile.checkResponse(url, response.getContentType()) ==
+				Action.DENY) {
+			final String type = response.getContentType();
+			response.cleanUp();
+			avoided(size);
+			return emptyResponse(request, type);
+		}
+		synchronized (this) {
+			bytesFetched += size;
+		}
+		return response;
+	}
+
+	/* Returns the size of a denied resource, asking the server the first
+	 * time the resource is seen, or -1 if the size is unknown.
+	 */
+	private long getDeniedSize(WebRequest request) {
+		final URL url = request.getUrl();
+		synchronized (KNOWN_SIZES) {
+			final Long size = KNOWN_SIZES.get(getSizeKey(url));
+			if (size != null) {
+				return size;
+			}
+		}
+		long size = -1;
+		try {
+			final WebRequest head = new WebRequest(url, HttpMethod.HEAD);
+			head.setAdditionalHeaders(request.getAdditionalHeaders());
+			final WebResponse response = super.getResponse(head);
+			if (response.getStatusCode() == 200) {
+				size = getContentLength(response);
+			}
+			response.cleanUp();
+		} catch (IOException e) {
+			// the size stays unknown
+		}
+		putKnownSize(url, size);
+		return size;
+	}
+
+	private static void putKnownSize(URL url, long size) {
+		synchronized (KNOWN_SIZES) {
+			KNOWN_SIZES.put(getSizeKey(url), size);
+		}
+	}
+
+	/* Resources that differ only by query, e.g. a cache buster, are
+	 * usually the same size.
+	 */
+	private static String getSizeKey(URL url) {
+		return url.getProtocol() + "://" + url.getAuthority() + url.getPath();
+	}
+
+	private static long getBodyLength(WebResponse response)
+			throws IOException {
+		final InputStream is = response.getContentAsStream();
+		if (is == null) {
+			return 0;
+		}
+		try {
+			final byte[] buf = new byte[8192];
+			long len = 0;
+			int read;
+			while ((read = is.read(buf)) >= 0) {
+				len += read;
+			}
+			return len;
+		} finally {
+			is.close();
+		}
+	}
+
+	private synchronized void avoided(long bytes) {
+		requestsAvoided++;
+		bytesAvoided += bytes;
+	}
+
+	private static long getContentLength(WebResponse response) {
+		final String len = response.getResponseHeaderValue("Content-Length");
+		if (len == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(len.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static WebResponse emptyResponse(WebRequest request,
+			String contentType) {
+		final List<NameValuePair> headers = new LinkedList<NameValuePair>();
+		headers.add(new NameValuePair("Content-Type",
+				contentType == null ? "text/plain" : contentType));
+		headers.add(new NameValuePair("Content-Length", "0"));
+		return new WebResponse(new WebResponseData(new byte[0], 200, "OK",
+				headers), request, 0);
+	}
+}
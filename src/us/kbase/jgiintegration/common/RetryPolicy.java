@@ -0,0 +1,326 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import us.kbase.jgiintegration.common.CircuitBreaker.CircuitOpenException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.JGIPermissionsException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.NoSuchJGIFileGroupException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.PushException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+
+import com.gargoylesoftware.htmlunit.ScriptException;
+
+/** Retries operations on the JGI portal that fail for transient reasons,
+ * with bounded exponential backoff and jitter between attempts. Failures are
+ * classified so that only transient failures are retried, and so that only
+ * failures that suggest the portal is degraded count towards opening the
+ * policy's circuit breaker.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class RetryPolicy {
+
+	/* Script errors from the portal's page that don't affect the user
+	 * experience or functionality at all and occur rather frequently.
+	 */
+	private static final List<String> TRANSIENT_SCRIPT_ERRORS = Arrays.asList(
+			"https://issues.jgi-psf.org/rest/collectors/1.0/configuration/trigger/4c7588ab?os_authType=none&callback=trigger_4c7588ab");
+
+	private static RetryPolicy DEFAULT = null;
+
+	/** The kinds of failure of an operation on the JGI portal. */
+	public static enum Failure {
+		/** A known harmless script error in the page. */
+		TRANSIENT_SCRIPT_ERROR(true, false),
+		/** The portal didn't respond in time. */
+		TIMEOUT(true, true),
+		/** A network error talking to the portal. */
+		NETWORK(true, true),
+		/** A file group is missing from the page, which happens when the
+		 * page doesn't render completely.
+		 */
+		MISSING_GROUP(true, true),
+		/** The user doesn't have permission to view the page. */
+		PERMISSION(false, false),
+		/** PtKB or the page rejected the push. */
+		PUSH_ERROR(false, false),
+		/** The portal's circuit breaker is open. */
+		CIRCUIT_OPEN(false, false),
+		/** Any other failure. */
+		OTHER(false, false);
+
+		private final boolean retryable;
+		private final boolean portalFault;
+
+		private Failure(boolean retryable, boolean portalFault) {
+			this.retryable = retryable;
+			this.portalFault = portalFault;
+		}
+
+		/** Returns true if an operation that failed this way may succeed if
+		 * retried.
+		 * @return true if the failure is retryable.
+		 */
+		public boolean isRetryable() {
+			return retryable;
+		}
+
+		/** Returns true if this failure suggests the portal is degraded.
+		 * @return true if the failure counts towards opening the circuit
+		 * breaker.
+		 */
+		public boolean isPortalFault() {
+			return portalFault;
+		}
+	}
+
+	private final Random random = new Random();
+	private int maxAttempts = 3;
+	private long baseDelayMillis = 1000;
+	private long maxDelayMillis = 30 * 1000;
+	private CircuitBreaker breaker = new CircuitBreaker();
+	/* The hosts this thread is running calls on, so nested calls can be
+	 * detected.
+	 */
+	private final ThreadLocal<Set<String>> activeHosts =
+			new ThreadLocal<Set<String>>();
+
+	/** Create a retry policy with the default settings: 3 attempts, backoff
+	 * starting at 1 second and capped at 30 seconds, and a default circuit
+	 * breaker.
+	 */
+	public RetryPolicy() {}
+
+	/** Get the policy shared by all the operations in this JVM that don't
+	 * specify a policy.
+	 * @return the default policy.
+	 */
+	public static synchronized RetryPolicy getDefault() {
+		if (DEFAULT == null) {
+			DEFAULT = new RetryPolicy();
+		}
+		return DEFAULT;
+	}
+
+	/** Set the maximum number of attempts, including the first.
+	 * @param attempts the maximum number of attempts.
+	 * @return this policy.
+	 */
+	public RetryPolicy withMaxAttempts(int attempts) {
+		if (attempts < 1) {
+			throw new IllegalArgumentException("attempts must be > 0");
+		}
+		maxAttempts = attempts;
+		return this;
+	}
+
+	/** Set the backoff between attempts. The delay before the nth retry is
+	 * base * 2^(n - 1), capped at max, of which a random half is jitter.
+	 * @param baseMillis the delay before the first retry.
+	 * @param maxMillis the maximum delay.
+	 * @return this policy.
+	 */
+	public RetryPolicy withBackoff(long baseMillis, long maxMillis) {
+		if (baseMillis < 0 || maxMillis < baseMillis) {
+			throw new IllegalArgumentException(
+					"baseMillis must be >= 0 and <= maxMillis");
+		}
+		baseDelayMillis = baseMillis;
+		maxDelayMillis = maxMillis;
+		return this;
+	}
+
+	/** Set the circuit breaker. Policies may share a breaker.
+	 * @param breaker the circuit breaker.
+	 * @return this policy.
+	 */
+	public RetryPolicy withCircuitBreaker(CircuitBreaker breaker) {
+		if (breaker == null) {
+			throw new NullPointerException("breaker");
+		}
+		this.breaker = breaker;
+		return this;
+	}
+
+	/** Returns the policy's circuit breaker.
+	 * @return the circuit breaker.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/** Classify a failure.
+	 * @param failure the exception thrown by the operation.
+	 * @return the kind of failure.
+	 */
+	public static Failure classify(Throwable failure) {
+		if (failure instanceof ScriptException) {
+			for (String e: TRANSIENT_SCRIPT_ERRORS) {
+				if (failure.getMessage() != null &&
+						failure.getMessage().contains(e)) {
+					return Failure.TRANSIENT_SCRIPT_ERROR;
+				}
+			}
+			return Failure.OTHER;
+		}
+		if (failure instanceof TimeoutException) {
+			return Failure.TIMEOUT;
+		}
+		if (failure instanceof NoSuchJGIFileGroupException) {
+			return Failure.MISSING_GROUP;
+		}
+		if (failure instanceof JGIPermissionsException) {
+			return Failure.PERMISSION;
+		}
+		if (failure instanceof PushException) {
+			return Failure.PUSH_ERROR;
+		}
+		if (failure instanceof CircuitOpenException) {
+			return Failure.CIRCUIT_OPEN;
+		}
+		if (failure instanceof IOException) {
+			return Failure.NETWORK;
+		}
+		return Failure.OTHER;
+	}
+
+	/** Record the outcome of an operation on a host that wasn't run by this
+	 * policy, e.g. an asynchronous push, with the circuit breaker.
+	 * @param host the host.
+	 * @param failure the exception thrown by the operation, or null if the
+	 * operation succeeded.
+	 */
+	public void recordOutcome(String host, Throwable failure) {
+		if (failure == null) {
+			breaker.recordSuccess(host);
+		} else if (classify(failure).isPortalFault()) {
+			breaker.recordFailure(host);
+		} else if (classify(failure) != Failure.CIRCUIT_OPEN) {
+			// the portal responded, so it's not degraded
+			breaker.recordSuccess(host);
+		}
+	}
+
+	/** Run an operation on a host, retrying it if it fails for a transient
+	 * reason.
+	 * @param <T> the type of the operation's result.
+	 * @param host the host the operation talks to.
+	 * @param operation a description of the operation, for logging.
+	 * @param call the operation.
+	 * @return the result of the operation.
+	 * @throws CircuitOpenException if the host's circuit breaker is open.
+	 * @throws Exception the exception thrown by the last attempt, if the
+	 * failure isn't retryable or the attempts are exhausted.
+	 */
+	public <T> T call(String host, String operation, Callable<T> call)
+			throws Exception {
+		return call(host, operation, Deadline.none(), call);
+	}
+
+	/** Run an operation on a host within a time budget, retrying it if it
+	 * fails for a transient reason and there's enough budget left to wait
+	 * for the retry.
+	 *
+	 * The policy applies at the outermost call only. If the operation is
+	 * called from within another operation on the same host in this
+	 * thread, e.g. a helper that uses the policy called from an operation
+	 * that's retried as a whole, it's run just once and the enclosing call retries it and records its
+	 * outcome.
+	 * @param <T> the type of the operation's result.
+	 * @param host the host the operation talks to.
+	 * @param operation a description of the operation, for logging.
+	 * @param deadline the budget for all the attempts.
+	 * @param call the operation.
+	 * @return the result of the operation.
+	 * @throws CircuitOpenException if the host's circuit breaker is open.
+	 * @throws Exception the exception thrown by the last attempt, if the
+	 * failure isn't retryable, the attempts are exhausted, or the deadline
+	 * expires.
+	 */
+	public <T> T call(
+			String host,
+			String operation,
+			Deadline deadline,
+			Callable<T> call)
+			throws Exception {
+		Set<String> hosts = activeHosts.get();
+		if (hosts == null) {
+			hosts = new HashSet<String>();
+			activeHosts.set(hosts);
+		}
+		if (hosts.contains(host)) {
+			return call.call();
+		}
+		hosts.add(host);
+		try {
+			return callWithRetries(host, operation, deadline, call);
+		} finally {
+			hosts.remove(host);
+		}
+	}
+
+	private <T> T callWithRetries(
+			String host,
+			String operation,
+			Deadline deadline,
+			Callable<T> call)
+			throws Exception {
+		int attempt = 1;
+		while (true) {
+			final boolean trial = breaker.acquire(host);
+			boolean recorded = false;
+			try {
+				final T ret = call.call();
+				breaker.recordSuccess(host);
+				recorded = true;
+				return ret;
+			} catch (Exception e) {
+				recordOutcome(host, e);
+				final Failure f = classify(e);
+				recorded = f != Failure.CIRCUIT_OPEN;
+				final long delay = getDelay(attempt);
+				if (!f.isRetryable() || attempt >= maxAttempts ||
+						deadline.getRemainingMillis() <= delay) {
+					throw e;
+				}
+				System.out.println(String.format(
+						"Attempt %s of %s %s failed with %s (%s), retrying in %s ms at %s",
+						attempt, maxAttempts, operation, f, e, delay,
+						new Date()));
+				Thread.sleep(delay);
+				attempt++;
+			} finally {
+				// e.g. on an Error, or if another breaker refused the call
+				if (trial && !recorded) {
+					breaker.release(host);
+				}
+			}
+		}
+	}
+
+	/* Half the delay is fixed and half is random, so that workers that failed
+	 * together don't retry together.
+	 */
+	private long getDelay(int attempt) {
+		final long cap = Math.min(maxDelayMillis,
+				baseDelayMillis << Math.min(attempt - 1, 30));
+		final long half = cap / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (cap - half));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"RetryPolicy [maxAttempts=%s, baseDelayMillis=%s, maxDelayMillis=%s, breaker=%s]",
+				maxAttempts, baseDelayMillis, maxDelayMillis, breaker);
+	}
+}
@@ -0,0 +1,306 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sourceforge.htmlunit.corejs.javascript.Script;
+
+import com.gargoylesoftware.htmlunit.Cache;
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/** A web client cache that shares compiled scripts between all the web
+ * clients in the JVM that it's installed on.
+ *
+ * HtmlUnit's standard cache only reuses a compiled script within a single
+ * client, and only if the script's headers say it won't change for a while,
+ * so each client recompiles the portal scripts on nearly every page load.
+ * This cache behaves exactly like the standard cache, but also keeps
+ * compiled scripts in a process wide store keyed by the script URL and a
+ * hash of the script source. The script is still fetched (cheaply, if a
+ * {@link StaticAssetCache} is installed) so a changed script is never
+ * mistaken for a cached one, but a script whose source matches a stored
+ * script isn't compiled again. Compiled scripts don't hold a reference to
+ * the scope they run in, which is what makes sharing them safe.
+ *
+ * The store keeps scripts up to a total source size of
+ * jgi.script.cache.max.mb megabytes (32 by default), evicting the least
+ * recently used scripts first.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class SharedScriptCache extends Cache {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String MAX_MB_PROP = "jgi.script.cache.max.mb";
+	private static final long DEFAULT_MAX_MB = 32;
+
+	private static final long MAX_BYTES = Long.parseLong(System.getProperty(
+			MAX_MB_PROP, "" + DEFAULT_MAX_MB)) * 1024 * 1024;
+
+	/* Compiled scripts keyed by URL and source hash, access ordered for LRU
+	 * eviction.
+	 */
+	private static final LinkedHashMap<String, StoredScript> STORE =
+			new LinkedHashMap<String, StoredScript>(16, 0.75f, true);
+	private static long storedBytes = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	/* The source hash of the last script fetched from each URL by this
+	 * client. HtmlUnit fetches a script immediately before asking the cache
+	 * for the compiled version.
+	 */
+	private transient final Map<String, Source> lastFetched =
+			new HashMap<String, Source>();
+
+	private static class StoredScript {
+		private final Script script;
+		private final long size;
+
+		private StoredScript(Script script, long size) {
+			this.script = script;
+			this.size = size;
+		}
+	}
+
+	private static class Source {
+		private final String hash;
+		private final long size;
+
+		private Source(String hash, long size) {
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	/** Counts of hits and misses for the shared script store. */
+	public static class ScriptCacheStats {
+
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final int scripts;
+		private final long bytes;
+
+		private ScriptCacheStats(long hits, long misses, long evictions,
+				int scripts, long bytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.scripts = scripts;
+			this.bytes = bytes;
+		}
+
+		/** Returns the number of scripts that didn't need compiling.
+		 * @return the number of hits.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/** Returns the number of scripts that had to be compiled.
+		 * @return the number of misses.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/** Returns the fraction of script loads that didn't need compiling.
+		 * @return the hit rate, or 0 if no scripts have been loaded.
+		 */
+		public double getHitRate() {
+			return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+		}
+
+		/** Returns the number of scripts evicted from the store.
+		 * @return the number of evictions.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/** Returns the number of scripts in the store.
+		 * @return the number of scripts.
+		 */
+		public int getScripts() {
+			return scripts;
+		}
+
+		/** Returns the total source size of the scripts in the store.
+		 * @return the number of bytes.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s script hits, %s misses (%.1f%% hit rate), %s scripts totalling %s bytes stored, %s evicted",
+					hits, misses, getHitRate() * 100, scripts, bytes,
+					evictions);
+		}
+	}
+
+	private SharedScriptCache() {}
+
+	/** Install a shared script cache on a web client, replacing its current
+	 * cache. Does nothing if a shared script cache is already installed.
+	 * @param client the client.
+	 */
+	public static void install(WebClient client) {
+		synchronized (client) {
+			final Cache old = client.getCache();
+			if (old instanceof SharedScriptCache) {
+				return;
+			}
+			final SharedScriptCache c = new SharedScriptCache();
+			c.setMaxSize(old.getMaxSize());
+			client.setCache(c);
+		}
+	}
+
+	/** Get the counts for the shared script store.
+	 * @return the counts.
+	 */
+	public static ScriptCacheStats getStats() {
+		synchronized (STORE) {
+			return new ScriptCacheStats(hits, misses, evictions, STORE.size(),
+					storedBytes);
+		}
+	}
+
+	@Override
+	public boolean cacheIfPossible(final WebRequest request,
+			final WebResponse response, final Object toCache) {
+		if (request.getHttpMethod() == HttpMethod.GET) {
+			final String url = request.getUrl().toString();
+			if (toCache == null) {
+				if (response.getStatusCode() == 200 && isScript(response)) {
+					final Source s = hash(response);
+					synchronized (lastFetched) {
+						if (s == null) {
+							lastFetched.remove(url);
+						} else {
+							lastFetched.put(url, s);
+						}
+					}
+				}
+			} else if (toCache instanceof Script) {
+				final Source s;
+				synchronized (lastFetched) {
+					s = lastFetched.get(url);
+				}
+				if (s != null) {
+					store(url, s, (Script) toCache);
+				}
+			}
+		}
+		return super.cacheIfPossible(request, response, toCache);
+	}
+
+	@Override
+	public Object getCachedObject(final WebRequest request) {
+		final Object o = super.getCachedObject(request);
+		if (o != null) {
+			return o;
+		}
+		final String url = request.getUrl().toString();
+		final Source s;
+		synchronized (lastFetched) {
+			s = lastFetched.get(url);
+		}
+		if (s == null) {
+			return null;
+		}
+		synchronized (STORE) {
+			final StoredScript ss = STORE.get(key(url, s));
+			if (ss == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return ss.script;
+		}
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		synchronized (lastFetched) {
+			lastFetched.clear();
+		}
+	}
+
+	private static boolean isScript(WebResponse response) {
+		final String type = response.getContentType();
+		return (type != null && type.toLowerCase().contains("javascript")) ||
+				"application/javascript".equals(
+						ResourceFilterProfile.guessContentType(
+								response.getWebRequest().getUrl()));
+	}
+
+	private static String key(String url, Source s) {
+		return url + "#" + s.hash;
+	}
+
+	private static void store(String url, Source s, Script script) {
+		if (s.size > MAX_BYTES) {
+			return;
+		}
+		synchronized (STORE) {
+			final StoredScript old = STORE.put(key(url, s),
+					new StoredScript(script, s.size));
+			if (old != null) {
+				storedBytes -= old.size;
+			}
+			storedBytes += s.size;
+			final Iterator<StoredScript> iter = STORE.values().iterator();
+			while (storedBytes > MAX_BYTES && iter.hasNext()) {
+				storedBytes -= iter.next().size;
+				iter.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/* Returns null if the response content can't be read. */
+	private static Source hash(WebResponse response) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 isn't available", e);
+		}
+		long size = 0;
+		try {
+			final InputStream is = response.getContentAsStream();
+			try {
+				final byte[] buf = new byte[8192];
+				int read;
+				while ((read = is.read(buf)) > 0) {
+					md.update(buf, 0, read);
+					size += read;
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return new Source(
+				String.format("%040x", new BigInteger(1, md.digest())), size);
+	}
+}
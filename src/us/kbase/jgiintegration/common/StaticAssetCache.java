@@ -0,0 +1,569 @@
+package us.kbase.jgiintegration.common;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.utils.DateUtils;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/** A cache for static assets - scripts, stylesheets, images, and fonts -
+ * shared by all the web clients in the JVM that it's installed on.
+ *
+ * Whether a response is a cacheable asset is decided from its Content-Type
+ * and cache headers rather than its URL, since the RichFaces and JSF
+ * resources that make up most of the portal's scripts have no file
+ * extension. Only scripts, stylesheets, images and fonts that may be stored
+ * and that are either fresh for a while or have a validator are cached.
+ *
+ * Assets are kept in memory up to a maximum size, evicting the least
+ * recently used assets first, and are optionally persisted to disk, up to a
+ * maximum size, so they survive between runs. A cached asset is served
+ * without contacting the
+ * server while it's fresh according to its Cache-Control max-age or Expires
+ * headers; after that it's revalidated with a conditional request using its
+ * ETag or Last-Modified header.
+ *
+ * The default instance keeps up to jgi.asset.cache.max.mb megabytes (64 by
+ * default) in memory and persists up to jgi.asset.cache.max.disk.mb
+ * megabytes (256 by default) of assets to the directory in the
+ * jgi.asset.cache.dir system property, if set.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class StaticAssetCache {
+
+	private static final String DIR_PROP = "jgi.asset.cache.dir";
+	private static final String MAX_MB_PROP = "jgi.asset.cache.max.mb";
+	private static final String MAX_DISK_MB_PROP =
+			"jgi.asset.cache.max.disk.mb";
+	private static final long DEFAULT_MAX_MB = 64;
+	private static final long DEFAULT_MAX_DISK_MB = 256;
+
+	private static final List<String> STATIC_TYPES = Arrays.asList(
+			"text/css", "text/javascript", "application/javascript",
+			"application/x-javascript", "application/ecmascript", "image/",
+			"font/", "application/font", "application/x-font",
+			"application/vnd.ms-fontobject");
+
+	private static final Pattern MAX_AGE =
+			Pattern.compile("max-age\\s*=\\s*(\\d+)");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static StaticAssetCache INSTANCE = null;
+
+	private final long maxBytes;
+	private final File dir;
+	private final long maxDiskBytes;
+	// access ordered for LRU eviction
+	private final LinkedHashMap<String, Asset> assets =
+			new LinkedHashMap<String, Asset>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long revalidations = 0;
+	private long misses = 0;
+	private long bytesFromCache = 0;
+	private long evictions = 0;
+
+	private static class Asset {
+
+		private final String url;
+		private final byte[] body;
+		private final String statusMessage;
+		private final List<NameValuePair> headers;
+		private final String etag;
+		private final String lastModified;
+		// updated on revalidation, read without the cache's lock
+		private volatile long expires;
+
+		private Asset(String url, byte[] body, String statusMessage,
+				List<NameValuePair> headers, String etag,
+				String lastModified, long expires) {
+			this.url = url;
+			this.body = body;
+			this.statusMessage = statusMessage;
+			this.headers = headers;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+	}
+
+	/** Get the JVM wide cache instance.
+	 * @return the cache.
+	 */
+	public static synchronized StaticAssetCache getInstance() {
+		if (INSTANCE == null) {
+			String dir = System.getProperty(DIR_PROP);
+			long maxMB = Long.parseLong(System.getProperty(
+					MAX_MB_PROP, "" + DEFAULT_MAX_MB));
+			long maxDiskMB = Long.parseLong(System.getProperty(
+					MAX_DISK_MB_PROP, "" + DEFAULT_MAX_DISK_MB));
+			INSTANCE = new StaticAssetCache(maxMB * 1024 * 1024,
+					dir == null ? null : new File(dir),
+					maxDiskMB * 1024 * 1024);
+		}
+		return INSTANCE;
+	}
+
+	/** Create a cache that persists up to 256 megabytes of assets.
+	 * @param maxBytes the maximum number of bytes of assets to keep in
+	 * memory.
+	 * @param dir the directory in which to persist assets, or null to keep
+	 * assets in memory only.
+	 */
+	public StaticAssetCache(long maxBytes, File dir) {
+		this(maxBytes, dir, DEFAULT_MAX_DISK_MB * 1024 * 1024);
+	}
+
+	/** Create a cache.
+	 * @param maxBytes the maximum number of bytes of assets to keep in
+	 * memory.
+	 * @param dir the directory in which to persist assets, or null to keep
+	 * assets in memory only.
+	 * @param maxDiskBytes the maximum number of bytes of assets to keep on
+	 * disk. The least recently used assets are deleted first.
+	 */
+	public StaticAssetCache(long maxBytes, File dir, long maxDiskBytes) {
+		if (maxBytes < 1 || maxDiskBytes < 1) {
+			throw new IllegalArgumentException(
+					"maxBytes and maxDiskBytes must be > 0");
+		}
+		this.maxBytes = maxBytes;
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	/** Install this cache on a web client. Does nothing if a cache is
+	 * already installed on the client.
+	 * @param client the client.
+	 */
+	public void install(WebClient client) {
+		synchronized (client) {
+			if (JGIUtils.getWebConnectionWrapper(
+					client, CachingWebConnection.class) == null) {
+				new CachingWebConnection(client, this);
+			}
+		}
+	}
+
+	/** Returns the number of requests served from the cache without
+	 * contacting the server.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of requests served from the cache after the
+	 * server confirmed the cached asset was still valid.
+	 * @return the number of revalidations.
+	 */
+	public synchronized long getRevalidations() {
+		return revalidations;
+	}
+
+	/** Returns the number of requests for cacheable assets, or for assets
+	 * that were cached but stale, that had to be fetched from the server.
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Returns the number of bytes served from the cache.
+	 * @return the number of bytes.
+	 */
+	public synchronized long getBytesFromCache() {
+		return bytesFromCache;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"StaticAssetCache [hits=%s, revalidations=%s, misses=%s, bytesFromCache=%s, assets=%s, bytes=%s, evictions=%s]",
+				hits, revalidations, misses, bytesFromCache, assets.size(),
+				bytes, evictions);
+	}
+
+	/* Whether the response is cacheable is only known once it arrives. */
+	private static boolean isCacheableRequest(WebRequest request) {
+		return request.getHttpMethod() == HttpMethod.GET;
+	}
+
+	private static boolean isStaticType(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		final String type = contentType.toLowerCase();
+		for (String t: STATIC_TYPES) {
+			if (type.startsWith(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCacheableResponse(WebResponse response,
+			long now) {
+		if (response.getStatusCode() != 200 ||
+				!isStaticType(response.getContentType())) {
+			return false;
+		}
+		String cc = response.getResponseHeaderValue("Cache-Control");
+		if (cc != null && cc.toLowerCase().contains("no-store")) {
+			return false;
+		}
+		// otherwise it could never be served from the cache
+		return getExpires(response, now) > now ||
+				response.getResponseHeaderValue("ETag") != null ||
+				response.getResponseHeaderValue("Last-Modified") != null;
+	}
+
+	private WebResponse getResponse(WebRequest request,
+			WebConnectionWrapper conn)
+			throws IOException {
+		if (!isCacheableRequest(request)) {
+			return conn.getWrappedWebConnection().getResponse(request);
+		}
+		final String url = request.getUrl().toString();
+		final Asset cached = get(url);
+		final long now = System.currentTimeMillis();
+		if (cached != null && cached.expires > now) {
+			return hit(request, cached, false);
+		}
+		// the request belongs to the caller, so put its headers back after
+		final String ifNoneMatch =
+				request.getAdditionalHeaders().get("If-None-Match");
+		final String ifModifiedSince =
+				request.getAdditionalHeaders().get("If-Modified-Since");
+		if (cached != null && cached.etag != null) {
+			request.setAdditionalHeader("If-None-Match", cached.etag);
+		}
+		if (cached != null && cached.lastModified != null) {
+			request.setAdditionalHeader("If-Modified-Since",
+					cached.lastModified);
+		}
+		final WebResponse response;
+		try {
+			response = conn.getWrappedWebConnection().getResponse(request);
+		} finally {
+			restoreHeader(request, "If-None-Match", ifNoneMatch);
+			restoreHeader(request, "If-Modified-Since", ifModifiedSince);
+		}
+		if (cached != null && response.getStatusCode() == 304) {
+			cached.expires = getExpires(response, now);
+			response.cleanUp();
+			return hit(request, cached, true);
+		}
+		final boolean cacheable = isCacheableResponse(response, now);
+		if (cacheable || cached != null) {
+			synchronized (this) {
+				misses++;
+			}
+		}
+		if (cacheable) {
+			put(toAsset(url, response, now));
+		}
+		return response;
+	}
+
+	private static void restoreHeader(WebRequest request, String name,
+			String value) {
+		if (value == null) {
+			request.removeAdditionalHeader(name);
+		} else {
+			request.setAdditionalHeader(name, value);
+		}
+	}
+
+	private WebResponse hit(WebRequest request, Asset a,
+			boolean revalidated) {
+		synchronized (this) {
+			if (revalidated) {
+				revalidations++;
+			} else {
+				hits++;
+			}
+			bytesFromCache += a.body.length;
+		}
+		return new WebResponse(new WebResponseData(a.body, 200,
+				a.statusMessage, a.headers), request, 0);
+	}
+
+	private static Asset toAsset(String url, WebResponse response, long now)
+			throws IOException {
+		final InputStream is = response.getContentAsStream();
+		final byte[] body;
+		try {
+			body = IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+		final List<NameValuePair> headers = new LinkedList<NameValuePair>();
+		for (NameValuePair h: response.getResponseHeaders()) {
+			// the body is stored decoded
+			if (!h.getName().equalsIgnoreCase("Content-Encoding") &&
+					!h.getName().equalsIgnoreCase("Content-Length") &&
+					!isCookieHeader(h.getName())) {
+				headers.add(h);
+			}
+		}
+		headers.add(new NameValuePair("Content-Length", "" + body.length));
+		return new Asset(url, body, response.getStatusMessage(), headers,
+				response.getResponseHeaderValue("ETag"),
+				response.getResponseHeaderValue("Last-Modified"),
+				getExpires(response, now));
+	}
+
+	/* Cookies belong to the session that fetched the asset, so they must
+	 * not be replayed to other clients or written to disk.
+	 */
+	private static boolean isCookieHeader(String name) {
+		return name.equalsIgnoreCase("Set-Cookie") ||
+				name.equalsIgnoreCase("Set-Cookie2");
+	}
+
+	/* Returns the time until which the response may be served without
+	 * revalidation. 0 means always revalidate.
+	 */
+	private static long getExpires(WebResponse response, long now) {
+		String cc = response.getResponseHeaderValue("Cache-Control");
+		if (cc != null) {
+			cc = cc.toLowerCase();
+			if (cc.contains("no-cache")) {
+				return 0;
+			}
+			Matcher m = MAX_AGE.matcher(cc);
+			if (m.find()) {
+				return now + Long.parseLong(m.group(1)) * 1000;
+			}
+		}
+		String expires = response.getResponseHeaderValue("Expires");
+		if (expires != null) {
+			Date d = DateUtils.parseDate(expires);
+			if (d != null) {
+				return d.getTime();
+			}
+		}
+		return 0;
+	}
+
+	private Asset get(String url) {
+		synchronized (this) {
+			Asset a = assets.get(url);
+			if (a != null || dir == null) {
+				return a;
+			}
+		}
+		final Asset a = readFromDisk(url);
+		if (a != null) {
+			putInMemory(a);
+		}
+		return a;
+	}
+
+	private void put(Asset a) {
+		putInMemory(a);
+		if (dir != null) {
+			writeToDisk(a);
+		}
+	}
+
+	private synchronized void putInMemory(Asset a) {
+		if (a.body.length > maxBytes) {
+			return;
+		}
+		Asset old = assets.put(a.url, a);
+		if (old != null) {
+			bytes -= old.body.length;
+		}
+		bytes += a.body.length;
+		Iterator<Asset> iter = assets.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			Asset evict = iter.next();
+			iter.remove();
+			bytes -= evict.body.length;
+			evictions++;
+		}
+	}
+
+	private static String hash(String url) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return String.format("%040x",
+					new BigInteger(1, md.digest(url.getBytes(UTF8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 isn't available", e);
+		}
+	}
+
+	private void writeToDisk(Asset a) {
+		final String name = hash(a.url);
+		final Properties p = new Properties();
+		p.setProperty("url", a.url);
+		p.setProperty("status", a.statusMessage);
+		if (a.etag != null) {
+			p.setProperty("etag", a.etag);
+		}
+		if (a.lastModified != null) {
+			p.setProperty("lastModified", a.lastModified);
+		}
+		p.setProperty("expires", "" + a.expires);
+		int i = 0;
+		for (NameValuePair h: a.headers) {
+			p.setProperty("header." + i + ".name", h.getName());
+			p.setProperty("header." + i + ".value", h.getValue());
+			i++;
+		}
+		try {
+			Files.createDirectories(dir.toPath());
+			// write the body first so there's never metadata without a body
+			Files.write(new File(dir, name + ".body").toPath(), a.body);
+			OutputStream os = Files.newOutputStream(
+					new File(dir, name + ".properties").toPath());
+			try {
+				p.store(os, null);
+			} finally {
+				os.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to persist cached asset " + a.url +
+					": " + e);
+		}
+		trimDisk();
+	}
+
+	/* Deletes the least recently used assets on disk until the assets fit
+	 * in maxDiskBytes. Assets are only written on misses, so scanning the
+	 * directory each time is cheap enough.
+	 */
+	private synchronized void trimDisk() {
+		final File[] metas = dir.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(".properties");
+			}
+		});
+		if (metas == null) {
+			return;
+		}
+		long size = 0;
+		for (File m: metas) {
+			size += m.length() + getBody(m).length();
+		}
+		if (size <= maxDiskBytes) {
+			return;
+		}
+		Arrays.sort(metas, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.valueOf(f1.lastModified()).compareTo(
+						f2.lastModified());
+			}
+		});
+		for (File m: metas) {
+			if (size <= maxDiskBytes) {
+				break;
+			}
+			final File body = getBody(m);
+			size -= m.length() + body.length();
+			// the metadata first so there's never metadata without a body
+			if (!m.delete() || (body.exists() && !body.delete())) {
+				System.out.println("Failed to delete cached asset " + m);
+			}
+		}
+	}
+
+	private static File getBody(File meta) {
+		final String name = meta.getName();
+		return new File(meta.getParentFile(), name.substring(
+				0, name.length() - ".properties".length()) + ".body");
+	}
+
+	private Asset readFromDisk(String url) {
+		final String name = hash(url);
+		final File meta = new File(dir, name + ".properties");
+		final File body = new File(dir, name + ".body");
+		if (!meta.exists() || !body.exists()) {
+			return null;
+		}
+		final Properties p = new Properties();
+		try {
+			InputStream is = Files.newInputStream(meta.toPath());
+			try {
+				p.load(is);
+			} finally {
+				is.close();
+			}
+			if (!url.equals(p.getProperty("url"))) {
+				return null;
+			}
+			// for least recently used deletion
+			meta.setLastModified(System.currentTimeMillis());
+			final List<NameValuePair> headers =
+					new LinkedList<NameValuePair>();
+			for (int i = 0; p.containsKey("header." + i + ".name"); i++) {
+				// in case the asset was stored by an older version
+				if (!isCookieHeader(p.getProperty("header." + i + ".name"))) {
+					headers.add(new NameValuePair(
+							p.getProperty("header." + i + ".name"),
+							p.getProperty("header." + i + ".value")));
+				}
+			}
+			return new Asset(url, Files.readAllBytes(body.toPath()),
+					p.getProperty("status"), headers,
+					p.getProperty("etag"), p.getProperty("lastModified"),
+					Long.parseLong(p.getProperty("expires", "0")));
+		} catch (IOException e) {
+			System.out.println("Failed to read cached asset " + url +
+					": " + e);
+			return null;
+		}
+	}
+
+	/* The per client view of the shared cache. */
+	private static class CachingWebConnection extends WebConnectionWrapper {
+
+		private final StaticAssetCache cache;
+
+		private CachingWebConnection(WebClient client,
+				StaticAssetCache cache) {
+			super(client);
+			this.cache = cache;
+		}
+
+		@Override
+		public WebResponse getResponse(WebRequest request)
+				throws IOException {
+			return cache.getResponse(request, this);
+		}
+	}
+}
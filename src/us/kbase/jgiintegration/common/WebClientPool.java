@@ -0,0 +1,546 @@
+package us.kbase.jgiintegration.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import us.kbase.jgiintegration.common.JGISignOn.SignOnMode;
+
+import com.gargoylesoftware.htmlunit.TopLevelWindow;
+import com.gargoylesoftware.htmlunit.WebClient;
+
+/** A pool of web clients that are signed on to JGI, keyed by JGI
+ * credentials.
+ *
+ * Clients can be signed on in the background ahead of time with
+ * {@link #prewarm(String, String, int)}, and optionally warmed up by
+ * loading an organism page so the shared asset and script caches are
+ * filled. Idle clients are checked periodically, which also keeps their
+ * sessions alive; clients whose session has expired are closed and replaced
+ * in the background. A client that hasn't been checked recently is checked
+ * again before it's handed out.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class WebClientPool {
+
+	private final PtKBWebClientFactory factory;
+	private final long keepAliveMillis;
+	private final ScheduledExecutorService executor;
+	private URL warmUpPortal = null;
+	private String warmUpOrganism = null;
+	private JGISessionStore sessions = null;
+	private SignOnMode signOnMode = SignOnMode.BROWSER;
+	private ClientRecyclingPolicy recycling = new ClientRecyclingPolicy();
+
+	private final Map<Credential, Pool> pools =
+			new HashMap<Credential, Pool>();
+	private final Map<WebClient, PooledClient> borrowed =
+			new IdentityHashMap<WebClient, PooledClient>();
+	private boolean closed = false;
+	private long signOns = 0;
+	private long borrows = 0;
+	private long recycled = 0;
+	private long replaced = 0;
+
+	private static class Credential {
+
+		private final String user;
+		private final String password;
+
+		private Credential(String user, String password) {
+			if (user == null || password == null) {
+				throw new NullPointerException("user and password required");
+			}
+			this.user = user;
+			this.password = password;
+		}
+
+		@Override
+		public int hashCode() {
+			return user.hashCode() * 31 + password.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Credential)) {
+				return false;
+			}
+			Credential other = (Credential) obj;
+			return user.equals(other.user) && password.equals(other.password);
+		}
+	}
+
+	private static class PooledClient {
+
+		private final WebClient client;
+		private final Credential cred;
+		private long lastChecked;
+		// organism pages loaded since the client was created
+		private int pages = 0;
+
+		private PooledClient(WebClient client, Credential cred) {
+			this.client = client;
+			this.cred = cred;
+			lastChecked = System.currentTimeMillis();
+		}
+	}
+
+	private static class Pool {
+		// most recently used first
+		private final LinkedList<PooledClient> idle =
+				new LinkedList<PooledClient>();
+		// clients being signed on or checked
+		private int pending = 0;
+	}
+
+	/** Create a pool.
+	 * @param factory the factory that creates the pool's clients.
+	 * @param keepAliveMillis how often to check the sessions of idle
+	 * clients. Clients that haven't been checked within this time are checked
+	 * before they're handed out.
+	 */
+	public WebClientPool(PtKBWebClientFactory factory, long keepAliveMillis) {
+		if (factory == null) {
+			throw new NullPointerException("factory");
+		}
+		if (keepAliveMillis < 1) {
+			throw new IllegalArgumentException("keepAliveMillis must be > 0");
+		}
+		this.factory = factory;
+		this.keepAliveMillis = keepAliveMillis;
+		executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "web-client-pool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				keepAlive();
+			}
+		}, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Load an organism page with each client after it signs on in the
+	 * background, so the first real page load doesn't pay for filling the
+	 * caches.
+	 * @param portalURL the URL of the JGI genome portal.
+	 * @param organismCode the organism page to load.
+	 * @return this pool.
+	 */
+	public WebClientPool withWarmUpPage(URL portalURL, String organismCode) {
+		warmUpPortal = portalURL;
+		warmUpOrganism = organismCode;
+		return this;
+	}
+
+	/** Reuse sessions saved by earlier runs rather than signing on, and
+	 * save new sessions.
+	 * @param sessions the session store, or null to always sign on.
+	 * @return this pool.
+	 */
+	public WebClientPool withSessionStore(JGISessionStore sessions) {
+		this.sessions = sessions;
+		return this;
+	}
+
+	/** Set how clients sign on to JGI. Browser sign on by default.
+	 * @param mode the sign on mode.
+	 * @return this pool.
+	 */
+	public WebClientPool withSignOnMode(SignOnMode mode) {
+		if (mode == null) {
+			throw new NullPointerException("mode");
+		}
+		signOnMode = mode;
+		return this;
+	}
+
+	/** Set when {@link #recycle(WebClient)} replaces clients. By default
+	 * clients are never replaced.
+	 * @param policy the recycling policy.
+	 * @return this pool.
+	 */
+	public WebClientPool withRecyclingPolicy(ClientRecyclingPolicy policy) {
+		if (policy == null) {
+			throw new NullPointerException("policy");
+		}
+		recycling = policy;
+		return this;
+	}
+
+	/** Sign on clients in the background.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @param count the number of clients to sign on.
+	 */
+	public void prewarm(String user, String password, int count) {
+		final Credential cred = new Credential(user, password);
+		for (int i = 0; i < count; i++) {
+			signOnInBackground(cred);
+		}
+	}
+
+	private synchronized void signOnInBackground(final Credential cred) {
+		if (closed) {
+			return;
+		}
+		getPool(cred).pending++;
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				PooledClient pc = null;
+				try {
+					pc = signOn(cred);
+					if (warmUpOrganism != null) {
+						new JGIOrganismPage(warmUpPortal, pc.client,
+								warmUpOrganism, null, null).close();
+					}
+				} catch (Throwable e) {
+					System.out.println(String.format(
+							"Background sign on for %s failed at %s: %s",
+							cred.user, new Date(), e));
+					if (pc != null) {
+						pc.client.close();
+						pc = null;
+					}
+				}
+				synchronized (WebClientPool.this) {
+					final Pool p = getPool(cred);
+					p.pending--;
+					if (pc != null) {
+						if (closed) {
+							pc.client.close();
+						} else {
+							p.idle.addFirst(pc);
+						}
+					}
+					WebClientPool.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	private PooledClient signOn(Credential cred) throws Exception {
+		final WebClient client = factory.createClient();
+		try {
+			JGISignOn.signOn(client, cred.user, cred.password, signOnMode,
+					sessions);
+		} catch (Exception e) {
+			client.close();
+			throw e;
+		} catch (Error e) {
+			client.close();
+			throw e;
+		}
+		synchronized (this) {
+			signOns++;
+		}
+		return new PooledClient(client, cred);
+	}
+
+	private Pool getPool(Credential cred) {
+		Pool p = pools.get(cred);
+		if (p == null) {
+			p = new Pool();
+			pools.put(cred, p);
+		}
+		return p;
+	}
+
+	/** Get a client that is signed on to JGI. Uses an idle client if there
+	 * is one, waits for a client being signed on in the background if there
+	 * is one, and otherwise signs on a new client.
+	 * @param user the JGI username.
+	 * @param password the JGI password.
+	 * @return a signed on client. Return it with {@link #release(WebClient)}
+	 * or {@link #discard(WebClient)}.
+	 * @throws Exception if signing on fails.
+	 */
+	public WebClient borrow(String user, String password) throws Exception {
+		final Credential cred = new Credential(user, password);
+		while (true) {
+			PooledClient pc = null;
+			synchronized (this) {
+				final Pool p = getPool(cred);
+				while (!closed && p.idle.isEmpty() && p.pending > 0) {
+					wait();
+				}
+				if (closed) {
+					throw new IllegalStateException("Pool is closed");
+				}
+				if (!p.idle.isEmpty()) {
+					pc = p.idle.removeFirst();
+				}
+			}
+			if (pc == null) {
+				pc = signOn(cred);
+			} else if (System.currentTimeMillis() - pc.lastChecked >
+					keepAliveMillis) {
+				if (!check(pc)) {
+					continue;
+				}
+			}
+			synchronized (this) {
+				borrows++;
+				borrowed.put(pc.client, pc);
+			}
+			return pc.client;
+		}
+	}
+
+	/* Closes the client and returns false if its session expired. */
+	private boolean check(PooledClient pc) {
+		boolean ok;
+		try {
+			ok = JGISignOn.isSignedOn(pc.client);
+		} catch (Exception e) {
+			ok = false;
+		}
+		if (ok) {
+			pc.lastChecked = System.currentTimeMillis();
+		} else {
+			System.out.println(String.format(
+					"Recycling web client for %s with expired session at %s",
+					pc.cred.user, new Date()));
+			if (sessions != null) {
+				sessions.invalidate(pc.client);
+			}
+			pc.client.close();
+			synchronized (this) {
+				recycled++;
+			}
+		}
+		return ok;
+	}
+
+	/** Return a client to the pool for reuse.
+	 * @param client the client.
+	 */
+	public synchronized void release(WebClient client) {
+		final PooledClient pc = borrowed.remove(client);
+		if (pc == null) {
+			throw new IllegalArgumentException(
+					"Client was not borrowed from this pool");
+		}
+		if (closed) {
+			client.close();
+		} else {
+			getPool(pc.cred).idle.addFirst(pc);
+			notifyAll();
+		}
+	}
+
+	/** Close a client borrowed from the pool rather than returning it, for
+	 * instance if it's in an unknown state after an error.
+	 * @param client the client.
+	 */
+	public void discard(WebClient client) {
+		synchronized (this) {
+			if (borrowed.remove(client) == null) {
+				throw new IllegalArgumentException(
+						"Client was not borrowed from this pool");
+			}
+		}
+		client.close();
+	}
+
+	/** Clean up a borrowed client after it has finished with an organism
+	 * page, and replace it with a new signed on client if the recycling
+	 * policy says so. Cleaning up closes the client's windows other than
+	 * those of open organism pages, which drops their history and JavaScript
+	 * scopes, and clears the client's cache unless another window on the
+	 * client has an organism page open, e.g. with a push in flight. A client
+	 * with open pages is never replaced. The used heap before and after, and
+	 * the heap retained after the last garbage collection that the recycling
+	 * policy checks, are logged.
+	 * @param client the borrowed client.
+	 * @return the client to use from now on - either the same client or a
+	 * replacement borrowed from the pool.
+	 * @throws Exception if signing on a replacement fails.
+	 */
+	public WebClient recycle(WebClient client) throws Exception {
+		final PooledClient pc = getBorrowed(client);
+		pc.pages++;
+		final long before = getUsedHeap();
+		int closed = 0;
+		boolean openPages = false;
+		synchronized (client) {
+			for (TopLevelWindow w: new LinkedList<TopLevelWindow>(
+					client.getTopLevelWindows())) {
+				if (JGIOrganismPage.isOpenPageWindow(w)) {
+					openPages = true;
+				} else {
+					w.close();
+					closed++;
+				}
+			}
+			// the open pages may still be loading resources
+			if (!openPages) {
+				client.getCache().clear();
+			}
+		}
+		if (recycling.isCollectGarbage()) {
+			System.gc();
+		}
+		final long after = getUsedHeap();
+		final long retained = getRetainedHeap();
+		final boolean replace = !openPages && recycling.isReplacementDue(
+				pc.pages, retained, Runtime.getRuntime().maxMemory());
+		System.out.println(String.format(
+				"Recycled web client for %s after %s pages: closed %s windows, heap used %s MB -> %s MB, retained %s MB of %s MB%s at %s",
+				pc.cred.user, pc.pages, closed, before / 1000000,
+				after / 1000000, retained / 1000000,
+				Runtime.getRuntime().maxMemory() / 1000000,
+				replace ? ", replacing client" : "", new Date()));
+		if (!replace) {
+			return client;
+		}
+		discard(client);
+		synchronized (this) {
+			replaced++;
+		}
+		return borrow(pc.cred.user, pc.cred.password);
+	}
+
+	/** Check whether the next call to {@link #recycle(WebClient)} would
+	 * replace a client if it had no open organism pages, so a caller can
+	 * finish with its pages first.
+	 * @param client the borrowed client.
+	 * @return true if the client is due to be replaced.
+	 */
+	public boolean isReplacementDue(WebClient client) {
+		return recycling.isReplacementDue(getBorrowed(client).pages + 1,
+				getRetainedHeap(), Runtime.getRuntime().maxMemory());
+	}
+
+	private synchronized PooledClient getBorrowed(WebClient client) {
+		final PooledClient pc = borrowed.get(client);
+		if (pc == null) {
+			throw new IllegalArgumentException(
+					"Client was not borrowed from this pool");
+		}
+		return pc;
+	}
+
+	private static long getUsedHeap() {
+		final Runtime r = Runtime.getRuntime();
+		return r.totalMemory() - r.freeMemory();
+	}
+
+	/* The heap in use just after the most recent collection of each heap
+	 * pool, which unlike the used heap doesn't count uncollected garbage.
+	 * Falls back to the used heap if the JVM doesn't report it.
+	 */
+	private static long getRetainedHeap() {
+		long retained = 0;
+		boolean reported = false;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			final MemoryUsage u = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && u != null) {
+				retained += u.getUsed();
+				reported = true;
+			}
+		}
+		return reported ? retained : getUsedHeap();
+	}
+
+	private void keepAlive() {
+		final List<PooledClient> toCheck = new LinkedList<PooledClient>();
+		synchronized (this) {
+			for (Pool p: pools.values()) {
+				toCheck.addAll(p.idle);
+				p.pending += p.idle.size();
+				p.idle.clear();
+			}
+		}
+		for (PooledClient pc: toCheck) {
+			final boolean ok = check(pc);
+			synchronized (this) {
+				getPool(pc.cred).pending--;
+				notifyAll();
+				if (!ok) {
+					signOnInBackground(pc.cred);
+				} else if (closed) {
+					pc.client.close();
+				} else {
+					getPool(pc.cred).idle.addLast(pc);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Close the pool and all the idle clients in it. Borrowed clients are
+	 * closed when they're released.
+	 */
+	public void close() {
+		final List<PooledClient> idle = new LinkedList<PooledClient>();
+		synchronized (this) {
+			closed = true;
+			for (Pool p: pools.values()) {
+				idle.addAll(p.idle);
+				p.idle.clear();
+			}
+			notifyAll();
+		}
+		executor.shutdownNow();
+		for (PooledClient pc: idle) {
+			pc.client.close();
+		}
+	}
+
+	/** Returns the number of times a client signed on to JGI.
+	 * @return the number of sign ons.
+	 */
+	public synchronized long getSignOns() {
+		return signOns;
+	}
+
+	/** Returns the number of clients handed out.
+	 * @return the number of clients handed out.
+	 */
+	public synchronized long getBorrows() {
+		return borrows;
+	}
+
+	/** Returns the number of clients replaced by the recycling policy.
+	 * @return the number of replaced clients.
+	 */
+	public synchronized long getReplaced() {
+		return replaced;
+	}
+
+	/** Returns the number of clients closed because their session expired.
+	 * @return the number of recycled clients.
+	 */
+	public synchronized long getRecycled() {
+		return recycled;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"WebClientPool [signOns=%s, borrows=%s, recycled=%s, replaced=%s, borrowed=%s]",
+				signOns, borrows, recycled, replaced, borrowed.size());
+	}
+}
@@ -7,17 +7,24 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import us.kbase.common.test.TestException;
+import us.kbase.jgiintegration.common.CircuitBreaker.CircuitOpenException;
+import us.kbase.jgiintegration.common.ClientRecyclingPolicy;
 import us.kbase.jgiintegration.common.JGIOrganismPage;
+import us.kbase.jgiintegration.common.JGISessionStore;
+import us.kbase.jgiintegration.common.PtKBWebClientFactory;
 import us.kbase.jgiintegration.common.PushableFile;
+import us.kbase.jgiintegration.common.RetryPolicy;
+import us.kbase.jgiintegration.common.StaticAssetCache;
+import us.kbase.jgiintegration.common.WebClientPool;
 import us.kbase.jgiintegration.common.JGIOrganismPage.JGIPermissionsException;
-import us.kbase.jgiintegration.common.JGIOrganismPage.NoSuchJGIFileGroupException;
-import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
 
 import com.gargoylesoftware.htmlunit.WebClient;
 
@@ -42,6 +49,19 @@ public class GetPushableFiles {
 	private static final String WIPE_URL = 
 			"http://dev03.berkeley.kbase.us:9000";
 
+	/* The host of the default JGI genome portal. */
+	private static final String JGI_HOST = "genomeportal.jgi.doe.gov";
+	
+	/* How often the idle client checks its JGI session. */
+	private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+	
+	/* Replace the client after this many organisms, or when the heap is this
+	 * full after cleaning up the client, so the run doesn't slow to a GC
+	 * crawl.
+	 */
+	private static final int RECYCLE_AFTER_PAGES = 50;
+	private static final double RECYCLE_HEAP_FRACTION = 0.8;
+	
 	private static String JGI_USER;
 	private static String JGI_PWD;
 
@@ -50,73 +70,134 @@ public class GetPushableFiles {
 		JGI_USER = System.getProperty("test.jgi.user");
 		JGI_PWD = System.getProperty("test.jgi.pwd");
 		
+		//sign on in the background while the server is wiped and then keep
+		//the same client
+		WebClientPool pool = new WebClientPool(new PtKBWebClientFactory()
+				.withAssetCache(StaticAssetCache.getInstance()),
+				KEEP_ALIVE_MS)
+				// reuse sessions from earlier runs if jgi.session.dir is set
+				.withSessionStore(JGISessionStore.getDefault())
+				.withRecyclingPolicy(new ClientRecyclingPolicy()
+						.withMaxPages(RECYCLE_AFTER_PAGES)
+						.withMaxHeapFraction(RECYCLE_HEAP_FRACTION));
+		try {
+			getPushableFiles(pool);
+		} finally {
+			pool.close();
+		}
+		System.out.println(RetryPolicy.getDefault());
+	}
+	
+	private static void getPushableFiles(WebClientPool pool)
+			throws Exception {
+		pool.prewarm(JGI_USER, JGI_PWD, 1);
+		
 		String wipeUser = System.getProperty("test.kbase.wipe_user");
 		String wipePwd = System.getProperty("test.kbase.wipe_pwd");
 		if (!SKIP_WIPE) {
 			wipeRemoteServer(new URL(WIPE_URL), wipeUser, wipePwd);
 		}
 
-		//log in once with a known good page and then keep the same client
-		WebClient cli = new WebClient();
-		new JGIOrganismPage(cli, "BlaspURHD0036", JGI_USER, JGI_PWD);
-		
-		List<String> lines = Files.readAllLines(
-				new File(JGI_PUSHABLE_FILE).toPath(),
-					Charset.forName("UTF-8"));
-		Collections.reverse(lines); //start with newer projects, fewer 404s, less chance of file on tape
-		List<PushableFile> pushed = new LinkedList<PushableFile>();
-		for (String line: lines) {
-			if (!line.contains(FILE_ERROR_MARKER)) {
-				String[] split = line.split("\t");
-				String[] organisms = split[1].split(",");
-				if (organisms.length < 1) {
-					throw new TestException(
-							"Invalid file line: no organism:\n" + line);
+		WebClient cli = pool.borrow(JGI_USER, JGI_PWD);
+		boolean ok = false;
+		try {
+			List<String> lines = Files.readAllLines(
+					new File(JGI_PUSHABLE_FILE).toPath(),
+						Charset.forName("UTF-8"));
+			Collections.reverse(lines); //start with newer projects, fewer 404s, less chance of file on tape
+			List<PushableFile> pushed = new LinkedList<PushableFile>();
+			for (String line: lines) {
+				if (!line.contains(FILE_ERROR_MARKER)) {
+					String[] split = line.split("\t");
+					String[] organisms = split[1].split(",");
+					if (organisms.length < 1) {
+						throw new TestException(
+								"Invalid file line: no organism:\n" + line);
+					}
+					//just do the first org
+					try {
+						getPushableFiles(cli, pushed, organisms[0]);
+					} catch (CircuitOpenException e) {
+						System.out.println(String.format(
+								"Skipping organism %s: %s, waiting %s ms at %s",
+								organisms[0], e.getMessage(),
+								e.getRetryAfterMillis(), new Date()));
+						Thread.sleep(e.getRetryAfterMillis());
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						// one flaky organism shouldn't end a long scan
+						System.out.println(String.format(
+								"Skipping organism %s after %s at %s",
+								organisms[0], e, new Date()));
+					}
+					final WebClient used = cli;
+					// the pool discards the client if replacing it fails
+					cli = null;
+					cli = pool.recycle(used);
+				}
+				if (pushed.size() >= NUM_FILES_TO_PUSH) {
+					break;
 				}
-				getPushableFiles(cli, pushed, organisms[0]); //just do the first org
 			}
-			if (pushed.size() >= NUM_FILES_TO_PUSH) {
-				break;
+			System.out.println("\n***Pushed files:***");
+			for (PushableFile file: pushed) {
+				System.out.println(file.getWorkspace() + "\t" +
+						file.getOrganism() + "\t" + file.getFileGroup() + "\t" +
+						file.getFile());
+			}
+			ok = true;
+		} finally {
+			// a client that failed mid page may be in an unknown state
+			if (cli != null && ok) {
+				pool.release(cli);
+			} else if (cli != null) {
+				pool.discard(cli);
 			}
-		}
-		System.out.println("\n***Pushed files:***");
-		for (PushableFile file: pushed) {
-			System.out.println(file.getWorkspace() + "\t" +
-					file.getOrganism() + "\t" + file.getFileGroup() + "\t" +
-					file.getFile());
 		}
 	}
 	
-	private static void getPushableFiles(WebClient cli, List<PushableFile> pushed,
-			String organism)
+	private static void getPushableFiles(final WebClient cli,
+			List<PushableFile> pushed, final String organism)
 			throws Exception {
-		boolean failed = true;
-		while (failed) {
-			try {
-				JGIOrganismPage org;
-				try {
-					//			org = new JGIOrganismPage(cli, "BlaspURHD0036", JGI_USER, JGI_PWD);
-					org = new JGIOrganismPage(cli, organism, null, null);
-				} catch (JGIPermissionsException e) {
-					System.out.println("No permissions for page " + organism);
-					return;
-				}
-				List<String> fileGroups = org.listFileGroups();
-				System.out.println("File groups: " + fileGroups);
-				if (fileGroups.contains(QC)) {
-					pushed.addAll(getPushableFiles(org, QC));
+		// the page sometimes loads without some of its file groups, so retry
+		// the whole organism
+		pushed.addAll(RetryPolicy.getDefault().call(JGI_HOST,
+				"getting pushable files for " + organism,
+				new Callable<List<PushableFile>>() {
 
-				}
-				if (fileGroups.contains(RAW)) {
-					pushed.addAll(getPushableFiles(org, RAW));
-				}
-				failed = false;
-			} catch (NoSuchJGIFileGroupException e) {
-				System.out.println("*Retrying from start after exception\n" +
-						e);
-				e.printStackTrace();
+					@Override
+					public List<PushableFile> call() throws Exception {
+						return getPushableFiles(cli, organism);
+					}
+				}));
+	}
+
+	private static List<PushableFile> getPushableFiles(WebClient cli,
+			String organism)
+			throws Exception {
+		final List<PushableFile> ret = new LinkedList<PushableFile>();
+		JGIOrganismPage org;
+		try {
+			//			org = new JGIOrganismPage(cli, "BlaspURHD0036", JGI_USER, JGI_PWD);
+			org = new JGIOrganismPage(cli, organism, null, null);
+		} catch (JGIPermissionsException e) {
+			System.out.println("No permissions for page " + organism);
+			return ret;
+		}
+		try {
+			List<String> fileGroups = org.listFileGroups();
+			System.out.println("File groups: " + fileGroups);
+			if (fileGroups.contains(QC)) {
+				ret.addAll(getPushableFiles(org, QC));
+			}
+			if (fileGroups.contains(RAW)) {
+				ret.addAll(getPushableFiles(org, RAW));
 			}
+		} finally {
+			org.close();
 		}
+		return ret;
 	}
 
 	private static List<PushableFile> getPushableFiles(
@@ -126,20 +207,7 @@ public class GetPushableFiles {
 		String workspace = org.getWorkspaceName("");
 		workspace = workspace.substring(0, workspace.length() - 1);
 		List<PushableFile> ret = new LinkedList<PushableFile>();
-		List<String> files = null;
-		int counter = 0;
-		while (files == null) {
-			try {
-				files = org.listFiles(fileGroup);
-			} catch (TimeoutException te) {
-				if (counter > 1) {
-					throw new TimeoutException(
-							"Retried listing files, still no dice", te);
-				}
-				counter++;
-				System.out.println("*retrying listing files");
-			}
-		}
+		List<String> files = org.listFiles(fileGroup);
 		for (String file: files) {
 			ret.add(new PushableFile(org.getOrganismCode(), workspace, fileGroup,
 					file));
@@ -3,17 +3,59 @@ package us.kbase.jgiintegration.perftest;
 import static us.kbase.jgiintegration.common.JGIUtils.loadPushableFiles;
 import static us.kbase.jgiintegration.common.JGIUtils.wipeRemoteServer;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import us.kbase.jgiintegration.common.CircuitBreaker.CircuitOpenException;
+import us.kbase.jgiintegration.common.ClientRecyclingPolicy;
+import us.kbase.jgiintegration.common.Deadline;
+import us.kbase.jgiintegration.common.DirectHttpOrganismPage;
+import us.kbase.jgiintegration.common.HistogramLog;
 import us.kbase.jgiintegration.common.JGIFileLocation;
 import us.kbase.jgiintegration.common.JGIOrganismPage;
+import us.kbase.jgiintegration.common.JGISessionStore;
+import us.kbase.jgiintegration.common.JGISignOn.SignOnMode;
+import us.kbase.jgiintegration.common.JGIUtils;
+import us.kbase.jgiintegration.common.LatencyHistogram;
+import us.kbase.jgiintegration.common.MetricsServer;
+import us.kbase.jgiintegration.common.MetricsServer.Exposition;
+import us.kbase.jgiintegration.common.PageTimingListener.Phase;
+import us.kbase.jgiintegration.common.PhaseHistograms;
+import us.kbase.jgiintegration.common.PtKBDriver;
+import us.kbase.jgiintegration.common.PtKBWebClientFactory;
+import us.kbase.jgiintegration.common.PushReceipt;
 import us.kbase.jgiintegration.common.PushableFile;
+import us.kbase.jgiintegration.common.ResourceFilterProfile;
+import us.kbase.jgiintegration.common.ResourceFilteringWebConnection;
+import us.kbase.jgiintegration.common.ResourceFilteringWebConnection.FilterStats;
+import us.kbase.jgiintegration.common.RetryPolicy;
+import us.kbase.jgiintegration.common.SharedScriptCache;
+import us.kbase.jgiintegration.common.StaticAssetCache;
+import us.kbase.jgiintegration.common.WebClientPool;
 
 import com.gargoylesoftware.htmlunit.WebClient;
 
@@ -37,45 +79,258 @@ public class MassPushFiles {
 	}
 	
 	private static final int WORKERS = 5;//20;
+	/* Closed loop runs push up to WORKERS * MAX_PUSH_PER_WORKER files,
+	 * whichever worker is free taking the next one, so a worker may push more
+	 * or fewer.
+	 */
 	private static final int MAX_PUSH_PER_WORKER = 10;
+	
+	/* How pushes are started. */
+	private static enum LoadMode {
+		/* Each worker pushes its files back to back, starting each push as
+		 * soon as the worker is free. The load adapts to the portal's speed,
+		 * which hides queueing delay.
+		 */
+		CLOSED_LOOP,
+		/* Pushes arrive at a target rate regardless of how fast they
+		 * complete, and wait in a queue for a free worker. Latency is
+		 * measured from each push's intended start, so it includes the time
+		 * spent queued, as a real user's would.
+		 */
+		OPEN_LOOP;
+	}
+	private static final LoadMode LOAD_MODE = LoadMode.CLOSED_LOOP;
+	
+	/* The open loop arrival rate, reached at the end of the ramp up, and
+	 * how long pushes arrive for. Arrivals are evenly spaced and cycle
+	 * through the pushable files. MAX_PUSH_PER_WORKER doesn't apply.
+	 */
+	private static final double PUSHES_PER_MINUTE = 30;
+	private static final long DURATION_MS = 10 * 60 * 1000;
+	/* The arrival rate rises linearly from 0 over the ramp up. */
+	private static final long RAMP_UP_MS = 60 * 1000;
+	/* Pushes that were due to start in the warm up aren't included in the
+	 * latency statistics.
+	 */
+	private static final long WARM_UP_MS = 2 * 60 * 1000;
+	
+	/* Where to write the run's latency histograms, for comparing and
+	 * merging runs offline with HistogramLog.read(). null to not write them.
+	 */
+	private static final String HISTOGRAM_LOG = "mass_push_histograms.log";
+	/* How often to write the histograms of the values recorded since they
+	 * were last written. 0 to write them once at the end of the run.
+	 */
+	private static final long HISTOGRAM_INTERVAL_MS = 60 * 1000;
+	
+	/* The most files to select on one organism page and push together. A
+	 * worker taking a push from the queue also takes up to this many - 1
+	 * queued pushes for the same organism, saving their page loads. 1 to
+	 * push every file from its own page.
+	 */
+	private static final int MAX_FILES_PER_PAGE = 4;
+	
+	/* The port to serve live metrics on in the Prometheus text format, at
+	 * http://localhost:<port>/metrics. 0 to not serve them. The server only
+	 * listens on the loopback interface. If the port is in use the run
+	 * continues without serving metrics.
+	 */
+	private static final int METRICS_PORT = 9091;
+	
+	/* How the organism pages are driven. */
+	private static enum Driver {
+		/* Render the pages and run their JavaScript in HtmlUnit, as a
+		 * user's browser would.
+		 */
+		HTMLUNIT,
+		/* Replay the pages' form posts with a plain HTTP client. Stresses
+		 * the PtKB backend rather than the browser engine.
+		 */
+		DIRECT_HTTP;
+	}
+	private static final Driver DRIVER = Driver.HTMLUNIT;
+	
+	/* Only download the resources needed to push files. HtmlUnit only. */
+	private static final boolean FILTER_RESOURCES = true;
+	
+	/* Share static scripts and stylesheets between the workers' clients.
+	 * HtmlUnit only.
+	 */
+	private static final boolean CACHE_ASSETS = true;
+	
+	/* Sign on with plain HTTP requests rather than rendering the sign on
+	 * page, so starting all the workers at once isn't a burst of page
+	 * renders. HtmlUnit only.
+	 */
+	private static final SignOnMode SIGN_ON_MODE = SignOnMode.LIGHTWEIGHT;
+	
+	/* Load the next organism page while the previous push completes. Each
+	 * worker has at most one push in progress.
+	 */
+	private static final boolean OVERLAP_PUSHES = true;
+	
+	/* How many workers share each pooled client and its JGI session. Each
+	 * worker's pages are opened in their own windows. Per page resource
+	 * filtering stats are skipped when clients are shared, as the workers'
+	 * requests can't be told apart. HtmlUnit only.
+	 */
+	private static final int WORKERS_PER_CLIENT = 1;
+	
+	/* The budget for loading a page, selecting a file, and pushing it. A
+	 * push that runs over fails with a breakdown of where the time went.
+	 * 0 for no budget beyond the timeouts of the individual steps.
+	 */
+	private static final long PUSH_BUDGET_MS = 3 * 60 * 1000;
+	
+	/* Replace a worker's client after this many organisms, or when the heap
+	 * is this full after cleaning up the client. Clients are only cleaned up
+	 * and replaced if they aren't shared.
+	 */
+	private static final int RECYCLE_AFTER_PAGES = 50;
+	private static final double RECYCLE_HEAP_FRACTION = 0.8;
+	
+	/* How often idle pooled clients check their JGI session. */
+	private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+	/* The page pooled clients load after signing on to fill the caches. */
+	private static final String WARM_UP_ORGANISM = "BlaspURHD0036";
 
 	private static final String WIPE_URL = 
 			"http://dev03.berkeley.kbase.us:9000";
 
 	private static String JGI_USER;
 	private static String JGI_PWD;
+	private static WebClientPool POOL;
+	/* Completes the workers' pushes. */
+	private static ExecutorService PUSH_EXECUTOR;
+	private static MetricsServer METRICS;
+	
+	private static final LatencyHistogram PAGE_LOADS = new LatencyHistogram();
+	/* Open loop only, as closed loop pushes are all queued at the start. */
+	private static final LatencyHistogram QUEUE_WAITS =
+			new LatencyHistogram();
+	/* Excludes the pushes due in the open loop warm up. */
+	private static final LatencyHistogram LATENCIES = new LatencyHistogram();
+	
+	/* Counted per file. */
+	private static final AtomicLong STARTED = new AtomicLong();
+	private static final AtomicLong SUCCEEDED = new AtomicLong();
+	private static final AtomicLong FAILED = new AtomicLong();
+	
+	private static enum WorkerState {
+		STARTING,
+		WAITING_FOR_PUSHES,
+		/* Loading a page and selecting files. */
+		LOADING_PAGE,
+		/* Waiting for the previous push to complete. */
+		COMPLETING_PUSH,
+		FINISHED;
+	}
 	
 	
 	public static void main(String[] args) throws Exception {
+		try {
+			run();
+		} finally {
+			// don't leave the pool's clients or the server up if the run fails
+			shutDown();
+		}
+	}
+	
+	private static void shutDown() {
+		if (METRICS != null) {
+			METRICS.stop();
+			METRICS = null;
+		}
+		if (PUSH_EXECUTOR != null) {
+			PUSH_EXECUTOR.shutdown();
+			PUSH_EXECUTOR = null;
+		}
+		// closing the pool again is harmless, and the report prints its stats
+		if (POOL != null) {
+			POOL.close();
+		}
+	}
+	
+	private static void run() throws Exception {
 		Logger.getLogger("com.gargoylesoftware").setLevel(Level.OFF);
 		JGI_USER = System.getProperty("test.jgi.user");
 		JGI_PWD = System.getProperty("test.jgi.pwd");
 		
+		if (DRIVER == Driver.HTMLUNIT) {
+			// sign the workers' clients on while the server is wiped
+			POOL = new WebClientPool(new PtKBWebClientFactory()
+					.withAssetCache(CACHE_ASSETS ?
+							StaticAssetCache.getInstance() : null)
+					.withResourceFilter(FILTER_RESOURCES ?
+							ResourceFilterProfile.ptkb() : null),
+					KEEP_ALIVE_MS)
+					// reuse sessions from earlier runs if jgi.session.dir is set
+					.withSessionStore(JGISessionStore.getDefault())
+					.withSignOnMode(SIGN_ON_MODE)
+					.withRecyclingPolicy(new ClientRecyclingPolicy()
+							.withMaxPages(RECYCLE_AFTER_PAGES)
+							.withMaxHeapFraction(RECYCLE_HEAP_FRACTION))
+					.withWarmUpPage(JGI_PORTAL_URL, WARM_UP_ORGANISM);
+			POOL.prewarm(JGI_USER, JGI_PWD,
+					(WORKERS + WORKERS_PER_CLIENT - 1) / WORKERS_PER_CLIENT);
+		}
+		
 		String wipeUser = System.getProperty("test.kbase.wipe_user");
 		String wipePwd = System.getProperty("test.kbase.wipe_pwd");
 		if (!SKIP_WIPE) {
 			wipeRemoteServer(new URL(WIPE_URL), wipeUser, wipePwd);
 		}
 		List<PushableFile> files = loadPushableFiles(JGI_PUSHABLE_FILES);
-		
-		List<List<PushableFile>> filesets =
-				new LinkedList<List<PushableFile>>();
-		for (int i = 0; i < WORKERS; i++) {
-			filesets.add(new LinkedList<PushableFile>());
+
+		final PhaseHistograms phaseTimes = new PhaseHistograms();
+		JGIOrganismPage.addTimingListener(phaseTimes);
+		final Map<String, LatencyHistogram> histograms =
+				new LinkedHashMap<String, LatencyHistogram>();
+		histograms.put("page_load", PAGE_LOADS);
+		histograms.put("queue_wait", QUEUE_WAITS);
+		histograms.put("push_latency", LATENCIES);
+		for (Phase p: Phase.values()) {
+			histograms.put("phase." + p, phaseTimes.getHistogram(p));
 		}
-		int index = 0;
-		for (PushableFile pf: files) {
-			if (index >= filesets.size()) {
-				index = 0;
+		final HistogramLogger histLogger = new HistogramLogger(histograms);
+		final Thread histLoggerThread = new Thread(histLogger);
+		histLoggerThread.start();
+		PUSH_EXECUTOR = new TimedExecutor(WORKERS);
+		/* All the workers take pushes from the same queue, so a worker held
+		 * up by a slow organism doesn't hold up the pushes behind it.
+		 */
+		final BlockingQueue<Arrival> arrivals =
+				new LinkedBlockingQueue<Arrival>();
+		final long runStart = System.nanoTime();
+		if (LOAD_MODE == LoadMode.CLOSED_LOOP) {
+			int queued = 0;
+			for (PushableFile pf: files) {
+				if (queued >= WORKERS * MAX_PUSH_PER_WORKER) {
+					break;
+				}
+				arrivals.add(new Arrival(pf, -1, runStart, false));
+				queued++;
 			}
-			filesets.get(index).add(pf);
-			index++;
+			Arrival.addStops(arrivals);
 		}
-
 		List<PushFilesToKBaseRunner> theruns =
 				new LinkedList<PushFilesToKBaseRunner>();
-		for (List<PushableFile> list: filesets) {
-			theruns.add(new PushFilesToKBaseRunner(list));
+		SharedClient shared = null;
+		for (int i = 0; i < WORKERS; i++) {
+			if (theruns.size() % WORKERS_PER_CLIENT == 0) {
+				shared = new SharedClient();
+			}
+			theruns.add(new PushFilesToKBaseRunner(arrivals, shared));
+		}
+		if (METRICS_PORT > 0) {
+			try {
+				METRICS = new MetricsServer(
+						METRICS_PORT, new RunMetrics(theruns, phaseTimes));
+			} catch (IOException e) {
+				System.out.println(String.format(
+						"Couldn't serve metrics on port %s, continuing " +
+						"without them: %s", METRICS_PORT, e));
+			}
 		}
 		List<Thread> threads = new LinkedList<Thread>();
 		for (PushFilesToKBaseRunner r: theruns) {
@@ -83,23 +338,45 @@ public class MassPushFiles {
 			t.start();
 			threads.add(t);
 		}
+		ArrivalScheduler scheduler = null;
+		Thread schedulerThread = null;
+		if (LOAD_MODE == LoadMode.OPEN_LOOP) {
+			scheduler = new ArrivalScheduler(files, arrivals);
+			schedulerThread = new Thread(scheduler);
+			schedulerThread.start();
+		}
 		
 		for (Thread t: threads) {
 			t.join();
 		}
+		if (schedulerThread != null) {
+			// in case all the workers failed
+			schedulerThread.interrupt();
+			schedulerThread.join();
+		}
+		final long runNanos = System.nanoTime() - runStart;
+		histLoggerThread.interrupt();
+		histLoggerThread.join();
+		shutDown();
 		
 		Thread.sleep(3000); // let the stdout dump
-		index = 1;
+		int index = 1;
 		int ttlpassed = 0;
 		int ttlfailed = 0;
-		List<Long> loadTimesNanos = new LinkedList<Long>();
+		int warmUp = 0;
+		int pagesSaved = 0;
+		List<FilterStats> filterStats = new LinkedList<FilterStats>();
 		for (PushFilesToKBaseRunner runner: theruns) {
 			System.out.println(String.format(
 					"Worker %s results:", index,
 					runner.getResults().size()));
 			int passed = 0;
-			loadTimesNanos.addAll(runner.getPageLoadTimesInNanos());
+			filterStats.addAll(runner.getPageFilterStats());
+			pagesSaved += runner.getPageLoadsSaved();
 			for (Result res: runner.getResults()) {
+				if (res.warmUp) {
+					warmUp++;
+				}
 				PushableFile f = res.file;
 				String name;
 				if (f == null) {
@@ -108,13 +385,28 @@ public class MassPushFiles {
 					name = f.getOrganism() + "/" + f.getFileGroup() + "/" +
 							f.getFile();
 				}
-				if (res.exception == null) {
+				if (res.isPassed()) {
 					System.out.println(String.format(
-							"\tPushed %s at %s", name, res.timestamp));
+							"\tPushed %s at %s in %s s%s", name, res.timestamp,
+							res.receipt.getTotalNanos() / 1000000000.0,
+							res.receipt.getSelected().size() > 1 ?
+									" with " + (res.receipt.getSelected()
+											.size() - 1) + " other files" :
+									""));
 					passed++;
+				} else if (res.exception == null) {
+					System.out.println(String.format(
+							"\tUnexpected push outcome for %s at %s: %s",
+							name, res.timestamp, res.receipt));
+				} else if (res.exception instanceof CircuitOpenException) {
+					System.out.println(String.format(
+							"\tSkipped %s at %s: %s", name, res.timestamp,
+							res.exception.getMessage()));
 				} else {
 					System.out.println(String.format(
-							"\tException for %s at %s", name, res.timestamp));
+							"\tException (%s) for %s at %s",
+							RetryPolicy.classify(res.exception), name,
+							res.timestamp));
 					res.exception.printStackTrace(System.out);
 				}
 			}
@@ -127,74 +419,739 @@ public class MassPushFiles {
 		System.out.println(String.format(
 				"Total passed: %s, total failed: %s",
 				ttlpassed, ttlfailed));
-		System.out.println("\nPage load times in seconds:");
-		for (Long nanotime: loadTimesNanos) {
-			System.out.println(nanotime / 1000000000.0);
+		System.out.println(RetryPolicy.getDefault());
+		if (scheduler != null) {
+			System.out.println(String.format(
+					"\nOpen loop: target %s pushes/min for %s s with a %s s ramp up, %s pushes scheduled, %s pushes in the %s s warm up excluded",
+					PUSHES_PER_MINUTE, DURATION_MS / 1000, RAMP_UP_MS / 1000,
+					scheduler.getScheduled(), warmUp, WARM_UP_MS / 1000));
+		}
+		System.out.println(String.format(
+				"\nWorker utilization over the %.1f s run:",
+				runNanos / 1000000000.0));
+		index = 1;
+		for (PushFilesToKBaseRunner runner: theruns) {
+			System.out.println(String.format(
+					"Worker %s: %s pushes, busy %.1f s (%.0f%%), waited %.1f s for pushes",
+					index, runner.getResults().size(),
+					runner.getBusyNanos() / 1000000000.0,
+					100.0 * runner.getBusyNanos() / runNanos,
+					runner.getIdleNanos() / 1000000000.0));
+			index++;
+		}
+		System.out.println(String.format(
+				"\nPage loads: %s, saved by pushing up to %s files per page: %s",
+				PAGE_LOADS.getTotalCount(), MAX_FILES_PER_PAGE, pagesSaved));
+		System.out.println("Page load time: " +
+				PAGE_LOADS.summarize(1000000000, "s"));
+		if (LOAD_MODE == LoadMode.OPEN_LOOP) {
+			System.out.println("Push queue wait: " +
+					QUEUE_WAITS.summarize(1000000000, "s"));
+		} else {
+			System.out.println(
+					"Push queue wait: none, closed loop pushes start as soon as a worker is free");
+		}
+		// per file, failed pushes included
+		System.out.println("Push latency from intended start: " +
+				LATENCIES.summarize(1000000000, "s"));
+		if (HISTOGRAM_LOG != null) {
+			System.out.println("Histograms written to " +
+					Paths.get(HISTOGRAM_LOG).toAbsolutePath());
+		}
+		if (DRIVER == Driver.HTMLUNIT) {
+			System.out.println("\nPage phase times:");
+			System.out.print(phaseTimes.report());
+			if (FILTER_RESOURCES) {
+				printFilterStats(filterStats);
+			}
+			if (CACHE_ASSETS) {
+				System.out.println("\n" + StaticAssetCache.getInstance());
+			}
+			System.out.println("Compiled scripts: " +
+					SharedScriptCache.getStats());
+			System.out.println(POOL);
 		}
-		
+	}
+	
+	private static void printFilterStats(List<FilterStats> filterStats) {
+		System.out.println("\nResource filtering per page load:");
+		long requests = 0;
+		long avoided = 0;
+		long bytesFetched = 0;
+		long bytesAvoided = 0;
+		for (FilterStats fs: filterStats) {
+			System.out.println(fs);
+			requests += fs.getRequests();
+			avoided += fs.getRequestsAvoided();
+			bytesFetched += fs.getBytesFetched();
+			bytesAvoided += fs.getBytesAvoided();
+		}
+		int pages = Math.max(1, filterStats.size());
+		System.out.println(String.format(
+				"Total for %s pages: %s requests, %s avoided, %s bytes fetched, >= %s bytes avoided",
+				filterStats.size(), requests, avoided, bytesFetched,
+				bytesAvoided));
+		System.out.println(String.format(
+				"Mean per page: %s requests avoided, >= %s bytes avoided",
+				avoided / (double) pages, bytesAvoided / pages));
 	}
 	
 	private static class Result {
 		public PushableFile file;
+		public PushReceipt receipt;
 		public Throwable exception;
 		public Date timestamp;
+		/* The push was due to start in the open loop warm up. */
+		public boolean warmUp = false;
 		public Result(PushableFile file, Throwable exception) {
 			super();
 			this.file = file;
 			this.exception = exception;
 			this.timestamp = new Date();
 		}
+		public Result(PushableFile file, PushReceipt receipt) {
+			this(file, (Throwable) null);
+			this.receipt = receipt;
+		}
+		/* Judged for this file alone, as the receipt covers the batch. */
+		public boolean isPassed() {
+			return exception == null &&
+					receipt.isAsExpected(file.getFile());
+		}
 	}
 	
-	private static class PushFilesToKBaseRunner implements Runnable {
+	private static class PendingPush {
+		public final List<Arrival> batch;
+		public final PtKBDriver page;
+		public final Future<PushReceipt> receipt;
+		public PendingPush(List<Arrival> batch, PtKBDriver page,
+				Future<PushReceipt> receipt) {
+			this.batch = batch;
+			this.page = page;
+			this.receipt = receipt;
+		}
+	}
+	
+	/* A fixed size executor whose tasks record when they complete, so that
+	 * a push is timed from when it finished rather than when its worker
+	 * got round to checking it.
+	 */
+	private static class TimedExecutor extends ThreadPoolExecutor {
+		public TimedExecutor(int threads) {
+			super(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>());
+		}
+		
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+			return new TimedFuture<T>(callable);
+		}
+	}
+	
+	private static class TimedFuture<T> extends FutureTask<T> {
+		/* Set before the outcome is, so it's visible to any waiter. */
+		private volatile long completedNanos = -1;
+		
+		public TimedFuture(Callable<T> callable) {
+			super(callable);
+		}
+		
+		@Override
+		protected void set(T v) {
+			completedNanos = System.nanoTime();
+			super.set(v);
+		}
+		
+		@Override
+		protected void setException(Throwable t) {
+			completedNanos = System.nanoTime();
+			super.setException(t);
+		}
+		
+		/* Returns when a completed future's task completed, or now for any
+		 * other future, e.g. one that was cancelled.
+		 */
+		public static long getCompletedNanos(Future<?> f) {
+			if (f instanceof TimedFuture &&
+					((TimedFuture<?>) f).completedNanos >= 0) {
+				return ((TimedFuture<?>) f).completedNanos;
+			}
+			return System.nanoTime();
+		}
+	}
+	
+	/* A push that's due to start. An arrival with no file tells a worker to
+	 * stop.
+	 */
+	private static class Arrival {
+		public final PushableFile file;
+		/* < 0 if the push is due as soon as a worker is free. */
+		public final long intendedNanos;
+		public final long queuedNanos;
+		public final boolean warmUp;
+		public Arrival(PushableFile file, long intendedNanos,
+				long queuedNanos, boolean warmUp) {
+			this.file = file;
+			this.intendedNanos = intendedNanos;
+			this.queuedNanos = queuedNanos;
+			this.warmUp = warmUp;
+		}
+		
+		/* Stops all the workers once the queued pushes are taken. */
+		public static void addStops(BlockingQueue<Arrival> arrivals) {
+			for (int i = 0; i < WORKERS; i++) {
+				arrivals.add(new Arrival(null, 0, 0, false));
+			}
+		}
+	}
+	
+	/* Queues open loop arrivals at their intended start times, then one
+	 * arrival with no file per worker to stop the workers.
+	 */
+	private static class ArrivalScheduler implements Runnable {
 		
 		private final List<PushableFile> files;
+		private final BlockingQueue<Arrival> arrivals;
+		private int scheduled = 0;
+		
+		public ArrivalScheduler(List<PushableFile> files,
+				BlockingQueue<Arrival> arrivals) {
+			this.files = new ArrayList<PushableFile>(files);
+			this.arrivals = arrivals;
+		}
+		
+		/* The offset of the kth arrival from the start of the run. The
+		 * cumulative arrivals are R * t^2 / 2 * ramp during the ramp up and
+		 * increase by R per ms after it, R being the rate per ms.
+		 */
+		private static double getOffsetMillis(long k) {
+			final double rate = PUSHES_PER_MINUTE / 60000;
+			final double rampArrivals = rate * RAMP_UP_MS / 2;
+			if (k <= rampArrivals) {
+				return Math.sqrt(2 * k * RAMP_UP_MS / rate);
+			}
+			return RAMP_UP_MS + (k - rampArrivals) / rate;
+		}
+		
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				for (long k = 1; !files.isEmpty(); k++) {
+					final double offset = getOffsetMillis(k);
+					if (offset >= DURATION_MS) {
+						break;
+					}
+					final long intended = start + (long) (offset * 1000000);
+					final long wait = (intended - System.nanoTime()) / 1000000;
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+					arrivals.put(new Arrival(
+							files.get((int) ((k - 1) % files.size())),
+							intended, intended, offset < WARM_UP_MS));
+					synchronized (this) {
+						scheduled++;
+					}
+				}
+			} catch (InterruptedException e) {
+				System.out.println("Arrival scheduler interrupted");
+			}
+			Arrival.addStops(arrivals);
+		}
+		
+		public synchronized int getScheduled() {
+			return scheduled;
+		}
+	}
+	
+	/* The run's live metrics. */
+	private static class RunMetrics implements MetricsServer.Source {
+		
+		private final List<PushFilesToKBaseRunner> runners;
+		private final PhaseHistograms phaseTimes;
+		
+		public RunMetrics(
+				List<PushFilesToKBaseRunner> runners,
+				PhaseHistograms phaseTimes) {
+			this.runners = runners;
+			this.phaseTimes = phaseTimes;
+		}
+		
+		@Override
+		public void collect(Exposition m) {
+			final long started = STARTED.get();
+			final long succeeded = SUCCEEDED.get();
+			final long failed = FAILED.get();
+			m.family("mass_push_files_started_total", "counter",
+					"Files whose push has started")
+					.sample("mass_push_files_started_total", started);
+			m.family("mass_push_files_succeeded_total", "counter",
+					"Files pushed as expected")
+					.sample("mass_push_files_succeeded_total", succeeded);
+			m.family("mass_push_files_failed_total", "counter",
+					"Files whose push failed or had an unexpected outcome")
+					.sample("mass_push_files_failed_total", failed);
+			m.family("mass_push_files_in_flight", "gauge",
+					"Files whose push has started but not completed")
+					.sample("mass_push_files_in_flight",
+							started - succeeded - failed);
+			m.family("mass_push_page_load_seconds", "summary",
+					"Time to load an organism page and select files");
+			m.summary("mass_push_page_load_seconds", PAGE_LOADS, 1e9);
+			if (LOAD_MODE == LoadMode.OPEN_LOOP) {
+				m.family("mass_push_queue_wait_seconds", "summary",
+						"Time pushes waited in the queue for a worker");
+				m.summary("mass_push_queue_wait_seconds", QUEUE_WAITS, 1e9);
+			}
+			m.family("mass_push_latency_seconds", "summary",
+					"Time from a push's intended start to its completion");
+			m.summary("mass_push_latency_seconds", LATENCIES, 1e9);
+			m.family("mass_push_page_phase_seconds", "summary",
+					"Time taken by each phase of the organism page operations");
+			for (Phase p: Phase.values()) {
+				final LatencyHistogram h = phaseTimes.getHistogram(p);
+				if (h.getTotalCount() > 0) {
+					m.summary("mass_push_page_phase_seconds", h, 1e9,
+							"phase", p.toString());
+				}
+			}
+			final Runtime rt = Runtime.getRuntime();
+			m.family("mass_push_heap_used_bytes", "gauge", "JVM heap in use")
+					.sample("mass_push_heap_used_bytes",
+							rt.totalMemory() - rt.freeMemory());
+			m.family("mass_push_heap_max_bytes", "gauge",
+					"Maximum JVM heap").sample("mass_push_heap_max_bytes",
+							rt.maxMemory());
+			m.family("mass_push_worker_state", "gauge",
+					"1 for each worker's current state, 0 otherwise");
+			int index = 1;
+			for (PushFilesToKBaseRunner r: runners) {
+				final WorkerState state = r.getState();
+				for (WorkerState s: WorkerState.values()) {
+					m.sample("mass_push_worker_state", s == state ? 1 : 0,
+							"worker", "" + index, "state",
+							s.toString().toLowerCase());
+				}
+				index++;
+			}
+		}
+	}
+	
+	/* Writes the histograms of the values recorded in each interval to the
+	 * histogram log. Writes the last interval when interrupted.
+	 */
+	private static class HistogramLogger implements Runnable {
+		
+		private final Map<String, LatencyHistogram> histograms;
+		
+		public HistogramLogger(Map<String, LatencyHistogram> histograms) {
+			this.histograms = histograms;
+		}
+		
+		@Override
+		public void run() {
+			if (HISTOGRAM_LOG == null) {
+				return;
+			}
+			final HistogramLog log;
+			try {
+				log = new HistogramLog(Paths.get(HISTOGRAM_LOG));
+			} catch (IOException e) {
+				System.out.println("Couldn't write the histogram log: " + e);
+				return;
+			}
+			try {
+				while (true) {
+					// with no interval wait for the end of the run
+					Thread.sleep(HISTOGRAM_INTERVAL_MS > 0 ?
+							HISTOGRAM_INTERVAL_MS : Long.MAX_VALUE);
+					writeInterval(log);
+				}
+			} catch (InterruptedException e) {
+				writeInterval(log);
+			} finally {
+				log.close();
+			}
+		}
+		
+		private void writeInterval(HistogramLog log) {
+			for (Entry<String, LatencyHistogram> e: histograms.entrySet()) {
+				final LatencyHistogram h = e.getValue().getIntervalHistogram();
+				if (h.getTotalCount() > 0) {
+					log.write(e.getKey(), h);
+				}
+			}
+		}
+	}
+	
+	/* A pooled client shared by several workers. The client is discarded
+	 * rather than returned to the pool if any of its workers failed while
+	 * using it, as it may be left in an unknown state.
+	 */
+	private static class SharedClient {
+		private WebClient client = null;
+		private int users = 0;
+		private boolean failed = false;
+		
+		public synchronized WebClient acquire() throws Exception {
+			if (client == null) {
+				client = POOL.borrow(JGI_USER, JGI_PWD);
+			}
+			users++;
+			return client;
+		}
+		
+		public synchronized WebClient recycle() throws Exception {
+			final WebClient old = client;
+			// the pool has discarded the old client if replacing it failed
+			client = null;
+			client = old == null ? POOL.borrow(JGI_USER, JGI_PWD) :
+				POOL.recycle(old);
+			if (client != old) {
+				failed = false;
+			}
+			return client;
+		}
+		
+		public synchronized void release(boolean workerFailed) {
+			failed |= workerFailed;
+			users--;
+			if (users == 0 && client != null) {
+				if (failed) {
+					System.out.println(String.format(
+							"Discarding web client after a failed push at %s",
+							new Date()));
+					POOL.discard(client);
+				} else {
+					POOL.release(client);
+				}
+				client = null;
+				failed = false;
+			}
+		}
+	}
+	
+	private static class PushFilesToKBaseRunner implements Runnable {
+		
+		private final BlockingQueue<Arrival> arrivals;
+		private final SharedClient shared;
 		private final List<Result> results =
 				new LinkedList<Result>();
-		private final List<Long> timeInNanos = new LinkedList<Long>();
+		private long idleNanos = 0;
+		private long runNanos = 0;
+		private int pagesSaved = 0;
+		private volatile WorkerState state = WorkerState.STARTING;
+		private final List<FilterStats> filterStats =
+				new LinkedList<FilterStats>();
+		private WebClient wc = null;
+		// whether the client was in use when a page load or push failed
+		private boolean clientFailed = false;
+		private CloseableHttpClient http = null;
 		
-		public PushFilesToKBaseRunner(List<PushableFile> files) {
-			this.files = files;
+		/* Pushes arrivals from the queue until it takes an arrival with no
+		 * file.
+		 */
+		public PushFilesToKBaseRunner(
+				BlockingQueue<Arrival> arrivals,
+				SharedClient shared) {
+			this.arrivals = arrivals;
+			this.shared = shared;
+		}
+		
+		/* Returns the next push and any queued pushes from the same
+		 * organism, or null when there are no more pushes to make.
+		 */
+		private List<Arrival> next() throws InterruptedException {
+			state = WorkerState.WAITING_FOR_PUSHES;
+			final long start = System.nanoTime();
+			final Arrival first = arrivals.take();
+			idleNanos += System.nanoTime() - start;
+			if (first.file == null) {
+				return null;
+			}
+			state = WorkerState.LOADING_PAGE;
+			final List<Arrival> batch = new LinkedList<Arrival>();
+			batch.add(first);
+			for (Arrival a: arrivals) {
+				if (batch.size() >= MAX_FILES_PER_PAGE) {
+					break;
+				}
+				// another worker may take the arrival first
+				if (a.file != null && a.file.getOrganism().equals(
+						first.file.getOrganism()) && !contains(batch, a) &&
+						arrivals.remove(a)) {
+					batch.add(a);
+				}
+			}
+			pagesSaved += batch.size() - 1;
+			STARTED.addAndGet(batch.size());
+			final long now = System.nanoTime();
+			final List<Arrival> ret = new LinkedList<Arrival>();
+			for (Arrival a: batch) {
+				// closed loop pushes are queued when the run starts
+				if (a.intendedNanos >= 0) {
+					QUEUE_WAITS.recordValue(now - a.queuedNanos);
+				}
+				ret.add(a.intendedNanos < 0 ?
+						new Arrival(a.file, now, a.queuedNanos, a.warmUp) : a);
+			}
+			return ret;
+		}
+		
+		/* Open loop runs cycle through the files, so the same file may be
+		 * queued more than once.
+		 */
+		private boolean contains(List<Arrival> batch, Arrival arrival) {
+			for (Arrival a: batch) {
+				if (a.file.getFileGroup().equals(arrival.file.getFileGroup()) &&
+						a.file.getFile().equals(arrival.file.getFile())) {
+					return true;
+				}
+			}
+			return false;
 		}
 		
 		@Override
 		public void run() {
-			WebClient wc = new WebClient();
+			final long runStart = System.nanoTime();
+			boolean finished = false;
 			try {
-				//perform known good login
-				new JGIOrganismPage(JGI_PORTAL_URL,
-						wc, "BlaspURHD0036", JGI_USER, JGI_PWD);
+				pushAll();
+				finished = true;
+			} finally {
+				if (!finished) {
+					clientFailed = true;
+				}
+				close();
+				runNanos = System.nanoTime() - runStart;
+				state = WorkerState.FINISHED;
+			}
+		}
+		
+		private void pushAll() {
+			ResourceFilteringWebConnection filter = null;
+			try {
+				if (DRIVER == Driver.HTMLUNIT) {
+					// already signed on and warmed up
+					wc = shared.acquire();
+					if (WORKERS_PER_CLIENT == 1) {
+						filter = JGIUtils.getWebConnectionWrapper(
+								wc, ResourceFilteringWebConnection.class);
+					}
+				} else {
+					http = DirectHttpOrganismPage.createClient();
+					//perform known good login
+					openPage(WARM_UP_ORGANISM, JGI_USER, JGI_PWD,
+							Deadline.none());
+				}
 			} catch (Throwable e) {
+				clientFailed = true;
 				results.add(new Result(null, e));
 				return;
 			}
 			int count = 1;
-			for (PushableFile f: files) {
-				if (count > MAX_PUSH_PER_WORKER) {
+			PendingPush pending = null;
+			while (true) {
+				final List<Arrival> batch;
+				try {
+					batch = next();
+				} catch (InterruptedException e) {
 					break;
 				}
+				if (batch == null) {
+					break;
+				}
+				final String organism = batch.get(0).file.getOrganism();
+				PtKBDriver p = null;
 				try {
+					if (wc != null && WORKERS_PER_CLIENT == 1 && count > 1) {
+						// the client can only be replaced once the previous
+						// push is complete and its page is closed
+						if (POOL.isReplacementDue(wc)) {
+							complete(pending);
+							pending = null;
+						}
+						final WebClient old = wc;
+						wc = shared.recycle();
+						if (wc != old) {
+							clientFailed = false;
+						}
+						filter = JGIUtils.getWebConnectionWrapper(
+								wc, ResourceFilteringWebConnection.class);
+					}
 					Long start = System.nanoTime();
-					JGIOrganismPage p = new JGIOrganismPage(JGI_PORTAL_URL,
-							wc, f.getOrganism(), null, null);
-					timeInNanos.add(System.nanoTime() - start - 5000000000L);
-					p.selectFile(new JGIFileLocation(
-							f.getFileGroup(), f.getFile()));
-					p.pushToKBase();
-					results.add(new Result(f, null));
+					final Deadline deadline = PUSH_BUDGET_MS > 0 ?
+							Deadline.after(PUSH_BUDGET_MS) : Deadline.none();
+					FilterStats before = filter == null ? null :
+						filter.getStats();
+					// stops hammering the portal if it's degraded
+					p = RetryPolicy.getDefault().call(JGI_PORTAL_URL.getHost(),
+							"opening " + organism, deadline,
+							new Callable<PtKBDriver>() {
+
+								@Override
+								public PtKBDriver call() throws Exception {
+									return openAndSelect(batch, deadline);
+								}
+							});
+					PAGE_LOADS.recordValue(System.nanoTime() - start);
+					if (filter != null) {
+						filterStats.add(filter.getStats().minus(before));
+					}
+					complete(pending);
+					pending = null;
+					pending = new PendingPush(batch, p,
+							p.pushToKBaseAsync(PUSH_EXECUTOR, deadline));
+					if (!OVERLAP_PUSHES) {
+						complete(pending);
+						pending = null;
+					}
 				} catch (Throwable e) {
-					results.add(new Result(f, e));
+					clientFailed = true;
+					final long end = System.nanoTime();
+					for (Arrival a: batch) {
+						record(new Result(a.file, e), a, end);
+					}
+					if (p != null) {
+						p.close();
+					}
 				}
 				count++;
 			}
+			complete(pending);
+		}
+		
+		/* Waits for a push to complete and records the result. */
+		private void complete(PendingPush push) {
+			if (push == null) {
+				return;
+			}
+			final WorkerState prevState = state;
+			state = WorkerState.COMPLETING_PUSH;
+			Throwable failure = null;
+			try {
+				final PushReceipt receipt = push.receipt.get();
+				// the push may have completed well before now
+				final long end = TimedFuture.getCompletedNanos(push.receipt);
+				for (Arrival a: push.batch) {
+					record(new Result(a.file, receipt), a, end);
+				}
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+				final long end = TimedFuture.getCompletedNanos(push.receipt);
+				for (Arrival a: push.batch) {
+					record(new Result(a.file, failure), a, end);
+				}
+			} catch (Throwable e) {
+				failure = e;
+				final long end = System.nanoTime();
+				for (Arrival a: push.batch) {
+					record(new Result(a.file, e), a, end);
+				}
+			} finally {
+				push.page.close();
+				state = prevState;
+			}
+			if (failure != null) {
+				clientFailed = true;
+			}
+			RetryPolicy.getDefault().recordOutcome(JGI_PORTAL_URL.getHost(),
+					failure);
+		}
+		
+		private void record(Result res, Arrival arrival, long endNanos) {
+			res.warmUp = arrival.warmUp;
+			if (!arrival.warmUp) {
+				LATENCIES.recordValue(endNanos - arrival.intendedNanos);
+			}
+			if (res.isPassed()) {
+				SUCCEEDED.incrementAndGet();
+			} else {
+				FAILED.incrementAndGet();
+			}
+			results.add(res);
+		}
+		
+		/* Opens a page and selects a batch of files from the page's
+		 * organism, closing the page on failure.
+		 */
+		private PtKBDriver openAndSelect(List<Arrival> batch,
+				Deadline deadline)
+				throws Exception {
+			final PtKBDriver p = openPage(batch.get(0).file.getOrganism(),
+					null, null, deadline);
+			try {
+				if (batch.size() == 1) {
+					final PushableFile f = batch.get(0).file;
+					p.selectFile(new JGIFileLocation(
+							f.getFileGroup(), f.getFile()), true, deadline);
+				} else {
+					final List<JGIFileLocation> files =
+							new LinkedList<JGIFileLocation>();
+					for (Arrival a: batch) {
+						files.add(new JGIFileLocation(
+								a.file.getFileGroup(), a.file.getFile()));
+					}
+					p.selectFiles(files, true, deadline);
+				}
+				return p;
+			} catch (Exception e) {
+				p.close();
+				throw e;
+			}
+		}
+		
+		private PtKBDriver openPage(String organism, String user, String pwd,
+				Deadline deadline)
+				throws Exception {
+			if (DRIVER == Driver.HTMLUNIT) {
+				return new JGIOrganismPage(JGI_PORTAL_URL, wc, organism,
+						user, pwd, SignOnMode.BROWSER, deadline);
+			}
+			return new DirectHttpOrganismPage(JGI_PORTAL_URL, http, organism,
+					user, pwd, deadline);
+		}
+		
+		private void close() {
+			if (wc != null) {
+				shared.release(clientFailed);
+			}
+			if (http != null) {
+				try {
+					http.close();
+				} catch (IOException e) {
+					System.out.println("Failed to close HTTP client: " + e);
+				}
+			}
+		}
+		
+		public int getPageLoadsSaved() {
+			return pagesSaved;
+		}
+		
+		public WorkerState getState() {
+			return state;
 		}
 		
 		public List<Result> getResults() {
 			return results;
 		}
 		
-		public List<Long> getPageLoadTimesInNanos() {
-			return timeInNanos;
+		/* The time spent running, less the time spent waiting for pushes to
+		 * be queued. Time after the worker finished counts as idle in the
+		 * utilization.
+		 */
+		public long getBusyNanos() {
+			return runNanos - idleNanos;
+		}
+		
+		public long getIdleNanos() {
+			return idleNanos;
+		}
+		
+		public List<FilterStats> getPageFilterStats() {
+			return filterStats;
 		}
 		
 	}
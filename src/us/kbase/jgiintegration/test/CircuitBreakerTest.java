@@ -0,0 +1,136 @@
+package us.kbase.jgiintegration.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import us.kbase.jgiintegration.common.CircuitBreaker;
+import us.kbase.jgiintegration.common.CircuitBreaker.CircuitOpenException;
+import us.kbase.jgiintegration.common.CircuitBreaker.State;
+
+/** Tests the circuit breaker's state transitions.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class CircuitBreakerTest {
+	
+	private static final String HOST = "genome.jgi.doe.gov";
+	private static final long COOL_DOWN_MS = 100;
+	
+	private static CircuitBreaker openBreaker() throws Exception {
+		// opens when half of the last 4 calls, and at least 2, failed
+		final CircuitBreaker cb = new CircuitBreaker(4, 2, 0.5, COOL_DOWN_MS);
+		cb.recordFailure(HOST);
+		assertThat("closed before min calls", cb.getState(HOST),
+				is(State.CLOSED));
+		cb.recordFailure(HOST);
+		assertThat("opened", cb.getState(HOST), is(State.OPEN));
+		return cb;
+	}
+	
+	private static void failAcquire(CircuitBreaker cb, State expected)
+			throws Exception {
+		try {
+			cb.acquire(HOST);
+			fail("acquired call with " + expected + " breaker");
+		} catch (CircuitOpenException e) {
+			assertThat("host", e.getHost(), is(HOST));
+			assertThat("state", e.getState(), is(expected));
+			if (expected == State.OPEN) {
+				assertTrue("retry after " + e.getRetryAfterMillis(),
+						e.getRetryAfterMillis() > 0 &&
+						e.getRetryAfterMillis() <= COOL_DOWN_MS);
+			} else {
+				assertThat("retry after", e.getRetryAfterMillis(), is(0L));
+			}
+		}
+	}
+	
+	@Test
+	public void staysClosedBelowFailureRate() throws Exception {
+		final CircuitBreaker cb = new CircuitBreaker(4, 2, 0.5, COOL_DOWN_MS);
+		cb.recordSuccess(HOST);
+		cb.recordSuccess(HOST);
+		cb.recordSuccess(HOST);
+		cb.recordFailure(HOST);
+		assertThat("closed", cb.getState(HOST), is(State.CLOSED));
+		assertThat("not a trial", cb.acquire(HOST), is(false));
+		assertThat("other host", cb.getState("kbase.us"), is(State.CLOSED));
+	}
+	
+	@Test
+	public void oldOutcomesLeaveTheWindow() throws Exception {
+		final CircuitBreaker cb = new CircuitBreaker(4, 2, 0.5, COOL_DOWN_MS);
+		cb.recordFailure(HOST);
+		for (int i = 0; i < 4; i++) {
+			cb.recordSuccess(HOST);
+		}
+		cb.recordFailure(HOST);
+		assertThat("closed", cb.getState(HOST), is(State.CLOSED));
+	}
+	
+	@Test
+	public void openRejectsCalls() throws Exception {
+		final CircuitBreaker cb = openBreaker();
+		failAcquire(cb, State.OPEN);
+		assertThat("other host closed", cb.acquire("kbase.us"), is(false));
+	}
+	
+	@Test
+	public void trialSuccessCloses() throws Exception {
+		final CircuitBreaker cb = openBreaker();
+		Thread.sleep(COOL_DOWN_MS + 50);
+		assertThat("trial", cb.acquire(HOST), is(true));
+		assertThat("half open", cb.getState(HOST), is(State.HALF_OPEN));
+		failAcquire(cb, State.HALF_OPEN);
+		cb.recordSuccess(HOST);
+		assertThat("closed", cb.getState(HOST), is(State.CLOSED));
+		assertThat("not a trial", cb.acquire(HOST), is(false));
+	}
+	
+	@Test
+	public void trialFailureReopens() throws Exception {
+		final CircuitBreaker cb = openBreaker();
+		Thread.sleep(COOL_DOWN_MS + 50);
+		assertThat("trial", cb.acquire(HOST), is(true));
+		cb.recordFailure(HOST);
+		assertThat("reopened", cb.getState(HOST), is(State.OPEN));
+		failAcquire(cb, State.OPEN);
+	}
+	
+	@Test
+	public void releaseFreesTrial() throws Exception {
+		final CircuitBreaker cb = openBreaker();
+		Thread.sleep(COOL_DOWN_MS + 50);
+		assertThat("trial", cb.acquire(HOST), is(true));
+		cb.release(HOST);
+		assertThat("half open", cb.getState(HOST), is(State.HALF_OPEN));
+		assertThat("second trial", cb.acquire(HOST), is(true));
+		failAcquire(cb, State.HALF_OPEN);
+	}
+	
+	@Test
+	public void badArguments() throws Exception {
+		failConstruct(0, 1, 0.5,
+				"window and minCalls must be > 0 and minCalls <= window");
+		failConstruct(4, 0, 0.5,
+				"window and minCalls must be > 0 and minCalls <= window");
+		failConstruct(4, 5, 0.5,
+				"window and minCalls must be > 0 and minCalls <= window");
+		failConstruct(4, 2, 0, "failureRate must be > 0 and <= 1");
+		failConstruct(4, 2, 1.1, "failureRate must be > 0 and <= 1");
+	}
+	
+	private static void failConstruct(int window, int minCalls,
+			double failureRate, String message) {
+		try {
+			new CircuitBreaker(window, minCalls, failureRate, COOL_DOWN_MS);
+			fail("created bad circuit breaker");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(), is(message));
+		}
+	}
+}
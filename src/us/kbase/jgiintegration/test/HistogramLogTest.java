@@ -0,0 +1,114 @@
+package us.kbase.jgiintegration.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.kbase.jgiintegration.common.HistogramLog;
+import us.kbase.jgiintegration.common.LatencyHistogram;
+
+/** Tests writing and reading histogram logs.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class HistogramLogTest {
+	
+	private Path file;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = Files.createTempFile("histogramlog", ".hlog");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(file);
+	}
+	
+	private static LatencyHistogram histogram(long... values) {
+		final LatencyHistogram h = new LatencyHistogram();
+		for (long v: values) {
+			h.recordValue(v);
+		}
+		return h;
+	}
+	
+	@Test
+	public void readMergesByTag() throws Exception {
+		final HistogramLog log = new HistogramLog(file);
+		log.write("page_load", histogram(10, 20));
+		log.write("push", histogram(1000));
+		log.write("page_load", histogram(5, 200));
+		log.write("empty", new LatencyHistogram());
+		log.close();
+		
+		final Map<String, LatencyHistogram> read = HistogramLog.read(file);
+		assertThat("tags", new LinkedList<String>(read.keySet()),
+				is(Arrays.asList("empty", "page_load", "push")));
+		final LatencyHistogram pl = read.get("page_load");
+		assertThat("merged count", pl.getTotalCount(), is(4L));
+		assertThat("merged min", pl.getMinValue(), is(5L));
+		assertThat("merged max", pl.getMaxValue(), is(200L));
+		assertThat("merged p50", pl.getValueAtPercentile(50), is(10L));
+		assertThat("push count", read.get("push").getTotalCount(), is(1L));
+		assertThat("push max", read.get("push").getMaxValue(), is(1000L));
+		assertThat("empty count", read.get("empty").getTotalCount(), is(0L));
+	}
+	
+	@Test
+	public void readSkipsCommentsAndBlankLines() throws Exception {
+		Files.write(file, Arrays.asList(
+				"# a comment",
+				"",
+				"push," + histogram(7).encode(),
+				"  "),
+				StandardCharsets.UTF_8);
+		final Map<String, LatencyHistogram> read = HistogramLog.read(file);
+		assertThat("tags", read.keySet().size(), is(1));
+		assertThat("max", read.get("push").getMaxValue(), is(7L));
+	}
+	
+	@Test
+	public void readBadLine() throws Exception {
+		Files.write(file, Arrays.asList(",1,2"), StandardCharsets.UTF_8);
+		try {
+			HistogramLog.read(file);
+			fail("read a line with no tag");
+		} catch (IOException e) {
+			assertThat("correct message", e.getMessage(),
+					is("Illegal histogram log line: ,1,2"));
+		}
+	}
+	
+	@Test
+	public void writeBadTag() throws Exception {
+		final HistogramLog log = new HistogramLog(file);
+		try {
+			for (String tag: Arrays.asList(null, "", "a,b", "a\nb", "#a")) {
+				try {
+					log.write(tag, histogram(1));
+					fail("wrote tag " + tag);
+				} catch (IllegalArgumentException e) {
+					assertThat("correct message", e.getMessage(),
+							is("Illegal tag: " + tag));
+				}
+			}
+		} finally {
+			log.close();
+		}
+		assertThat("nothing written", HistogramLog.read(file).isEmpty(),
+				is(true));
+	}
+}
@@ -46,7 +46,9 @@ import us.kbase.common.service.ServerException;
 import us.kbase.common.service.UnauthorizedException;
 import us.kbase.jgiintegration.common.JGIFileLocation;
 import us.kbase.jgiintegration.common.JGIOrganismPage;
-import us.kbase.jgiintegration.common.JGIOrganismPage.TimeoutException;
+import us.kbase.jgiintegration.common.JGIOrganismPage.PushRejectedException;
+import us.kbase.jgiintegration.common.PushReceipt;
+import us.kbase.jgiintegration.common.StaticAssetCache;
 import us.kbase.shock.client.BasicShockClient;
 import us.kbase.shock.client.ShockFileInformation;
 import us.kbase.shock.client.ShockNode;
@@ -150,6 +152,12 @@ public class JGIIntegrationTest {
 	private static final String EXT_META_JSON = ".meta.json";
 	private static final String EXT_PROV_JSON = ".prov.json";
 	
+	/* The alert the portal shows when a push is attempted with no files
+	 * selected.
+	 */
+	private static final String NO_FILES_SELECTED_ALERT =
+			"No JAMO files were selected for Push to KBase. Please use the checkboxes to select some files!";
+	
 	/* The workspace type for JGI reads. */
 	private static final String TYPE_READ_PREFIX =
 			"KBaseFile.PairedEndLibrary";
@@ -1004,13 +1012,13 @@ public class JGIIntegrationTest {
 		try {
 			runTest(tspec, new CollectingAlertHandler(alerts));
 			fail("Pushed without files selected");
-		} catch (TimeoutException enfe) {
-			// expected
+		} catch (PushRejectedException pre) {
+			assertThat("Correct rejection alert", pre.getAlert(),
+					is(NO_FILES_SELECTED_ALERT));
 		}
-		Thread.sleep(1000); // wait for alert to finish
 		assertThat("Only one alert triggered", alerts.size(), is(1));
 		assertThat("Correct alert", alerts.get(0),
-				is("No JAMO files were selected for Push to KBase. Please use the checkboxes to select some files!"));
+				is(NO_FILES_SELECTED_ALERT));
 	}
 	
 	/** Select a file, unselect it, and thus push nothing.
@@ -1030,13 +1038,13 @@ public class JGIIntegrationTest {
 		try {
 			runTest(tspec, new CollectingAlertHandler(alerts));
 			fail("Pushed without files selected");
-		} catch (TimeoutException enfe) {
-			//expected
+		} catch (PushRejectedException pre) {
+			assertThat("Correct rejection alert", pre.getAlert(),
+					is(NO_FILES_SELECTED_ALERT));
 		}
-		Thread.sleep(1000); // wait for alert to finish
 		assertThat("Only one alert triggered", alerts.size(), is(1));
 		assertThat("Correct alert", alerts.get(0),
-				is("No JAMO files were selected for Push to KBase. Please use the checkboxes to select some files!"));
+				is(NO_FILES_SELECTED_ALERT));
 	}
 	
 	/** Select two files, unselect one, and push.
@@ -1068,6 +1076,39 @@ public class JGIIntegrationTest {
 						.withWorkspaces(Arrays.asList(wsName))).size(), is(1));
 	}
 	
+	/** Select files from two file groups in one batch, clear the selection
+	 * in one batch, and check the push is rejected as nothing is selected.
+	 * This exercises the JGI front end only.
+	 * @throws Exception if an exception occurs.
+	 */
+	@Test
+	public void selectFilesAndClearSelection() throws Exception {
+		List<JGIFileLocation> files = Arrays.asList(
+				new JGIFileLocation("QC Filtered Raw Data",
+						"8446.4.101451.ACGATA.anqdp.fastq.gz"),
+				new JGIFileLocation("Raw Data",
+						"8446.4.101451.ACGATA.fastq.gz"));
+		WebClient cli = new WebClient(BROWSER);
+		List<String> alerts = new LinkedList<String>();
+		cli.setAlertHandler(new CollectingAlertHandler(alerts));
+		JGIOrganismPage org = new JGIOrganismPage(cli, "GeobraDSM44526_FD",
+				CREDS1.getJgiUserName(), CREDS1.getJgiPassword());
+		assertThat("One wait for the server per batch",
+				org.selectFiles(files), is(files.size() - 1));
+		assertThat("One wait for the server per clear",
+				org.clearSelection(), is(files.size() - 1));
+		assertThat("Nothing left to clear", org.clearSelection(), is(0));
+		try {
+			org.pushToKBase();
+			fail("Pushed without files selected");
+		} catch (PushRejectedException pre) {
+			assertThat("Correct rejection alert", pre.getAlert(),
+					is(NO_FILES_SELECTED_ALERT));
+		}
+		org.close();
+		cli.close();
+	}
+	
 	/** Select a file that should be rejected and try and push it. 
 	 * @throws Exception if an exception occurs.
 	 */
@@ -1200,6 +1241,8 @@ public class JGIIntegrationTest {
 			AlertHandler handler, boolean skipLogin)
 			throws Exception {
 		cli.setAlertHandler(handler);
+		// all the tests load the same static assets, so share them
+		StaticAssetCache.getInstance().install(cli);
 		final CredentialSet creds = tspec.getCredentialSet();
 		
 		final JGIOrganismPage org;
@@ -1229,7 +1272,13 @@ public class JGIIntegrationTest {
 		creds.getGmailAccount().expunge();
 		System.out.println("Done.");
 		
-		org.pushToKBase();
+		PushReceipt receipt = org.pushToKBase();
+		assertThat("PtKB returned no error", receipt.getError(),
+				is((String) null));
+		assertThat("Expected files for push match actual",
+				receipt.getAccepted(), is(receipt.getExpectedAccepted()));
+		assertThat("Expected rejected files for push match actual",
+				receipt.getRejected(), is(receipt.getExpectedRejected()));
 		return org.getWorkspaceName(creds.getKbaseUserName());
 	}
 
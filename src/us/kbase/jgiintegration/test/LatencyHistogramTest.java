@@ -0,0 +1,200 @@
+package us.kbase.jgiintegration.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import us.kbase.jgiintegration.common.LatencyHistogram;
+
+/** Tests the latency histogram's bucketing, percentiles, merging and
+ * encoding. Unlike the integration tests these need no servers.
+ * @author gaprice@lbl.gov
+ *
+ */
+public class LatencyHistogramTest {
+	
+	@Test
+	public void smallValuesAreExact() throws Exception {
+		// 2 significant digits counts every value below 256 separately
+		for (long v = 0; v < 256; v++) {
+			final LatencyHistogram h = new LatencyHistogram();
+			h.recordValue(v);
+			h.recordValue(v + 1000);
+			assertThat("value " + v, h.getValueAtPercentile(50), is(v));
+		}
+	}
+	
+	@Test
+	public void equivalentValuesShareABucket() throws Exception {
+		/* 1000 is in the bucket of values from 512 to 1023, split into sub
+		 * buckets of 4, so 1000 to 1003 are counted together.
+		 */
+		final LatencyHistogram h = new LatencyHistogram();
+		h.recordValue(1000);
+		h.recordValue(1003);
+		h.recordValue(1004);
+		h.recordValue(10000);
+		assertThat("p25", h.getValueAtPercentile(25), is(1003L));
+		assertThat("p50", h.getValueAtPercentile(50), is(1003L));
+		assertThat("p75", h.getValueAtPercentile(75), is(1007L));
+		assertThat("p100", h.getValueAtPercentile(100), is(10000L));
+		assertThat("min", h.getMinValue(), is(1000L));
+		assertThat("max", h.getMaxValue(), is(10000L));
+	}
+	
+	@Test
+	public void percentilesWithinPrecision() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram();
+		for (long v = 1; v <= 100000; v++) {
+			h.recordValue(v * 1000);
+		}
+		assertThat("count", h.getTotalCount(), is(100000L));
+		for (double p: new double[] {1, 10, 50, 90, 99, 99.9}) {
+			final double expected = p * 1000 * 1000;
+			final long actual = h.getValueAtPercentile(p);
+			assertTrue(String.format("p%s: expected %s got %s",
+					p, expected, actual),
+					Math.abs(actual - expected) <= expected / 100);
+		}
+		assertThat("p0", h.getValueAtPercentile(0) <= 1000 * 1.01, is(true));
+		assertThat("p100", h.getValueAtPercentile(100), is(100000000L));
+		assertTrue("mean " + h.getMean(),
+				Math.abs(h.getMean() - 50000500) <= 500000);
+	}
+	
+	@Test
+	public void negativeAndUntrackableValues() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram(1000000, 2);
+		h.recordValue(-5);
+		h.recordValue(5000000);
+		assertThat("min", h.getMinValue(), is(0L));
+		assertThat("max", h.getMaxValue(), is(5000000L));
+		assertThat("p50", h.getValueAtPercentile(50), is(0L));
+		assertThat("count", h.getTotalCount(), is(2L));
+	}
+	
+	@Test
+	public void empty() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram();
+		assertThat("count", h.getTotalCount(), is(0L));
+		assertThat("min", h.getMinValue(), is(0L));
+		assertThat("max", h.getMaxValue(), is(0L));
+		assertThat("p99", h.getValueAtPercentile(99), is(0L));
+		assertThat("mean", h.getMean(), is(0.0));
+	}
+	
+	@Test
+	public void badArguments() throws Exception {
+		try {
+			new LatencyHistogram(1000000, 5);
+			fail("created histogram with 5 significant digits");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("significantDigits must be from 1 to 4"));
+		}
+		try {
+			new LatencyHistogram(100, 2);
+			fail("created histogram with too low a highest value");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("highestTrackableValue must be >= 256"));
+		}
+		try {
+			new LatencyHistogram().getValueAtPercentile(101);
+			fail("got percentile 101");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("percentile must be between 0 and 100"));
+		}
+	}
+	
+	@Test
+	public void encodeDecode() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram();
+		for (long v: new long[] {3, 1000, 1000, 123456789, 60000000000L}) {
+			h.recordValue(v);
+		}
+		final String encoded = h.encode();
+		final LatencyHistogram d = LatencyHistogram.decode(encoded);
+		assertThat("re-encoded", d.encode(), is(encoded));
+		assertThat("count", d.getTotalCount(), is(5L));
+		assertThat("min", d.getMinValue(), is(3L));
+		assertThat("max", d.getMaxValue(), is(60000000000L));
+		assertThat("start", d.getStartTimeMillis(), is(h.getStartTimeMillis()));
+		for (double p: new double[] {0, 25, 50, 75, 100}) {
+			assertThat("p" + p, d.getValueAtPercentile(p),
+					is(h.getValueAtPercentile(p)));
+		}
+		
+		final LatencyHistogram empty = LatencyHistogram.decode(
+				new LatencyHistogram().encode());
+		assertThat("empty count", empty.getTotalCount(), is(0L));
+		assertThat("empty min", empty.getMinValue(), is(0L));
+		
+		try {
+			LatencyHistogram.decode("1,2,3");
+			fail("decoded a bad histogram");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("Not an encoded histogram: 1,2,3"));
+		}
+	}
+	
+	@Test
+	public void addAndCopy() throws Exception {
+		final LatencyHistogram h1 = new LatencyHistogram();
+		h1.recordValue(10);
+		h1.recordValue(20);
+		final LatencyHistogram h2 = new LatencyHistogram();
+		h2.recordValue(5);
+		h2.recordValue(30);
+		final LatencyHistogram copy = h1.copy();
+		h1.add(h2);
+		assertThat("count", h1.getTotalCount(), is(4L));
+		assertThat("min", h1.getMinValue(), is(5L));
+		assertThat("max", h1.getMaxValue(), is(30L));
+		assertThat("p50", h1.getValueAtPercentile(50), is(10L));
+		assertThat("copy unchanged", copy.getTotalCount(), is(2L));
+		assertThat("added unchanged", h2.getTotalCount(), is(2L));
+		
+		try {
+			h1.add(h1);
+			fail("added a histogram to itself");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("Can't add a histogram to itself"));
+		}
+		try {
+			h1.add(new LatencyHistogram(1000000, 3));
+			fail("added a histogram with different settings");
+		} catch (IllegalArgumentException e) {
+			assertThat("correct message", e.getMessage(),
+					is("Histograms with different settings can't be merged"));
+		}
+	}
+	
+	@Test
+	public void intervals() throws Exception {
+		final LatencyHistogram h = new LatencyHistogram();
+		h.recordValue(1);
+		h.recordValue(2);
+		final LatencyHistogram i1 = h.getIntervalHistogram();
+		assertThat("count 1", i1.getTotalCount(), is(2L));
+		assertThat("max 1", i1.getMaxValue(), is(2L));
+		assertTrue("ended 1", i1.getEndTimeMillis() > 0);
+		h.recordValue(3);
+		final LatencyHistogram i2 = h.getIntervalHistogram();
+		assertThat("count 2", i2.getTotalCount(), is(1L));
+		assertThat("min 2", i2.getMinValue(), is(3L));
+		assertThat("max 2", i2.getMaxValue(), is(3L));
+		assertThat("start 2", i2.getStartTimeMillis(),
+				is(i1.getEndTimeMillis()));
+		assertThat("empty interval", h.getIntervalHistogram().getTotalCount(),
+				is(0L));
+		assertThat("cumulative count", h.getTotalCount(), is(3L));
+		assertThat("cumulative min", h.getMinValue(), is(1L));
+	}
+}